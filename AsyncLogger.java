@@ -0,0 +1,251 @@
+package server;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Nicht blockierender Logger: log() legt die Nachricht nur in einen Ringpuffer,
+ * ein einzelner Hintergrund-Thread formatiert sie und schreibt sie in die (offen gehaltene) Logdatei und die Konsole.
+ * Ist der Puffer voll, werden Nachrichten verworfen (und gezählt), der Aufrufer wird nie blockiert
+ */
+public class AsyncLogger implements Runnable {
+
+    //Log-Level, Nachrichten unter LEVEL werden verworfen
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    public static volatile Level LEVEL = Level.INFO;                                         //Minimales Log-Level
+    public static String FILE_PATH = System.getProperty("user.dir") + "/server_log.txt";    //Logfile
+    public static int BUFFER_SIZE = 8192;                   //Größe des Ringpuffers (Anzahl Nachrichten)
+    public static long MAX_FILE_SIZE = 10 * 1024 * 1024;    //Ab dieser Größe (Bytes) wird die Logdatei rotiert
+    public static int MAX_FILES = 5;                        //Anzahl aufbewahrter, rotierter Logdateien (server_log.txt.1 ...)
+    public static boolean CONSOLE = true;                   //Zusätzlich in der Konsole ausgeben
+
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("dd-MM-yyyy HH:mm:ss");
+    private static volatile AsyncLogger instance;    //Lesen ohne Lock (s. get)
+
+    private final BlockingQueue<Entry> buffer = new ArrayBlockingQueue<>(BUFFER_SIZE);
+    private final Thread thread;
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean running = true;
+
+    //Nur vom Schreib-Thread verwendet
+    private Writer out;
+    private long fileSize;
+    private long cachedSecond = -1;
+    private String cachedDate;
+
+    //Eine Log-Nachricht im Puffer (Formatierung passiert erst im Schreib-Thread)
+    private static class Entry {
+        final long time;
+        final Level level;
+        final String message;
+
+        Entry(long time, Level level, String message) {
+            this.time = time;
+            this.level = level;
+            this.message = message;
+        }
+    }
+
+    private AsyncLogger() {
+        thread = new Thread(this, "async-logger");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "async-logger-shutdown"));
+    }
+
+    //Gibt den Logger zurück (wird beim ersten Aufruf gestartet). Nur der Start braucht das Lock, log() bleibt lock-frei
+    private static AsyncLogger get() {
+        AsyncLogger logger = instance;
+        if (logger == null) {
+            synchronized (AsyncLogger.class) {
+                logger = instance;
+                if (logger == null) {
+                    logger = new AsyncLogger();
+                    instance = logger;
+                }
+            }
+        }
+        return logger;
+    }
+
+    /**
+     * Überprüft, ob Nachrichten mit dem geg. Level geloggt werden
+     *
+     * @param level Level
+     * @return true, wenn das Level aktiv ist
+     */
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+    /**
+     * Logged eine Nachricht (nicht blockierend)
+     *
+     * @param level   Level
+     * @param message Nachricht
+     */
+    public static void log(Level level, String message) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        AsyncLogger logger = get();
+        if (!logger.buffer.offer(new Entry(System.currentTimeMillis(), level, message))) {
+            logger.dropped.increment();     //Puffer voll -> verwerfen statt blockieren
+        }
+    }
+
+    /**
+     * Schreibt alle gepufferten Nachrichten und stoppt den Logger
+     */
+    public static void shutdown() {
+        AsyncLogger logger;
+        synchronized (AsyncLogger.class) {
+            logger = instance;
+            instance = null;    //Ein späterer log() Aufruf startet einen neuen Logger
+        }
+        if (logger != null) {
+            logger.close();
+        }
+    }
+
+    //Anzahl verworfener Nachrichten (Puffer voll)
+    public static long getDropped() {
+        AsyncLogger logger;
+        synchronized (AsyncLogger.class) {
+            logger = instance;
+        }
+        return logger == null ? 0 : logger.dropped.sum();
+    }
+
+    @Override
+    public void run() {
+        List<Entry> batch = new ArrayList<>(256);
+        openFile();
+        while (running || !buffer.isEmpty()) {
+            try {
+                Entry first = buffer.poll(200, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                buffer.drainTo(batch, 255);
+                for (Entry e : batch) {
+                    write(e);
+                }
+                if (out != null && buffer.isEmpty()) {
+                    out.flush();    //Nur flushen, wenn gerade nichts mehr ansteht
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            } catch (IOException e) {
+                System.out.println("An error occurred writing to the log file!");
+                e.printStackTrace();
+            } catch (RuntimeException e) {    //Sonst würde der Logger-Thread beendet und jede weitere Nachricht still verworfen
+                System.out.println("An error occurred in the logger!");
+                e.printStackTrace();
+            } finally {
+                batch.clear();
+            }
+        }
+        closeFile();
+    }
+
+    private void write(Entry e) throws IOException {
+        String line = "[" + formatDate(e.time) + "] " + (e.level == Level.INFO ? "" : e.level + " ") + e.message;
+        if (CONSOLE) {
+            System.out.println(line);   //Konsolen Ausgabe
+        }
+        if (out == null) {
+            return;
+        }
+        if (fileSize >= MAX_FILE_SIZE) {
+            rotate();
+            if (out == null) {      //Neue Datei konnte nicht geöffnet werden -> nur noch Konsolen Ausgabe
+                return;
+            }
+        }
+        out.write(line);
+        out.write('\n');
+        fileSize += line.length() + 1;  //Näherung (Zeichen statt Bytes) reicht für die Rotation
+    }
+
+    //Formatiert den Zeitpunkt, das Ergebnis wird pro Sekunde wiederverwendet
+    private String formatDate(long time) {
+        long second = time / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedDate = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault()).format(FORMATTER);
+        }
+        return cachedDate;
+    }
+
+    //Öffnet die Logdatei (append), bleibt bis zur nächsten Rotation offen
+    private void openFile() {
+        try {
+            File logFile = new File(FILE_PATH);
+            fileSize = logFile.length();
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, true), StandardCharsets.UTF_8), 64 * 1024);
+        } catch (IOException e) {
+            System.out.println("An error occurred opening the log file!");
+            e.printStackTrace();
+            out = null;
+        }
+    }
+
+    private void closeFile() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            out = null;
+        }
+    }
+
+    //server_log.txt -> server_log.txt.1 -> server_log.txt.2 ... (die älteste Datei wird gelöscht)
+    private void rotate() {
+        closeFile();
+        File oldest = new File(FILE_PATH + "." + MAX_FILES);
+        if (oldest.exists() && !oldest.delete()) {
+            System.out.println("Could not delete old log file " + oldest);
+        }
+        for (int i = MAX_FILES - 1; i >= 1; i--) {
+            File f = new File(FILE_PATH + "." + i);
+            if (f.exists() && !f.renameTo(new File(FILE_PATH + "." + (i + 1)))) {
+                System.out.println("Could not rotate log file " + f);
+            }
+        }
+        if (!new File(FILE_PATH).renameTo(new File(FILE_PATH + ".1"))) {
+            System.out.println("Could not rotate log file " + FILE_PATH);
+        }
+        openFile();
+    }
+
+    private void close() {
+        running = false;
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Gespeicherte Chat-Nachricht (ein Eintrag im public Table, s. room für den Raum)
+ */
+public class ChatMessage {
+    private final String id;            //Nachrichten ID
+    private final String content;       //Inhalt
+    private final String author;        //Name des Autors
+    private final String author_id;     //ID des Autors
+    private final String time;          //Uhrzeit (in ms)
+    private final long timeMillis;      //Uhrzeit als Zahl
+    private final String room;          //Raum der Nachricht
+
+    /**
+     * Erstellt eine Chat-Nachricht
+     *
+     * @param id        Nachrichten ID
+     * @param content   Inhalt der Nachricht
+     * @param author    Name des Autors
+     * @param author_id UID des Autors
+     * @param time      Uhrzeit der Nachricht (in ms)
+     */
+    public ChatMessage(String id, String content, String author, String author_id, String time) {
+        this(id, content, author, author_id, time, Room.DEFAULT);
+    }
+
+    /**
+     * Erstellt eine Chat-Nachricht in einem Raum
+     *
+     * @param id        Nachrichten ID
+     * @param content   Inhalt der Nachricht
+     * @param author    Name des Autors
+     * @param author_id UID des Autors
+     * @param time      Uhrzeit der Nachricht (in ms)
+     * @param room      Raum der Nachricht
+     */
+    public ChatMessage(String id, String content, String author, String author_id, String time, String room) {
+        this.id = id;
+        this.content = content;
+        this.author = author;
+        this.author_id = author_id;
+        this.time = time;
+        this.timeMillis = Long.parseLong(time);
+        this.room = room == null ? Room.DEFAULT : room;
+    }
+
+    //Gibt die Nachricht als Map zurück (Format der message_history)
+    public Map<String, String> toMap() {
+        Map<String, String> m = new HashMap<>();
+        m.put("id", id);
+        m.put("content", content);
+        m.put("author", author);
+        m.put("author_id", author_id);
+        m.put("time", time);
+        m.put("room", room);
+        return m;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    public String getAuthor_id() {
+        return author_id;
+    }
+
+    public String getTime() {
+        return time;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    //Gibt die Uhrzeit als Zahl (ms) zurück
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+}
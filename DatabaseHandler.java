@@ -1,189 +1,657 @@
 package server;
 
-import org.java_websocket.WebSocket;
-
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 
-public class DatabaseHandler {
+/**
+ * SQLite-Implementierung des MessageStore (Tabelle public in db/database.db)
+ */
+public class DatabaseHandler implements MessageStore {
     private final String filePath = System.getProperty("user.dir");         //Dateipfad zur Server-Datei
     private final String databaseName = "database.db";                      //Name der Datenbank
     private final String databaseURL = "jdbc:sqlite:" + filePath + "/db/" + databaseName;   //Dateipfad zu Datenbank
-    private Connection sqliteconn;                                          //SQLite conncetion
+    private Connection sqliteconn;                                          //SQLite conncetion (einzige schreibende Verbindung)
+    private StatementCache writeStatements;                                 //PreparedStatements der schreibenden Verbindung
+    private ReadConnectionPool readers;                                     //Schreibgeschützte Verbindungen für Lese-Abfragen
+    public static int READ_POOL_SIZE = 4;                                   //Anzahl Lese-Verbindungen
+    private MessageWriter writer;                                           //Asynchroner Writer (null = synchron schreiben)
+    public static boolean ASYNC_WRITES = true;                              //Nachrichten gesammelt im Hintergrund speichern
+    public static int CACHE_CAPACITY = 10_000;                              //Anzahl der neuesten Nachrichten im MessageCache (0 = kein Cache)
+    public static long CACHE_MAX_AGE = 6 * 60 * 60 * 1000;                  //Maximales Alter (ms) einer Nachricht im MessageCache
+    private MessageCache cache;                                             //Cache der neuesten Nachrichten (null = kein Cache)
+    public static long ARCHIVE_AFTER = 30L * 24 * 60 * 60 * 1000;           //Nachrichten, die älter sind, werden ins MessageArchive verschoben (0 = nie)
+    public static long ARCHIVE_INTERVAL = 60 * 60 * 1000;                   //So oft (ms) läuft der Archivierer im Hintergrund
+    public static long ARCHIVE_DELAY = 60 * 1000;                           //So lange (ms) nach dem Start wartet der erste Durchgang des Archivierers
+    public static long COMPACT_INTERVAL = 24 * 60 * 60 * 1000;              //So oft (ms) fasst der Archivierer Archiv-Dateien zusammen (0 = nie)
+    private MessageArchive archive;                                         //Archiv alter Nachrichten (null = kein Archiv)
+    private ScheduledExecutorService archiver;                              //Verschiebt regelmäßig alte Nachrichten ins Archiv
+    public static boolean SEARCH_ENABLED = true;                            //Volltextsuche (SearchIndex, braucht FTS5)
+    private SearchIndex search;                                             //Volltext-Index (null = keine Suche)
+    private static final int SQLITE_CONSTRAINT = 19;                        //SQLite Error-Code für verletzte Constraints
+    private static final int STREAM_FETCH_SIZE = 256;                       //Zeilen pro Fetch beim Streamen der History
+    private static final int SCHEMA_VERSION = 2;                            //Aktuelle Schema-Version (PRAGMA user_version)
+    //PRAGMAs für alle Verbindungen: Seiten-Cache (16 MB), Memory-Mapped I/O (256 MB), Warten statt SQLITE_BUSY
+    private static final String[] CONNECTION_PRAGMAS = {"cache_size = -16000", "mmap_size = 268435456", "busy_timeout = 5000", "temp_store = MEMORY"};
 
 
     /**
-     * Erstellt Dummyuserund und startet sqlite-Connection + checkt ob der nachrichten Table existiert
+     * Startet sqlite-Connection + checkt ob der nachrichten Table existiert
      *
      * @throws ClassNotFoundException Error
      * @throws SQLException           Error
      */
     public DatabaseHandler() throws ClassNotFoundException, SQLException {
-
-        User.createDummyUser();     //Erstellt Dummyuser (wird als fallback verwendet)
-
         Class.forName("org.sqlite.JDBC");   //Braucht man aus GRÜNDEN
         sqliteconn = DriverManager.getConnection(databaseURL);  //Verbindet sich mit sqlite
+        writeStatements = new StatementCache(sqliteconn);
+        //WAL: Leser blockieren den Writer nicht (und umgekehrt), synchronous=NORMAL reicht im WAL-Modus für Konsistenz
+        executeSQL("PRAGMA journal_mode = WAL");
+        executeSQL("PRAGMA synchronous = NORMAL");
+        for (String pragma : CONNECTION_PRAGMAS) {
+            executeSQL("PRAGMA " + pragma);
+        }
         log("Connected to SQLite");
 
-        checkTable();   //Überprüft den Nachrichten Table
+        try {
+            checkTable();   //Überprüft den Nachrichten Table
+        } catch (SQLException e) {
+            sqliteconn.close();
+            //Nicht auf einen anderen Speicher ausweichen: die Datenbank muss erst repariert werden
+            throw new IllegalStateException("Migration of table public failed, database left unchanged: " + e.getMessage(), e);
+        }
+
+        readers = new ReadConnectionPool(databaseURL, READ_POOL_SIZE, CONNECTION_PRAGMAS);
+        if (ASYNC_WRITES) {
+            writer = new MessageWriter(sqliteconn);  //Der Writer übernimmt die schreibende Verbindung
+        }
+        if (CACHE_CAPACITY > 0) {
+            cache = new MessageCache(CACHE_CAPACITY, CACHE_MAX_AGE);
+            warmCache();
+        }
+        if (ARCHIVE_AFTER > 0) {
+            try {
+                archive = new MessageArchive(Paths.get(filePath, "db", "archive"));
+                archiver = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "message-archiver");
+                    t.setDaemon(true);
+                    return t;
+                });
+                archiver.scheduleWithFixedDelay(this::archiveOldMessages, ARCHIVE_DELAY, ARCHIVE_INTERVAL, TimeUnit.MILLISECONDS);
+                if (COMPACT_INTERVAL > 0) {     //Gleicher Thread, läuft also nie gleichzeitig mit einem Archivierungs-Durchgang
+                    archiver.scheduleWithFixedDelay(this::compactArchive, ARCHIVE_DELAY, COMPACT_INTERVAL, TimeUnit.MILLISECONDS);
+                }
+            } catch (IOException e) {
+                log(e.getMessage() + " @server.DatabaseHandler.init IOException, archiving disabled");
+                archive = null;
+            }
+        }
+        if (SEARCH_ENABLED) {
+            try {
+                search = new SearchIndex(databaseURL, CONNECTION_PRAGMAS, readers, archive);   //Indiziert im Hintergrund
+            } catch (SQLException e) {
+                log(e.getMessage() + " @server.DatabaseHandler.init SQLException, search disabled");
+            }
+        }
+    }
+
+    /**
+     * Verschiebt alle Nachrichten, die älter als ARCHIVE_AFTER sind, Zeitabschnitt für Zeitabschnitt ins Archiv.
+     * Es werden nur vollständig abgelaufene Zeitabschnitte archiviert, jede Archiv-Datei wird also (normalerweise) nur einmal geschrieben.
+     * Die Zeilen werden erst gelöscht, wenn die Archiv-Datei auf der Platte ist. Läuft auf einer eigenen Verbindung im Hintergrund
+     */
+    private void archiveOldMessages() {
+        long cutoff = MessageArchive.partitionStart(System.currentTimeMillis() - ARCHIVE_AFTER);
+        String minSql = "SELECT MIN(time) FROM public WHERE time < ?";
+        String selectSql = "SELECT id,content,author,author_id,time,room FROM public WHERE time >= ? AND time < ? ORDER BY time, id";
+        String deleteSql = "DELETE FROM public WHERE time >= ? AND time < ?";
+        long rows = 0;
+        try (Connection conn = DriverManager.getConnection(databaseURL);
+             Statement stmt = conn.createStatement();
+             PreparedStatement min = conn.prepareStatement(minSql);
+             PreparedStatement select = conn.prepareStatement(selectSql);
+             PreparedStatement delete = conn.prepareStatement(deleteSql)) {
+            for (String pragma : CONNECTION_PRAGMAS) {
+                stmt.execute("PRAGMA " + pragma);
+            }
+            while (true) {
+                long oldest;
+                min.setLong(1, cutoff);
+                try (ResultSet rs = min.executeQuery()) {
+                    oldest = rs.next() ? rs.getLong(1) : 0;
+                    if (rs.wasNull()) {
+                        break;      //Nichts (mehr) zu archivieren
+                    }
+                }
+                long start = MessageArchive.partitionStart(oldest);
+                long end = Math.min(start + MessageArchive.PARTITION_SIZE, cutoff);
+
+                List<ChatMessage> messages = new ArrayList<>();
+                select.setLong(1, start);
+                select.setLong(2, end);
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        messages.add(new ChatMessage(rs.getString("id"), rs.getString("content"), rs.getString("author"),
+                                rs.getString("author_id"), rs.getString("time"), rs.getString("room")));
+                    }
+                }
+                archive.write(start, end, messages);    //Ab jetzt werden die Nachrichten im Archiv gesucht..
+                delete.setLong(1, start);
+                delete.setLong(2, end);
+                delete.executeUpdate();                 //..und können aus der Datenbank gelöscht werden
+                rows += messages.size();
+            }
+        } catch (SQLException e) {
+            log(e.getMessage() + " @server.DatabaseHandler.archiveOldMessages SQLException");
+        } catch (IOException e) {
+            log(e.getMessage() + " @server.DatabaseHandler.archiveOldMessages IOException");
+        } catch (RuntimeException e) {
+            log(e + " @server.DatabaseHandler.archiveOldMessages");     //Sonst würde der Archivierer still beendet
+        }
+        if (rows > 0) {
+            log("Archived " + rows + " messages older than " + cutoff);
+        }
+    }
+
+    /**
+     * Fasst die Archiv-Dateien vollständig archivierter Zeitfenster zusammen (s. MessageArchive.compact).
+     * Läuft auf dem Thread des Archivierers im Hintergrund
+     */
+    private void compactArchive() {
+        try {
+            int replaced = archive.compact();
+            if (replaced > 0) {
+                log("Compacted " + replaced + " archive files");
+            }
+        } catch (IOException e) {
+            log(e.getMessage() + " @server.DatabaseHandler.compactArchive IOException");
+        } catch (RuntimeException e) {
+            log(e + " @server.DatabaseHandler.compactArchive");     //Sonst würde der Archivierer still beendet
+        }
+    }
+
+    /**
+     * Lädt die neuesten Nachrichten (maximal CACHE_CAPACITY, nicht älter als CACHE_MAX_AGE) in den Cache
+     */
+    private void warmCache() {
+        long now = System.currentTimeMillis();
+        String sql = "SELECT id,content,author,author_id,time,room FROM public WHERE time >= ? ORDER BY time DESC, id DESC LIMIT ?";
+        List<ChatMessage> messages = new ArrayList<>();
+        StatementCache statements = null;
+        try {
+            statements = readers.acquire();
+            PreparedStatement pstmt = statements.get(sql);
+            pstmt.setLong(1, now - CACHE_MAX_AGE);
+            pstmt.setInt(2, CACHE_CAPACITY);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    messages.add(new ChatMessage(rs.getString("id"), rs.getString("content"), rs.getString("author"),
+                            rs.getString("author_id"), rs.getString("time"), rs.getString("room")));
+                }
+            }
+        } catch (SQLException e) {
+            log(e.getMessage() + " @server.DatabaseHandler.warmCache SQLException");
+            return;     //Der Cache bleibt leer und ist erst ab jetzt vollständig
+        } finally {
+            readers.release(statements);   //Verbindung zurück in den Pool
+        }
+        Collections.reverse(messages);
+        long completeFrom = now - CACHE_MAX_AGE;
+        if (messages.size() == CACHE_CAPACITY) {    //Limit erreicht -> ältere Nachrichten im Zeitfenster fehlen evtl.
+            completeFrom = messages.get(0).getTimeMillis() + 1;
+        }
+        cache.warm(messages, completeFrom);
+        log("Loaded " + messages.size() + " recent messages into the cache");
     }
 
     /**
-     * Sucht alle Nachrichten zwischen from und to
+     * Sucht alle Nachrichten eines Raums zwischen from und to
      *
+     * @param room Raum
      * @param from start-Wert (ms)
      * @param to   end-Wert (ms)
-     * @return Liste an Nachrichten
+     * @return Liste an Nachrichten oder null, wenn die Datenbank nicht gelesen werden konnte
      */
-    public List<Map<String, String>> getAllMessages(long from, long to) {
+    @Override
+    public List<Map<String, String>> getAllMessages(String room, long from, long to) {
         if (from > to) {    //Sollten die Werte vertauscht sein, werden diese einfach korrigiert
             long t = to;
             to = from;
             from = t;
         }
-        String sql = "SELECT id,content,author,author_id,time " //SQL umd alle Nachrichten zwischen from und to zu filtern
-                + "FROM public WHERE time BETWEEN ? AND ?";
         List<Map<String, String>> messages = new ArrayList<>();
+        long hotFrom = from;
+        if (archive != null && from < archive.getArchivedUntil()) {    //Der ältere Teil des Zeitraums liegt im Archiv
+            long until = archive.getArchivedUntil();
+            archive.scan(room, from, Math.min(to, until - 1), Long.MIN_VALUE, "", m -> messages.add(m.toMap()));
+            hotFrom = until;
+        }
+        if (hotFrom > to) {
+            return messages;
+        }
+        String sql = "SELECT id,content,author,author_id,time,room " //SQL umd alle Nachrichten zwischen from und to zu filtern
+                + "FROM public WHERE room = ? AND time BETWEEN ? AND ? ORDER BY time, id";
 
-        try (PreparedStatement pstmt = sqliteconn.prepareStatement(sql)) {  //Versuche SQL auzuführen
-            pstmt.setLong(1, from);
-            pstmt.setLong(2, to);
-            ResultSet rs = pstmt.executeQuery();
-
-            while (rs.next()) { //Durch jeden Eintrag gehen, diesen in einer Map speichern und der messages Liste hinzufügen
-                Map<String, String> m = new HashMap<>();
-//                System.out.println(rs.getString("id"));
-                m.put("id", rs.getString("id"));
-                m.put("content", rs.getString("content"));
-                m.put("author", rs.getString("author"));
-                m.put("author_id", rs.getString("author_id"));
-                m.put("time", rs.getString("time"));
-                messages.add(m);
+        StatementCache statements = null;
+        try {
+            statements = readers.acquire();
+            PreparedStatement pstmt = statements.get(sql);  //Versuche SQL auzuführen
+            pstmt.setString(1, room);
+            pstmt.setLong(2, hotFrom);
+            pstmt.setLong(3, to);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) { //Durch jeden Eintrag gehen, diesen in einer Map speichern und der messages Liste hinzufügen
+                    Map<String, String> m = new HashMap<>();
+                    m.put("id", rs.getString("id"));
+                    m.put("content", rs.getString("content"));
+                    m.put("author", rs.getString("author"));
+                    m.put("author_id", rs.getString("author_id"));
+                    m.put("time", rs.getString("time"));
+                    m.put("room", rs.getString("room"));
+                    messages.add(m);
+                }
             }
         } catch (SQLException e) {
-            System.out.println(e.getMessage());
+            log(e.getMessage() + " @server.DatabaseHandler.getAllMessages SQLException");
+            return null;    //Nicht als (unvollständige) History ausgeben
+        } finally {
+            readers.release(statements);   //Verbindung zurück in den Pool
         }
         return messages;
     }
 
     /**
-     * Generiert neue Nachricht in der Datenbank
+     * Sucht eine Seite an Nachrichten eines Raums zwischen from und to, sortiert nach (time, id).
+     * Es werden nie mehr als limit Nachrichten geladen, egal wie groß der Zeitraum ist
      *
-     * @param conn    Autor-Connection -> User
-     * @param content Inhalt der Nachricht
-     * @param time    Uhrzeit der Nachricht (in ms)
+     * @param room   Raum
+     * @param from   start-Wert (ms)
+     * @param to     end-Wert (ms)
+     * @param cursor Cursor der vorherigen Seite ("time:id") oder null für die erste Seite
+     * @param limit  Maximale Anzahl Nachrichten
+     * @return Seite an Nachrichten oder null, wenn die Datenbank nicht gelesen werden konnte (z.B. keine Lese-Verbindung frei)
      */
-    public void newMessage(WebSocket conn, String content, String time) {
-        String sql = "INSERT INTO public(id,content,author,author_id,time) VALUES(?,?,?,?,?)"; //SQL für neuen Eintrag
-
+    @Override
+    public MessagePage getMessagePage(String room, long from, long to, String cursor, int limit) {
+        if (from > to) {    //Sollten die Werte vertauscht sein, werden diese einfach korrigiert
+            long t = to;
+            to = from;
+            from = t;
+        }
+        if (cache != null) {
+            MessagePage cached = cache.getPage(room, from, to, cursor, limit);   //Liegt der Zeitraum komplett im Cache, wird die Datenbank nicht gebraucht
+            if (cached != null) {
+                return cached;
+            }
+        }
+        long afterTime = cursor == null ? from : MessagePage.cursorTime(cursor);   //Ohne Cursor: alles ab from (jede ID ist > "")
+        String afterId = cursor == null ? "" : MessagePage.cursorId(cursor);
 
+        String sql = "SELECT id,content,author,author_id,time,room FROM public "   //Keyset-Pagination: setzt direkt hinter dem Cursor im Index an
+                + "WHERE room = ? AND time BETWEEN ? AND ? AND (time > ? OR (time = ? AND id > ?)) "
+                + "ORDER BY time, id LIMIT ?";
+        List<Map<String, String>> messages = new ArrayList<>(Math.min(limit, 256));
+        boolean hasMore = false;
 
-        String author = User.getUserByConnection(conn).getName();   //Sammle informationen über den Autor
-        String author_id = User.getUserByConnection(conn).getId();
+        long hotFrom = from;
+        if (archive != null && from < archive.getArchivedUntil()) {    //Der ältere Teil des Zeitraums liegt im Archiv
+            long until = archive.getArchivedUntil();
+            archive.scan(room, from, Math.min(to, until - 1), afterTime, afterId, m -> {
+                messages.add(m.toMap());
+                return messages.size() <= limit;
+            });
+            hasMore = messages.size() > limit;
+            if (hasMore) {
+                messages.remove(limit);
+            }
+            hotFrom = until;
+        }
 
-        commitNewMessage(content, time, author, author_id);
+        StatementCache statements = null;
+        try {
+            if (hasMore || hotFrom > to) {
+                return page(messages, hasMore);
+            }
+            statements = readers.acquire();
+            PreparedStatement pstmt = statements.get(sql);
+            pstmt.setString(1, room);
+            pstmt.setLong(2, hotFrom);
+            pstmt.setLong(3, to);
+            pstmt.setLong(4, afterTime);
+            pstmt.setLong(5, afterTime);
+            pstmt.setString(6, afterId);
+            pstmt.setInt(7, limit - messages.size() + 1);     //Eine Nachricht mehr laden, um zu wissen, ob es eine weitere Seite gibt
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    if (messages.size() == limit) {
+                        hasMore = true;
+                        break;
+                    }
+                    Map<String, String> m = new HashMap<>();
+                    m.put("id", rs.getString("id"));
+                    m.put("content", rs.getString("content"));
+                    m.put("author", rs.getString("author"));
+                    m.put("author_id", rs.getString("author_id"));
+                    m.put("time", rs.getString("time"));
+                    m.put("room", rs.getString("room"));
+                    messages.add(m);
+                }
+            }
+        } catch (SQLException e) {
+            log(e.getMessage() + " @server.DatabaseHandler.getMessagePage SQLException");
+            return null;    //Sonst hielte der Client eine leere Seite für das Ende der History
+        } finally {
+            readers.release(statements);   //Verbindung zurück in den Pool
+        }
+        return page(messages, hasMore);
     }
-    //s. o. Als System Nachricht
-    public void newSystemMessage(String content, String time){
-        log("New System Message \"" + content + "\" @ " + time);
-        String author = "System";
-        String author_id ="SERVER_";
 
-        commitNewMessage(content, time, author, author_id);
+    //Erstellt die Seite (mit Cursor auf die letzte Nachricht, falls es eine weitere Seite gibt)
+    private MessagePage page(List<Map<String, String>> messages, boolean hasMore) {
+        String nextCursor = null;
+        if (hasMore) {
+            Map<String, String> last = messages.get(messages.size() - 1);
+            nextCursor = MessagePage.cursor(Long.parseLong(last.get("time")), last.get("id"));
+        }
+        return new MessagePage(messages, hasMore, nextCursor);
     }
 
     /**
-     * Erstellt einen neuen Datenbankeintrag der Chat-Nachricht
+     * Liest alle Nachrichten eines Raums zwischen from und to Zeile für Zeile aus dem Cursor und übergibt sie an visitor,
+     * ohne das Ergebnis komplett in den Speicher zu laden. Die Lese-Verbindung bleibt dabei belegt, visitor darf also nicht
+     * (z.B. auf einen Client) warten, dafür s. getMessagePage
      *
-     * @param content Inhalt der Nachricht
-     * @param time    Uhrzeit der Nachricht (in ms)
-     * @param author Name des Autors der Nachricht
-     * @param author_id UID des Autors
-     */
-    private void commitNewMessage(String content, String time,String author, String author_id) {
-        String sql = "INSERT INTO public(id,content,author,author_id,time) VALUES(?,?,?,?,?)"; //SQL für neuen Eintrag
-        String mid = Util.generateUniqueString(32, getAllMessageIDs()); //Eine unique Nachrichten-ID wird generiert
-        try (PreparedStatement pstmt = sqliteconn.prepareStatement(sql)) {  //Führe SQL aus
-            pstmt.setString(1, mid);
-            pstmt.setString(2, content);
-            pstmt.setString(3, author);
-            pstmt.setString(4, author_id);
-            pstmt.setString(5, time);
-            pstmt.executeUpdate();
-        } catch (SQLException | NullPointerException e) {
-            log(e.getMessage() + " @server.DatabaseHandler.commitNewMessage");
-            e.printStackTrace();
+     * @param room    Raum
+     * @param from    start-Wert (ms)
+     * @param to      end-Wert (ms)
+     * @param visitor Bekommt jede Nachricht (sortiert nach (time, id)), gibt false zurück um abzubrechen
+     * @return Anzahl übergebener Nachrichten oder -1, wenn die Datenbank nicht (vollständig) gelesen werden konnte
+     */
+    @Override
+    public long streamMessages(String room, long from, long to, Predicate<Map<String, String>> visitor) {
+        if (from > to) {    //Sollten die Werte vertauscht sein, werden diese einfach korrigiert
+            long t = to;
+            to = from;
+            from = t;
+        }
+        String sql = "SELECT id,content,author,author_id,time,room FROM public WHERE room = ? AND time BETWEEN ? AND ? ORDER BY time, id";
+        long[] count = {0};
+
+        long hotFrom = from;
+        if (archive != null && from < archive.getArchivedUntil()) {    //Zuerst der archivierte Teil des Zeitraums
+            long until = archive.getArchivedUntil();
+            boolean completed = archive.scan(room, from, Math.min(to, until - 1), Long.MIN_VALUE, "", m -> {
+                count[0]++;
+                return visitor.test(m.toMap());
+            });
+            if (!completed) {
+                return count[0];
+            }
+            hotFrom = until;
         }
+        if (hotFrom > to) {
+            return count[0];
+        }
+
+        StatementCache statements = null;
+        try {
+            statements = readers.acquire();
+            PreparedStatement pstmt = statements.get(sql);
+            pstmt.setString(1, room);
+            pstmt.setLong(2, hotFrom);
+            pstmt.setLong(3, to);
+            pstmt.setFetchSize(STREAM_FETCH_SIZE);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    Map<String, String> m = new HashMap<>();
+                    m.put("id", rs.getString("id"));
+                    m.put("content", rs.getString("content"));
+                    m.put("author", rs.getString("author"));
+                    m.put("author_id", rs.getString("author_id"));
+                    m.put("time", rs.getString("time"));
+                    m.put("room", rs.getString("room"));
+                    count[0]++;
+                    if (!visitor.test(m)) {
+                        break;
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            log(e.getMessage() + " @server.DatabaseHandler.streamMessages SQLException");
+            return -1;
+        } finally {
+            readers.release(statements);   //Verbindung zurück in den Pool
+        }
+        return count[0];
     }
 
     /**
-     * Überläd newConnection(WebSocket conn, String name, String id) mit einer Unique ID
+     * Volltextsuche über den SearchIndex (auch in archivierten Nachrichten). Neue Nachrichten sind nach spätestens
+     * SearchIndex.INDEX_INTERVAL ms auffindbar
      *
-     * @param conn Autor Connection
-     * @param name Atuor Name
-     * @return Generiertes User Objekt
+     * @param room   Raum
+     * @param query  Suchbegriffe
+     * @param author Nur Nachrichten dieses Autors (null = alle)
+     * @param from   start-Wert (ms)
+     * @param to     end-Wert (ms)
+     * @param cursor Cursor der vorherigen Seite (Anzahl schon gelieferter Treffer) oder null
+     * @param limit  Maximale Anzahl Treffer
+     * @return Seite an Treffern oder null, wenn die Suche nicht verfügbar ist
      */
-    public String newConnection(WebSocket conn, String name) {
-        return newConnection(conn, name, Util.generateUniqueString(10, User.getUser_ids()));
+    @Override
+    public MessagePage searchMessages(String room, String query, String author, long from, long to, String cursor, int limit) {
+        if (search == null) {
+            return null;
+        }
+        if (from > to) {    //Sollten die Werte vertauscht sein, werden diese einfach korrigiert
+            long t = to;
+            to = from;
+            from = t;
+        }
+        return search.search(room, query, author, from, to, cursor, limit);
     }
 
     /**
-     * Es wird ein neues User Objekt erstellt mit geg. Connection, Name und ID
+     * Speichert eine neue, auf diesem Knoten erstellte Nachricht (eine ID-Kollision wird als Fehler geloggt, s. MessageStore)
      *
-     * @param conn Conncetion des Users
-     * @param name Name des Users
-     * @param id   Unique ID des Users
-     * @return Generiertes User Objekt
+     * @param message Nachricht
      */
-    public String newConnection(WebSocket conn, String name, String id) {
-        return User.createNewUser(conn, name, id).getId();
+    @Override
+    public void newMessage(ChatMessage message) {
+        commitNewMessage(message, false);
     }
 
     /**
-     * Entfernt den entsprechenden User wenn dieser disconnected
+     * Speichert eine fertige Nachricht, deren ID schon vergeben ist (z.B. von einem anderen Knoten). Die ID wird nie
+     * geändert, existiert sie bereits (z.B. bei einer gemeinsamen Datenbank), gilt die Nachricht als gespeichert
      *
-     * @param conn User-Connection
+     * @param message Nachricht
      */
-    public void connectionClose(WebSocket conn) {
-        User.removeUser(conn);
+    @Override
+    public void storeMessage(ChatMessage message) {
+        commitNewMessage(message, true);
+    }
+
+    //Speichert die Nachricht (Cache + Hintergrund-Speicherung), replicated: ID eines anderen Knotens (s. storeMessage)
+    private void commitNewMessage(ChatMessage message, boolean replicated) {
+        if (cache != null) {
+            cache.add(message);     //write-through
+        }
+        if (writer != null) {
+            try {
+                writer.submit(message, replicated);     //Wird im Hintergrund (gesammelt) gespeichert
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log(e.getMessage() + " @server.DatabaseHandler.commitNewMessage InterruptedException");
+            } catch (IllegalStateException e) {
+                log(e.getMessage() + " @server.DatabaseHandler.commitNewMessage, writing synchronously");
+            }
+        }
+        insertMessage(message, replicated);
     }
 
     /**
-     * Gibt alle Nachrichten IDs zurück
+     * Speichert eine Nachricht sofort (synchron) in der Datenbank
      *
-     * @return Liste an IDs
+     * @param message    Nachricht
+     * @param replicated ID eines anderen Knotens: bei einer Kollision gilt die Nachricht als gespeichert (sonst wird die Kollision
+     *                   als Fehler geloggt, die ID wird nie geändert, da die Nachricht schon verteilt wurde)
      */
-    private List<String> getAllMessageIDs() {
-        List<String> ids = new ArrayList<>();
-
-        String sql = "SELECT id FROM public";   //public = Table name
+    private void insertMessage(ChatMessage message, boolean replicated) {
+        String sql = "INSERT INTO public(id,content,author,author_id,time,room) VALUES(?,?,?,?,?,?)"; //SQL für neuen Eintrag
+        if (replicated) {
+            sql += " ON CONFLICT(id) DO NOTHING";
+        }
         try {
-            Statement stmt = sqliteconn.createStatement();
-            ResultSet rs = stmt.executeQuery(sql);
-            while (rs.next()) {
-                ids.add(rs.getString("id"));
+            synchronized (writeStatements) {    //Das gecachte Statement darf nur von einem Thread gleichzeitig verwendet werden
+                PreparedStatement pstmt = writeStatements.get(sql);  //Führe SQL aus
+                pstmt.setString(1, message.getId());
+                pstmt.setString(2, message.getContent());
+                pstmt.setString(3, message.getAuthor());
+                pstmt.setString(4, message.getAuthor_id());
+                pstmt.setLong(5, message.getTimeMillis());
+                pstmt.setString(6, message.getRoom());
+                pstmt.executeUpdate();
             }
-            return ids;
         } catch (SQLException e) {
-            log(e.getMessage() + " @server.DatabaseHandler.getALlMessageIDs SQLException");
+            if (isConstraintViolation(e)) {     //ID existiert bereits (sehr unwahrscheinlich)
+                Util.log(AsyncLogger.Level.ERROR, "Message ID collision on " + message.getId() + ", message not stored @server.DatabaseHandler.insertMessage");
+                return;
+            }
+            log(e.getMessage() + " @server.DatabaseHandler.insertMessage");
+            e.printStackTrace();
+        } catch (NullPointerException e) {
+            log(e.getMessage() + " @server.DatabaseHandler.insertMessage");
+            e.printStackTrace();
         }
-        return ids;
     }
 
     /**
-     * Überprüft ob der public Table existiert und erstellt diesen ggf. (Dort werden alle Nachrichten gespeichert)
+     * Überprüft, ob die SQLException durch eine verletzte Constraint (z.B. doppelter Primary Key) ausgelöst wurde
+     *
+     * @param e SQLException
+     * @return true bei SQLITE_CONSTRAINT
      */
-    public void checkTable() {
+    private boolean isConstraintViolation(SQLException e) {
+        return (e.getErrorCode() & 0xFF) == SQLITE_CONSTRAINT;  //Auch erweiterte Codes (z.B. SQLITE_CONSTRAINT_PRIMARYKEY)
+    }
+
+    /**
+     * Überprüft ob der public Table existiert und erstellt diesen ggf. (Dort werden die Nachrichten aller Räume gespeichert).
+     * Ältere Datenbanken (time als text, ohne Index, ohne Raum) werden dabei automatisch auf die aktuelle Schema-Version gebracht.
+     * Die Schema-Version wird erst gesetzt, wenn alle Schritte erfolgreich waren, eine fehlgeschlagene Migration wird also beim
+     * nächsten Start wiederholt
+     *
+     * @throws SQLException Wenn eine Migration fehlschlägt
+     */
+    public void checkTable() throws SQLException {
         String userTable = "CREATE TABLE IF NOT EXISTS public (\n"
                 + "     id text PRIMARY KEY, \n"
                 + "     content text,\n"
                 + "     author text,\n"
                 + "     author_id text,\n"
-                + "     time text\n"
+                + "     time INTEGER NOT NULL,\n"
+                + "     room text NOT NULL DEFAULT '" + Room.DEFAULT + "'\n"
                 + ");";
-        executeSQL(userTable);
+        try (Statement stmt = sqliteconn.createStatement()) {
+            stmt.execute(userTable);
+
+            if (getSchemaVersion() < 1 && "text".equalsIgnoreCase(getColumnType("public", "time"))) {
+                migrateTimeColumn();
+            }
+            if (getSchemaVersion() < 2 && getColumnType("public", "room") == null) {   //Schema 2: Raum pro Nachricht, alte Nachrichten gehören zu Room.DEFAULT
+                log("Migrating table public to schema version 2 (room column)");
+                stmt.execute("ALTER TABLE public ADD COLUMN room text NOT NULL DEFAULT '" + Room.DEFAULT + "';");
+                writeStatements.invalidate();
+                if (readers != null) {
+                    readers.invalidateStatements();
+                }
+            }
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_public_time ON public(time, id);");  //B-Tree Index für Zeitraum-Abfragen (Archivierung)
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_public_room_time ON public(room, time, id);");  //Zeitraum-Abfragen pro Raum
+            stmt.execute("PRAGMA user_version = " + SCHEMA_VERSION + ";");
+        }
+    }
+
+    /**
+     * Migriert den public Table von "time text" auf "time INTEGER" (epoch ms). Läuft in einer Transaktion,
+     * schlägt ein Schritt fehl (z.B. eine Nachricht ohne Zeit), bleibt die alte Tabelle unverändert
+     *
+     * @throws SQLException Wenn die Migration fehlgeschlagen ist (und zurückgerollt wurde)
+     */
+    private void migrateTimeColumn() throws SQLException {
+        log("Migrating table public to schema version 1 (time as INTEGER)");
+        try (Statement stmt = sqliteconn.createStatement()) {
+            sqliteconn.setAutoCommit(false);
+            stmt.execute("CREATE TABLE public_migrated (\n"
+                    + "     id text PRIMARY KEY, \n"
+                    + "     content text,\n"
+                    + "     author text,\n"
+                    + "     author_id text,\n"
+                    + "     time INTEGER NOT NULL\n"
+                    + ");");
+            int rows = stmt.executeUpdate("INSERT INTO public_migrated(id,content,author,author_id,time) "
+                    + "SELECT id,content,author,author_id,CAST(time AS INTEGER) FROM public");
+            stmt.execute("DROP TABLE public");
+            stmt.execute("ALTER TABLE public_migrated RENAME TO public");
+            sqliteconn.commit();
+            writeStatements.invalidate();   //Statements der alten Tabelle sind ungültig
+            if (readers != null) {
+                readers.invalidateStatements();
+            }
+            log("Migrated " + rows + " messages");
+        } catch (SQLException e) {
+            log(e.getMessage() + " @server.DatabaseHandler.migrateTimeColumn SQLException");
+            try {
+                sqliteconn.rollback();
+            } catch (SQLException ex) {
+                log(ex.getMessage() + " @server.DatabaseHandler.migrateTimeColumn rollback SQLException");
+            }
+            throw e;
+        } finally {
+            try {
+                sqliteconn.setAutoCommit(true);
+            } catch (SQLException e) {
+                log(e.getMessage() + " @server.DatabaseHandler.migrateTimeColumn SQLException");
+            }
+        }
+    }
+
+    //Gibt die Schema-Version der Datenbank zurück (PRAGMA user_version, 0 = vor der Versionierung)
+    private int getSchemaVersion() {
+        try (Statement stmt = sqliteconn.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        } catch (SQLException e) {
+            log(e.getMessage() + " @server.DatabaseHandler.getSchemaVersion SQLException");
+            return 0;
+        }
+    }
+
+    /**
+     * Ermittelt den deklarierten Typ einer Spalte
+     *
+     * @param table  Table name
+     * @param column Spalten name
+     * @return Typ (z.B. "text") oder null
+     */
+    private String getColumnType(String table, String column) {
+        try (Statement stmt = sqliteconn.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (column.equals(rs.getString("name"))) {
+                    return rs.getString("type");
+                }
+            }
+        } catch (SQLException e) {
+            log(e.getMessage() + " @server.DatabaseHandler.getColumnType SQLException");
+        }
+        return null;
     }
 
     /**
@@ -192,14 +660,62 @@ public class DatabaseHandler {
      * @param sql sql-String to execute
      */
     private void executeSQL(String sql) {
-        try {
-            Statement stmt = sqliteconn.createStatement();
+        try (Statement stmt = sqliteconn.createStatement()) {
             stmt.execute(sql);
         } catch (SQLException e) {
             log(e.getMessage() + "@server.DatabaseHandler.executeSQL SQLException");
         }
     }
 
+    /**
+     * Schreibt alle noch wartenden Nachrichten und schließt die Datenbank-Verbindungen
+     */
+    @Override
+    public void close() {
+        if (archiver != null) {
+            archiver.shutdown();
+            try {
+                archiver.awaitTermination(5, TimeUnit.SECONDS);     //Ein laufender Durchgang soll seine Partition noch abschließen
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (search != null) {
+            search.close();
+        }
+        if (writer != null) {
+            writer.close();     //Schließt auch sqliteconn
+            writer = null;
+        }
+        if (readers != null) {
+            readers.close();
+        }
+        try {
+            writeStatements.invalidate();
+            sqliteconn.close();
+        } catch (SQLException e) {
+            log(e.getMessage() + " @server.DatabaseHandler.close SQLException");
+        }
+    }
+
+    //Gibt die Datenbank Statistiken in der Konsole aus
+    @Override
+    public void printStats() {
+        if (writer != null) {
+            writer.printStats();
+        }
+        if (cache != null) {
+            cache.printStats();
+        }
+        if (archive != null) {
+            archive.printStats();
+        }
+        if (search != null) {
+            search.printStats();
+        }
+        StatementCache.printStats();
+    }
+
     //log the message to the logfile and console in format [dd-MM-yyyy hh:mm:ss] <message>
     private void log(String s) {
         Util.log(s);
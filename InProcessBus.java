@@ -0,0 +1,58 @@
+package server;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * MessageBus für einen einzelnen Knoten: jedes Event wird direkt (auf dem Thread des Aufrufers) an den eigenen Listener zugestellt.
+ * Verhält sich damit wie bisher ohne Bus, für mehrere Knoten s. PeerBus
+ */
+public class InProcessBus implements MessageBus {
+    private final String nodeId;
+    private long seq;                   //Letzte vergebene Nummer (Zugriff nur mit Lock auf this)
+    private volatile Consumer<HashMap<String, String>> listener;
+    private final LongAdder published = new LongAdder();
+
+    /**
+     * Erstellt den Bus
+     *
+     * @param nodeId ID des Knotens
+     */
+    public InProcessBus(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    @Override
+    public void publish(HashMap<String, String> event) {
+        synchronized (this) {
+            event.put("origin", nodeId);
+            event.put("seq", String.valueOf(++seq));
+        }
+        published.increment();
+        Consumer<HashMap<String, String>> l = listener;
+        if (l != null) {
+            l.accept(event);
+        }
+    }
+
+    @Override
+    public void setListener(Consumer<HashMap<String, String>> listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void printStats() {
+        System.out.println("Message bus (in-process, node " + nodeId + "): " + published.sum() + " published");
+    }
+
+    @Override
+    public void close() {
+        listener = null;
+    }
+}
@@ -0,0 +1,547 @@
+package server;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lasttest für den Server über das echte WebSocket-Protokoll: simuliert CLIENTS Clients (connect bzw. connect_with_id),
+ * die zusammen RATE Chat-Nachrichten pro Sekunde schicken und regelmäßig die History anfragen.
+ * <p>
+ * Jede Chat-Nachricht enthält ihren Sendezeitpunkt, jeder empfangende Client misst daraus die Ende-zu-Ende Latenz
+ * (Fan-out). Zusätzlich wird der Heap des Servers über dessen Metrics-Endpunkt abgefragt. Das Ergebnis wird als JSON
+ * geschrieben (REPORT), damit Läufe verschiedener Versionen verglichen werden können.
+ * <p>
+ * SLOW_CLIENTS der Clients lesen während der Messung nur langsam (SLOW_READ_DELAY pro Frame) oder gar nicht. Sie senden
+ * selbst nichts und zählen nicht zur Zustellquote, der Bericht zeigt dafür, was der Server mit ihnen macht
+ * (Sende-Warteschlangen, verworfene Frames, getrennte Verbindungen, s. OutboundQueue.POLICY bzw. --outbound-policy).
+ * <p>
+ * Aufruf z.B.: java server.LoadGenerator --url=ws://localhost:5555 --clients=200 --rate=500 --duration=60
+ * oder mit langsamen Clients: --clients=50 --slow-clients=5 --slow-read-delay=-1
+ */
+public class LoadGenerator {
+    public static String URL = "ws://localhost:5555";                   //Adresse des Servers
+    public static int CLIENTS = 100;                                    //Anzahl simulierter Clients
+    public static double RATE = 100;                                    //Chat-Nachrichten pro Sekunde (über alle Clients)
+    public static int DURATION = 30;                                    //Dauer der Messung (s)
+    public static double HISTORY_RATE = 1;                              //History-Anfragen pro Sekunde (über alle Clients)
+    public static int HISTORY_LIMIT = 100;                              //Nachrichten pro History-Anfrage
+    public static double WITH_ID = 0.2;                                 //Anteil der Clients, die sich mit connect_with_id verbinden
+    public static boolean BINARY = false;                               //MessageCodec statt Legacy Format verwenden
+    public static int MESSAGE_SIZE = 64;                                //Ungefähre Länge einer Chat-Nachricht (Zeichen)
+    public static long CONNECT_TIMEOUT = 30_000;                        //So lange (ms) wird auf alle Verbindungen gewartet
+    public static long DRAIN_TIME = 2_000;                              //So lange (ms) wird nach dem Senden noch empfangen
+    public static String METRICS_URL = "http://127.0.0.1:9555/metrics"; //Metrics-Endpunkt des Servers (leer = kein Heap)
+    public static String REPORT = "loadtest-report.json";               //Ziel-Datei des Berichts
+    public static int SLOW_CLIENTS = 0;                                 //Anzahl Clients, die langsam oder gar nicht lesen
+    public static long SLOW_READ_DELAY = 50;                            //So lange (ms) liest ein langsamer Client pro Frame nicht weiter (< 0 = gar nicht während der Messung)
+
+    private static final String MARKER = "lg:";     //Präfix der eigenen Chat-Nachrichten (lg:<Client>:<nanoTime>:<Füllung>)
+
+    private final List<SimulatedClient> clients = new ArrayList<>();
+    private final CountDownLatch connected;
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong sendRejected = new AtomicLong();
+
+    //Messwerte (in ns)
+    private final Metrics.Histogram connectLatency = new Metrics.Histogram();
+    private final Metrics.Histogram fanoutLatency = new Metrics.Histogram();
+    private final Metrics.Histogram historyLatency = new Metrics.Histogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder expectedDeliveries = new LongAdder();
+    private final LongAdder historyRequests = new LongAdder();
+    private final LongAdder historyResponses = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private volatile boolean measuring;
+
+    //Langsame Clients
+    private final LongAdder slowDelivered = new LongAdder();
+    private final LongAdder dropNotices = new LongAdder();
+    private final LongAdder framesDroppedReported = new LongAdder();
+    private final LongAdder slowConsumerCloses = new LongAdder();
+
+    //Heap des Servers (Bytes, -1 = unbekannt)
+    private volatile long heapStart = -1;
+    private volatile long heapEnd = -1;
+    private final AtomicLong heapMax = new AtomicLong(-1);
+
+    //Sende-Warteschlangen des Servers (s. OutboundQueue, -1 = unbekannt)
+    private final AtomicLong queueDepthMax = new AtomicLong(-1);
+    private final AtomicLong laggingMax = new AtomicLong(-1);
+    private volatile Map<String, Double> outboundStart = Collections.emptyMap();
+    private volatile Map<String, Double> outboundEnd = Collections.emptyMap();
+    private static final String[] OUTBOUND_COUNTERS = {"chat_outbound_dropped_total", "chat_outbound_coalesced_total", "chat_outbound_disconnects_total"};
+
+    private LoadGenerator() {
+        connected = new CountDownLatch(CLIENTS);
+    }
+
+    /**
+     * entry point
+     *
+     * @param args --key=value Einstellungen (s. parseArgs)
+     * @throws Exception Error
+     */
+    public static void main(String[] args) throws Exception {
+        parseArgs(args);
+        System.exit(new LoadGenerator().run() ? 0 : 1);
+    }
+
+    /**
+     * Führt einen Lauf durch: verbinden, Last erzeugen, auslaufen lassen, Bericht schreiben
+     *
+     * @return false, wenn sich nicht alle Clients verbinden konnten
+     * @throws Exception Error
+     */
+    private boolean run() throws Exception {
+        System.out.println("Connecting " + CLIENTS + " clients to " + URL + " (" + (BINARY ? "binary" : "legacy") + " format"
+                + (SLOW_CLIENTS > 0 ? ", " + SLOW_CLIENTS + " slow" : "") + ")");
+        long runStart = System.currentTimeMillis();
+        for (int i = 0; i < CLIENTS; i++) {
+            SimulatedClient client = new SimulatedClient(i, new URI(URL + (BINARY ? "/?" + Server.BINARY_CODEC_QUERY : "")));
+            clients.add(client);
+            client.connect();
+        }
+        boolean allConnected = connected.await(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+        if (!allConnected) {
+            System.out.println("Only " + (CLIENTS - connected.getCount()) + " of " + CLIENTS + " clients connected (" + failed.get() + " failed)");
+        }
+        List<SimulatedClient> active = new ArrayList<>();     //Verbundene Clients, die normal lesen
+        for (SimulatedClient c : clients) {
+            if (c.ready && !c.slow) {
+                active.add(c);
+            }
+        }
+        if (active.isEmpty()) {
+            System.out.println("No client connected, aborting");
+            return false;
+        }
+
+        outboundStart = scrape(OUTBOUND_COUNTERS);
+        heapStart = scrapeHeap();
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(3, r -> {     //Chat, History und Heap getrennt, damit ein langsamer Scrape die Rate nicht stört
+            Thread t = new Thread(r, "load-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        measuring = true;
+        long start = System.nanoTime();
+        AtomicInteger next = new AtomicInteger();
+        if (RATE > 0) {
+            scheduler.scheduleAtFixedRate(() -> {
+                SimulatedClient c = active.get(Math.floorMod(next.getAndIncrement(), active.size()));
+                c.sendChat(active.size());
+            }, 0, Math.max(1, (long) (1e9 / RATE)), TimeUnit.NANOSECONDS);
+        }
+        if (HISTORY_RATE > 0) {
+            scheduler.scheduleAtFixedRate(() -> active.get(ThreadLocalRandom.current().nextInt(active.size())).requestHistory(),
+                    0, Math.max(1, (long) (1e9 / HISTORY_RATE)), TimeUnit.NANOSECONDS);
+        }
+        scheduler.scheduleAtFixedRate(() -> {
+            Map<String, Double> values = scrape("jvm_heap_used_bytes", "chat_outbound_queue_depth", "chat_outbound_lagging");
+            updateHeapMax(values.getOrDefault("jvm_heap_used_bytes", -1.0).longValue());
+            queueDepthMax.accumulateAndGet(values.getOrDefault("chat_outbound_queue_depth", -1.0).longValue(), Math::max);
+            laggingMax.accumulateAndGet(values.getOrDefault("chat_outbound_lagging", -1.0).longValue(), Math::max);
+        }, 1, 1, TimeUnit.SECONDS);
+
+        for (int s = 1; s <= DURATION; s++) {     //Fortschritt einmal pro Sekunde
+            Thread.sleep(1000);
+            System.out.println("[" + s + "/" + DURATION + " s] sent " + sent.sum() + ", delivered " + delivered.sum()
+                    + ", fan-out p99 " + fanoutLatency.getPercentile(0.99) / 1000 + " us");
+        }
+        scheduler.shutdownNow();
+        long sendNanos = System.nanoTime() - start;
+        Thread.sleep(DRAIN_TIME);       //Noch unterwegs befindliche Nachrichten empfangen
+        measuring = false;
+        outboundEnd = scrape(OUTBOUND_COUNTERS);
+        heapEnd = scrapeHeap();
+        updateHeapMax(heapEnd);
+
+        for (SimulatedClient c : clients) {
+            c.close();
+        }
+        String report = report(runStart, sendNanos, active.size());
+        Files.write(Paths.get(REPORT), report.getBytes(StandardCharsets.UTF_8));
+        System.out.println(report);
+        System.out.println("Report written to " + Paths.get(REPORT).toAbsolutePath());
+        return allConnected;
+    }
+
+    /**
+     * Erstellt den Bericht als JSON
+     *
+     * @param runStart  Start des Laufs (ms)
+     * @param sendNanos Dauer der Last-Phase (ns)
+     * @param active    Anzahl verbundener Clients
+     * @return JSON
+     */
+    private String report(long runStart, long sendNanos, int active) {
+        double seconds = sendNanos / 1e9;
+        long expected = expectedDeliveries.sum();
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        field(sb, "tool", "\"LoadGenerator\"");
+        field(sb, "server_version", quote(Server.__version));
+        field(sb, "started", quote(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date(runStart))));
+        sb.append("  \"config\": {");
+        sb.append("\"url\": ").append(quote(URL)).append(", \"clients\": ").append(CLIENTS).append(", \"rate\": ").append(RATE)
+                .append(", \"duration_s\": ").append(DURATION).append(", \"history_rate\": ").append(HISTORY_RATE)
+                .append(", \"history_limit\": ").append(HISTORY_LIMIT).append(", \"with_id\": ").append(WITH_ID)
+                .append(", \"binary\": ").append(BINARY).append(", \"message_size\": ").append(MESSAGE_SIZE)
+                .append(", \"slow_clients\": ").append(SLOW_CLIENTS).append(", \"slow_read_delay_ms\": ").append(SLOW_READ_DELAY).append("},\n");
+        sb.append("  \"clients\": {\"connected\": ").append(active).append(", \"failed\": ").append(failed.get()).append("},\n");
+        sb.append("  \"messages\": {\"sent\": ").append(sent.sum()).append(", \"send_rejected\": ").append(sendRejected.get())
+                .append(", \"expected_deliveries\": ").append(expected).append(", \"delivered\": ").append(delivered.sum())
+                .append(", \"delivery_ratio\": ").append(expected == 0 ? 0 : round((double) delivered.sum() / expected))
+                .append(", \"errors\": ").append(errors.sum()).append("},\n");
+        sb.append("  \"throughput\": {\"sent_per_s\": ").append(round(sent.sum() / seconds))
+                .append(", \"delivered_per_s\": ").append(round(delivered.sum() / seconds))
+                .append(", \"received_bytes_per_s\": ").append(round(bytesReceived.sum() / seconds)).append("},\n");
+        sb.append("  \"history\": {\"requests\": ").append(historyRequests.sum()).append(", \"responses\": ").append(historyResponses.sum()).append("},\n");
+        latency(sb, "connect_latency_ms", connectLatency);
+        latency(sb, "fanout_latency_ms", fanoutLatency);
+        latency(sb, "history_latency_ms", historyLatency);
+        sb.append("  \"slow_consumers\": {\"delivered\": ").append(slowDelivered.sum()).append(", \"drop_notices\": ").append(dropNotices.sum())
+                .append(", \"frames_dropped_reported\": ").append(framesDroppedReported.sum())
+                .append(", \"closed_as_slow\": ").append(slowConsumerCloses.sum()).append("},\n");
+        sb.append("  \"server_outbound\": {\"queue_depth_max\": ").append(queueDepthMax.get()).append(", \"lagging_max\": ").append(laggingMax.get())
+                .append(", \"dropped\": ").append(delta("chat_outbound_dropped_total")).append(", \"coalesced\": ").append(delta("chat_outbound_coalesced_total"))
+                .append(", \"disconnects\": ").append(delta("chat_outbound_disconnects_total")).append("},\n");
+        sb.append("  \"server_heap_bytes\": {\"start\": ").append(heapStart).append(", \"max\": ").append(heapMax.get())
+                .append(", \"end\": ").append(heapEnd).append("}\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static void field(StringBuilder sb, String name, String value) {
+        sb.append("  \"").append(name).append("\": ").append(value).append(",\n");
+    }
+
+    private static void latency(StringBuilder sb, String name, Metrics.Histogram h) {
+        sb.append("  \"").append(name).append("\": {\"count\": ").append(h.getCount())
+                .append(", \"mean\": ").append(h.getCount() == 0 ? 0 : round(h.getSum() / (double) h.getCount() / 1e6));
+        sb.append(", \"p50\": ").append(round(h.getPercentile(0.5) / 1e6))
+                .append(", \"p90\": ").append(round(h.getPercentile(0.9) / 1e6))
+                .append(", \"p99\": ").append(round(h.getPercentile(0.99) / 1e6))
+                .append(", \"p999\": ").append(round(h.getPercentile(0.999) / 1e6));
+        sb.append(", \"max\": ").append(round(h.getMax() / 1e6)).append("},\n");
+    }
+
+    private static double round(double d) {
+        return Math.round(d * 1000) / 1000.0;
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    //Zuwachs eines Zählers des Servers während der Messung (-1 = unbekannt)
+    private long delta(String name) {
+        Double start = outboundStart.get(name);
+        Double end = outboundEnd.get(name);
+        return start == null || end == null ? -1 : (long) (end - start);
+    }
+
+    //Liest jvm_heap_used_bytes vom Metrics-Endpunkt des Servers (Bytes oder -1)
+    private long scrapeHeap() {
+        return scrape("jvm_heap_used_bytes").getOrDefault("jvm_heap_used_bytes", -1.0).longValue();
+    }
+
+    /**
+     * Liest Werte ohne Label vom Metrics-Endpunkt des Servers
+     *
+     * @param names Namen der Werte
+     * @return Gefundene Werte (leer, wenn der Server keinen Metrics-Endpunkt hat)
+     */
+    private Map<String, Double> scrape(String... names) {
+        Map<String, Double> values = new HashMap<>();
+        if (METRICS_URL == null || METRICS_URL.isEmpty()) {
+            return values;
+        }
+        Set<String> wanted = new HashSet<>(Arrays.asList(names));
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(METRICS_URL).openConnection();
+            conn.setConnectTimeout(1000);
+            conn.setReadTimeout(1000);
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int space = line.indexOf(' ');
+                    if (space > 0 && wanted.contains(line.substring(0, space))) {
+                        values.put(line.substring(0, space), Double.parseDouble(line.substring(space + 1).trim()));
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            //Server ohne Metrics-Endpunkt -> keine Werte im Bericht
+        }
+        return values;
+    }
+
+    private void updateHeapMax(long heap) {
+        heapMax.accumulateAndGet(heap, Math::max);
+    }
+
+    /**
+     * Übernimmt Einstellungen aus den Programm-Argumenten (--key=value)
+     *
+     * @param args Programm-Argumente
+     */
+    private static void parseArgs(String[] args) {
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            String value = kv.length > 1 ? kv[1] : "";
+            switch (kv[0]) {
+                case "--url":
+                    URL = value;
+                    break;
+                case "--clients":
+                    CLIENTS = Integer.parseInt(value);
+                    break;
+                case "--rate":
+                    RATE = Double.parseDouble(value);
+                    break;
+                case "--duration":
+                    DURATION = Integer.parseInt(value);
+                    break;
+                case "--history-rate":
+                    HISTORY_RATE = Double.parseDouble(value);
+                    break;
+                case "--history-limit":
+                    HISTORY_LIMIT = Integer.parseInt(value);
+                    break;
+                case "--with-id":
+                    WITH_ID = Double.parseDouble(value);
+                    break;
+                case "--binary":
+                    BINARY = value.isEmpty() || Boolean.parseBoolean(value);
+                    break;
+                case "--message-size":
+                    MESSAGE_SIZE = Integer.parseInt(value);
+                    break;
+                case "--metrics":
+                    METRICS_URL = value;
+                    break;
+                case "--report":
+                    REPORT = value;
+                    break;
+                case "--slow-clients":
+                    SLOW_CLIENTS = Integer.parseInt(value);
+                    break;
+                case "--slow-read-delay":
+                    SLOW_READ_DELAY = Long.parseLong(value);
+                    break;
+                default:
+                    System.out.println("Unknown argument " + arg);
+            }
+        }
+    }
+
+    /**
+     * Ein simulierter Client
+     */
+    private class SimulatedClient extends WebSocketClient {
+        private final int index;
+        private final String name;
+        private final String fixedId;           //ID für connect_with_id (null = connect)
+        private final String padding;
+        private final long openStarted = System.nanoTime();
+        private final boolean slow;             //Liest langsam oder gar nicht (s. SLOW_CLIENTS)
+        private volatile boolean ready;         //connect_id empfangen
+        private volatile long historySent;      //Zeitpunkt der offenen History-Anfrage (0 = keine)
+
+        SimulatedClient(int index, URI uri) {
+            super(uri);
+            this.index = index;
+            this.name = "load-" + index;
+            this.slow = index >= CLIENTS - SLOW_CLIENTS;
+            this.fixedId = ThreadLocalRandom.current().nextDouble() < WITH_ID ? "lg" + Util.generateTimeOrderedId().substring(20) : null;
+            char[] fill = new char[Math.max(0, MESSAGE_SIZE - 32)];
+            Arrays.fill(fill, 'x');
+            this.padding = new String(fill);
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshake) {
+            HashMap<String, String> map = new HashMap<>();
+            map.put("type", fixedId == null ? "connect" : "connect_with_id");
+            map.put("content", name);
+            if (fixedId != null) {
+                map.put("id", fixedId);
+            }
+            send(map);
+        }
+
+        //Schickt eine Chat-Nachricht mit Sendezeitpunkt, jeder verbundene Client (auch dieser) soll sie bekommen
+        void sendChat(int recipients) {
+            HashMap<String, String> map = new HashMap<>();
+            map.put("type", "message");
+            map.put("content", MARKER + index + ":" + System.nanoTime() + ":" + padding);
+            if (send(map)) {
+                sent.increment();
+                expectedDeliveries.add(recipients);
+            }
+        }
+
+        //Fragt die History der letzten Minute an (höchstens eine offene Anfrage pro Client)
+        void requestHistory() {
+            if (historySent != 0) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            HashMap<String, String> map = new HashMap<>();
+            map.put("type", "request_message_history");
+            map.put("content", "");
+            map.put("from", String.valueOf(now - 60_000));
+            map.put("to", String.valueOf(now));
+            map.put("limit", String.valueOf(HISTORY_LIMIT));
+            historySent = System.nanoTime();
+            if (send(map)) {
+                historyRequests.increment();
+            } else {
+                historySent = 0;
+            }
+        }
+
+        private boolean send(HashMap<String, String> map) {
+            if (!isOpen()) {
+                sendRejected.incrementAndGet();
+                return false;
+            }
+            try {
+                if (BINARY) {
+                    send(MessageCodec.encode(map));
+                } else {
+                    send(Server.objectToString(map));     //Legacy Format wie der Server
+                }
+                return true;
+            } catch (IOException | RuntimeException e) {
+                sendRejected.incrementAndGet();
+                return false;
+            }
+        }
+
+        //Hält den Lese-Thread des Clients an, der Server sieht dadurch einen vollen Sendepuffer
+        private void stall() {
+            if (!slow || !measuring) {
+                return;
+            }
+            try {
+                if (SLOW_READ_DELAY >= 0) {
+                    Thread.sleep(SLOW_READ_DELAY);
+                }
+                while (SLOW_READ_DELAY < 0 && measuring) {
+                    Thread.sleep(50);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void onMessage(String message) {
+            stall();
+            bytesReceived.add(message.length());
+            try {
+                handle(Server.stringToMap(message));
+            } catch (IOException | ClassNotFoundException | IllegalArgumentException e) {
+                errors.increment();
+            }
+        }
+
+        @Override
+        public void onMessage(ByteBuffer bytes) {
+            stall();
+            bytesReceived.add(bytes.remaining());
+            try {
+                handle(MessageCodec.decode(bytes));
+            } catch (IllegalArgumentException e) {
+                errors.increment();
+            }
+        }
+
+        private void handle(HashMap<String, String> map) {
+            long now = System.nanoTime();
+            String type = map.get("type");
+            if (type == null) {
+                return;
+            }
+            switch (type) {
+                case "connect_id":
+                    if (!ready) {
+                        ready = true;
+                        connectLatency.record(now - openStarted);
+                        connected.countDown();
+                    }
+                    break;
+                case "message":
+                    String content = map.get("content");
+                    if (slow) {
+                        if (content != null && content.startsWith(MARKER)) {
+                            slowDelivered.increment();
+                        }
+                    } else if (measuring && content != null && content.startsWith(MARKER)) {
+                        int first = content.indexOf(':', MARKER.length());
+                        int second = content.indexOf(':', first + 1);
+                        if (first > 0 && second > first) {
+                            fanoutLatency.record(now - Long.parseLong(content.substring(first + 1, second)));
+                            delivered.increment();
+                        }
+                    }
+                    break;
+                case "message_history":
+                case "message_history_chunk":
+                    long sentAt = historySent;
+                    if (sentAt != 0) {
+                        historyLatency.record(now - sentAt);
+                        historyResponses.increment();
+                        historySent = 0;
+                    }
+                    break;
+                case "frames_dropped":
+                    dropNotices.increment();
+                    framesDroppedReported.add(Long.parseLong(map.get("content")));
+                    break;
+                case "error":
+                    errors.increment();
+                    break;
+            }
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            if (code == OutboundQueue.CLOSE_SLOW_CONSUMER) {
+                slowConsumerCloses.increment();
+            }
+            if (!ready && connected.getCount() > 0) {
+                failed.incrementAndGet();
+                connected.countDown();
+            }
+        }
+
+        @Override
+        public void onError(Exception ex) {
+            errors.increment();
+        }
+    }
+}
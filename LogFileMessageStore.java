@@ -0,0 +1,439 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Nachrichten-Speicher als Append-Only Log: Nachrichten werden der Reihe nach in memory-mapped Segment-Dateien
+ * (db/log/*.seg) geschrieben, statt Zeile für Zeile in SQLite eingefügt zu werden.
+ * <p>
+ * Aufbau eines Eintrags: [int Länge][long time][id][author][author_id][content][room], Strings als [int Bytes (-1 = null)][UTF-8]
+ * (ältere Einträge enden nach content und gehören zu Room.DEFAULT).
+ * Die Länge wird zuletzt geschrieben, ein Eintrag mit Länge 0 markiert das Ende des Segments (auch nach einem Absturz).
+ * Pro Segment gibt es einen dünnen Zeit-Index (alle INDEX_INTERVAL Bytes), über den Zeitraum-Abfragen direkt
+ * in der Nähe von from ansetzen. Der Index liegt nur im Speicher und wird beim Start aus den Segmenten aufgebaut.
+ * <p>
+ * Einträge stehen in der Reihenfolge, in der sie ankommen, nicht zwingend nach Zeit (z.B. Nachrichten anderer Knoten).
+ * Jedes Segment merkt sich, wie weit seine Einträge maximal hinter dem bis dahin spätesten Eintrag liegen (maxLateness),
+ * Abfragen berücksichtigen diesen Rückstand statt nur ORDER_TOLERANCE
+ */
+public class LogFileMessageStore implements MessageStore {
+    public static long SEGMENT_SIZE = 64L * 1024 * 1024;    //Größe einer Segment-Datei (Bytes)
+    public static int INDEX_INTERVAL = 4096;                //Abstand (Bytes) zwischen zwei Einträgen im Zeit-Index
+    public static long FORCE_INTERVAL = 1000;               //So oft (ms) wird das aktive Segment auf die Platte geschrieben
+    public static long ORDER_TOLERANCE = 5000;              //Mindest-Puffer (ms) beim Sortieren, größere Abweichungen kennt das Segment (maxLateness)
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final Path directory = Paths.get(System.getProperty("user.dir"), "db", "log");   //Ordner der Segmente
+    private final List<Segment> segments = new ArrayList<>();      //Alle Segmente, ältestes zuerst (Zugriff nur mit Lock auf this)
+    private Segment active;                                        //Segment, in das geschrieben wird
+    private long maxTime = Long.MIN_VALUE;                         //Spätester Eintrag im Log (Lock auf this)
+    private long lastForce = System.currentTimeMillis();
+    private boolean closed;
+
+    //Statistiken
+    private final LongAdder appends = new LongAdder();
+    private final LongAdder appendedBytes = new LongAdder();
+
+    /**
+     * Öffnet alle vorhandenen Segmente und baut deren Zeit-Index auf
+     *
+     * @throws IOException Error
+     */
+    public LogFileMessageStore() throws IOException {
+        Files.createDirectories(directory);
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+        }
+        long messages = 0;
+        for (Path file : files) {
+            Segment segment = Segment.open(file, Math.max(Files.size(file), SEGMENT_SIZE));
+            messages += segment.recover(maxTime);
+            maxTime = Math.max(maxTime, segment.maxTime);
+            segments.add(segment);
+        }
+        if (segments.isEmpty()) {
+            rollSegment(SEGMENT_SIZE);
+        } else {
+            active = segments.get(segments.size() - 1);
+        }
+        log("Opened message log with " + segments.size() + " segments and " + messages + " messages at " + directory);
+    }
+
+    //Das Log prüft keine IDs, eine neue und eine fertige Nachricht werden gleich gespeichert
+    @Override
+    public void newMessage(ChatMessage message) {
+        append(message);
+    }
+
+    @Override
+    public void storeMessage(ChatMessage message) {
+        append(message);
+    }
+
+    /**
+     * Hängt eine Nachricht an das aktive Segment an (bei Bedarf wird ein neues Segment angefangen)
+     *
+     * @param message Nachricht
+     */
+    private synchronized void append(ChatMessage message) {
+        if (closed) {
+            log("Message log is closed, dropping message " + message.getId() + " @server.LogFileMessageStore.append");
+            return;
+        }
+        byte[] id = bytes(message.getId());
+        byte[] author = bytes(message.getAuthor());
+        byte[] authorId = bytes(message.getAuthor_id());
+        byte[] content = bytes(message.getContent());
+        byte[] room = bytes(message.getRoom());
+        int length = 8 + 20 + len(id) + len(author) + len(authorId) + len(content) + len(room);
+
+        try {
+            if (!active.fits(length)) {
+                active.buffer.force();
+                rollSegment(Math.max(SEGMENT_SIZE, 4L + length + 4));
+            }
+        } catch (IOException e) {
+            log(e.getMessage() + " @server.LogFileMessageStore.append IOException");
+            return;
+        }
+        Segment s = active;
+        int pos = s.size;
+        s.indexIfNeeded(pos);
+        MappedByteBuffer buf = s.buffer;
+        buf.position(pos + 4);
+        buf.putLong(message.getTimeMillis());
+        put(buf, id);
+        put(buf, author);
+        put(buf, authorId);
+        put(buf, content);
+        put(buf, room);
+        if (buf.position() + 4 <= buf.capacity()) {
+            buf.putInt(buf.position(), 0);      //Ende-Markierung (überschreibt evtl. Reste eines abgebrochenen Eintrags)
+        }
+        buf.putInt(pos, length);                //Erst jetzt ist der Eintrag gültig
+        s.size = pos + 4 + length;
+        s.track(message.getTimeMillis(), maxTime);
+        maxTime = Math.max(maxTime, message.getTimeMillis());
+
+        appends.increment();
+        appendedBytes.add(4 + length);
+        long now = System.currentTimeMillis();
+        if (now - lastForce >= FORCE_INTERVAL) {
+            buf.force();
+            lastForce = now;
+        }
+    }
+
+    //Fängt ein neues Segment an (Lock auf this muss gehalten werden)
+    private void rollSegment(long capacity) throws IOException {
+        long number = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).number + 1;
+        Path file = directory.resolve(String.format("%010d%s", number, SEGMENT_SUFFIX));
+        active = Segment.open(file, capacity);
+        segments.add(active);
+    }
+
+    @Override
+    public List<Map<String, String>> getAllMessages(String room, long from, long to) {
+        List<Map<String, String>> messages = new ArrayList<>();
+        streamMessages(room, from, to, messages::add);
+        return messages;
+    }
+
+    @Override
+    public MessagePage getMessagePage(String room, long from, long to, String cursor, int limit) {
+        if (from > to) {    //Sollten die Werte vertauscht sein, werden diese einfach korrigiert
+            long t = to;
+            to = from;
+            from = t;
+        }
+        long afterTime = cursor == null ? from : MessagePage.cursorTime(cursor);   //Ohne Cursor: alles ab from (jede ID ist > "")
+        String afterId = cursor == null ? "" : MessagePage.cursorId(cursor);
+
+        List<Map<String, String>> messages = new ArrayList<>(Math.min(limit, 256));
+        boolean[] hasMore = {false};
+        scan(room, from, to, afterTime, afterId, m -> {
+            if (messages.size() == limit) {     //Eine Nachricht mehr gefunden -> es gibt eine weitere Seite
+                hasMore[0] = true;
+                return false;
+            }
+            messages.add(m.toMap());
+            return true;
+        });
+
+        String nextCursor = null;
+        if (hasMore[0]) {
+            Map<String, String> last = messages.get(messages.size() - 1);
+            nextCursor = MessagePage.cursor(Long.parseLong(last.get("time")), last.get("id"));
+        }
+        return new MessagePage(messages, hasMore[0], nextCursor);
+    }
+
+    @Override
+    public long streamMessages(String room, long from, long to, Predicate<Map<String, String>> visitor) {
+        if (from > to) {    //Sollten die Werte vertauscht sein, werden diese einfach korrigiert
+            long t = to;
+            to = from;
+            from = t;
+        }
+        long[] count = {0};
+        scan(room, from, to, from, "", m -> {
+            count[0]++;
+            return visitor.test(m.toMap());
+        });
+        return count[0];
+    }
+
+    //Das Log hat keinen Volltext-Index (Suche nur mit DatabaseHandler)
+    @Override
+    public MessagePage searchMessages(String room, String query, String author, long from, long to, String cursor, int limit) {
+        return null;
+    }
+
+    /**
+     * Liest alle Einträge eines Raums mit from <= time <= to, die hinter (afterTime, afterId) liegen, sortiert nach (time, id).
+     * Einträge können im Log vertauscht sein, sie werden daher in einem Puffer gesammelt und erst ausgegeben, wenn kein
+     * früherer Eintrag mehr folgen kann. Wie weit ein späterer Eintrag noch zurückliegen kann, ergibt sich aus maxLateness
+     * der restlichen Segmente (mindestens ORDER_TOLERANCE)
+     *
+     * @param visitor Bekommt jede Nachricht, gibt false zurück um abzubrechen
+     */
+    private void scan(String room, long from, long to, long afterTime, String afterId, Predicate<ChatMessage> visitor) {
+        Segment[] snapshot;
+        int[] sizes;
+        synchronized (this) {   //Stand der Segmente festhalten, gelesen wird ohne Lock
+            snapshot = segments.toArray(new Segment[0]);
+            sizes = new int[snapshot.length];
+            for (int i = 0; i < snapshot.length; i++) {
+                sizes[i] = snapshot[i].size;
+            }
+        }
+        long[] tolerance = new long[snapshot.length + 1];     //Maximaler Rückstand aller Einträge ab Segment i
+        tolerance[snapshot.length] = ORDER_TOLERANCE;
+        for (int i = snapshot.length - 1; i >= 0; i--) {
+            tolerance[i] = Math.max(tolerance[i + 1], snapshot[i].maxLateness);
+        }
+        PriorityQueue<ChatMessage> pending = new PriorityQueue<>(Comparator.comparingLong(ChatMessage::getTimeMillis).thenComparing(ChatMessage::getId));
+
+        segments:
+        for (int i = 0; i < snapshot.length; i++) {
+            Segment s = snapshot[i];
+            if (sizes[i] == 0 || s.maxTime < from || s.minTime > to) {
+                continue;
+            }
+            ByteBuffer buf = s.buffer.duplicate();
+            int pos = s.startOffset(from);
+            while (pos < sizes[i]) {
+                int length = buf.getInt(pos);
+                long time = buf.getLong(pos + 4);
+                while (!pending.isEmpty() && pending.peek().getTimeMillis() < time - tolerance[i]) {
+                    if (!visitor.test(pending.poll())) {
+                        return;
+                    }
+                }
+                if (time > to + tolerance[i]) {  //Ab hier kann nichts mehr im Zeitraum liegen
+                    break segments;
+                }
+                if (time >= from && time <= to && time >= afterTime) {
+                    ChatMessage m = read(buf, pos + 12, pos + 4 + length, time);
+                    if (room.equals(m.getRoom()) && (time > afterTime || m.getId().compareTo(afterId) > 0)) {
+                        pending.add(m);
+                    }
+                }
+                pos += 4 + length;
+            }
+        }
+        while (!pending.isEmpty()) {
+            if (!visitor.test(pending.poll())) {
+                return;
+            }
+        }
+    }
+
+    //Liest die Strings eines Eintrags ab pos (hinter Länge und Zeit) bis end
+    private static ChatMessage read(ByteBuffer buf, int pos, int end, long time) {
+        String[] fields = new String[5];
+        for (int i = 0; i < fields.length && pos < end; i++) {
+            int n = buf.getInt(pos);
+            pos += 4;
+            if (n >= 0) {
+                byte[] b = new byte[n];
+                buf.get(pos, b);
+                fields[i] = new String(b, StandardCharsets.UTF_8);
+                pos += n;
+            }
+        }
+        return new ChatMessage(fields[0], fields[3], fields[1], fields[2], Long.toString(time), fields[4]);
+    }
+
+    private static byte[] bytes(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int len(byte[] b) {
+        return b == null ? 0 : b.length;
+    }
+
+    private static void put(ByteBuffer buf, byte[] b) {
+        if (b == null) {
+            buf.putInt(-1);
+        } else {
+            buf.putInt(b.length);
+            buf.put(b);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Segment s : segments) {
+            s.buffer.force();
+            try {
+                s.channel.close();
+            } catch (IOException e) {
+                log(e.getMessage() + " @server.LogFileMessageStore.close IOException");
+            }
+        }
+    }
+
+    @Override
+    public synchronized void printStats() {
+        long bytes = 0;
+        for (Segment s : segments) {
+            bytes += s.size;
+        }
+        System.out.println("Message log: " + segments.size() + " segments, " + bytes + " bytes, "
+                + appends.sum() + " appends (" + appendedBytes.sum() + " bytes) since start");
+    }
+
+    //log the message to the logfile and console in format [dd-MM-yyyy hh:mm:ss] <message>
+    private void log(String s) {
+        Util.log(s);
+    }
+
+    /**
+     * Eine Segment-Datei (komplett gemappt) mit ihrem dünnen Zeit-Index.
+     * Geschrieben wird nur mit Lock auf den Store, Leser verwenden eine Kopie von size aus dem Lock
+     */
+    private static final class Segment {
+        final long number;              //Laufende Nummer (Dateiname)
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        volatile int size;              //Belegte Bytes
+        volatile long minTime = Long.MAX_VALUE;
+        volatile long maxTime = Long.MIN_VALUE;
+        volatile long maxLateness;      //Größter Rückstand (ms) eines Eintrags hinter dem bis dahin spätesten Eintrag des Logs
+        //Zeit-Index: alle Einträge vor indexOffsets[i] haben time <= indexTimes[i]
+        private long[] indexTimes = new long[64];
+        private int[] indexOffsets = new int[64];
+        private volatile int indexCount;
+        private int lastIndexed;
+
+        private Segment(long number, FileChannel channel, MappedByteBuffer buffer) {
+            this.number = number;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        static Segment open(Path file, long capacity) throws IOException {
+            if (capacity > Integer.MAX_VALUE) {
+                throw new IOException("Segment too large: " + capacity + " bytes");
+            }
+            String name = file.getFileName().toString();
+            long number = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(number, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        }
+
+        /**
+         * Liest alle gültigen Einträge, baut den Index auf und setzt size hinter den letzten vollständigen Eintrag
+         *
+         * @param logMaxTime Spätester Eintrag der vorherigen Segmente
+         * @return Anzahl Einträge
+         */
+        int recover(long logMaxTime) {
+            int count = 0;
+            int pos = 0;
+            while (pos + 4 <= buffer.capacity()) {
+                int length = buffer.getInt(pos);
+                if (length < 8 + 16 || pos + 4L + length > buffer.capacity()) {
+                    break;
+                }
+                indexIfNeeded(pos);
+                long time = buffer.getLong(pos + 4);
+                track(time, logMaxTime);
+                logMaxTime = Math.max(logMaxTime, time);
+                pos += 4 + length;
+                count++;
+            }
+            size = pos;
+            return count;
+        }
+
+        boolean fits(int length) {
+            return size + 4L + length <= buffer.capacity();
+        }
+
+        //Übernimmt die Zeit eines neuen Eintrags, logMaxTime: spätester Eintrag des Logs vor diesem
+        void track(long time, long logMaxTime) {
+            minTime = Math.min(minTime, time);
+            maxTime = Math.max(maxTime, time);
+            if (logMaxTime > time) {
+                maxLateness = Math.max(maxLateness, logMaxTime - time);
+            }
+        }
+
+        //Fügt vor dem Eintrag an pos einen Index-Eintrag hinzu, wenn seit dem letzten INDEX_INTERVAL Bytes geschrieben wurden
+        void indexIfNeeded(int pos) {
+            if (pos == 0 || pos - lastIndexed < INDEX_INTERVAL) {
+                return;
+            }
+            if (indexCount == indexTimes.length) {
+                indexTimes = Arrays.copyOf(indexTimes, indexCount * 2);
+                indexOffsets = Arrays.copyOf(indexOffsets, indexCount * 2);
+            }
+            indexTimes[indexCount] = maxTime;
+            indexOffsets[indexCount] = pos;
+            indexCount++;
+            lastIndexed = pos;
+        }
+
+        //Sucht per Binärsuche den spätesten Offset, vor dem nur Einträge mit time < from liegen
+        int startOffset(long from) {
+            int count = indexCount;     //Zuerst lesen (volatile), danach sind die Arrays bis count sichtbar
+            long[] times = indexTimes;
+            int[] offsets = indexOffsets;
+            int lo = 0;
+            int hi = Math.min(count, Math.min(times.length, offsets.length));
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (times[mid] < from) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo == 0 ? 0 : offsets[lo - 1];
+        }
+    }
+}
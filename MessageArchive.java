@@ -0,0 +1,441 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Archiv alter Nachrichten: pro Zeitabschnitt (PARTITION_SIZE) eine unveränderliche, komprimierte Datei (db/archive/*.arc),
+ * die zum Lesen memory-mapped wird.
+ * <p>
+ * Aufbau einer Datei: Header [int MAGIC][long start][long end][int Anzahl][int Blöcke], danach pro Block
+ * [long erste time][long letzte time][int Offset][int Bytes komprimiert][int Bytes roh] und die mit Deflate komprimierten Blöcke.
+ * Ein Block enthält nach (time, id) sortierte Einträge [long time][id][author][author_id][content][room],
+ * Strings als [int Bytes (-1 = null)][UTF-8]. Dateien im alten Format (MAGIC_V1, ohne room) gehören zu Room.DEFAULT.
+ * Beim Lesen werden nur die Blöcke entpackt, die den Zeitraum berühren.
+ * <p>
+ * compact() fasst im Hintergrund die Dateien eines vollständig archivierten Zeitfensters (COMPACT_SPAN) zu einer Datei
+ * zusammen, eine Datei deckt danach mehrere Zeitabschnitte ab (die Dateien bleiben zeitlich disjunkt)
+ */
+public class MessageArchive {
+    public static long PARTITION_SIZE = 24 * 60 * 60 * 1000;    //Zeitraum (ms) pro Archiv-Datei
+    public static int BLOCK_SIZE = 64 * 1024;                   //Unkomprimierte Größe (Bytes) eines Blocks
+    public static long COMPACT_SPAN = 30L * 24 * 60 * 60 * 1000;  //Zeitfenster (ms), dessen Dateien compact() zusammenfasst
+    public static int COMPACT_MAX_MESSAGES = 1_000_000;         //Maximale Anzahl Nachrichten einer zusammengefassten Datei
+    private static final int MAGIC = 0x41524332;                //"ARC2"
+    private static final int MAGIC_V1 = 0x41524331;             //"ARC1" (ohne Raum)
+    private static final int HEADER_SIZE = 4 + 8 + 8 + 4 + 4;
+    private static final int BLOCK_ENTRY_SIZE = 8 + 8 + 4 + 4 + 4;
+    private static final String SUFFIX = ".arc";
+    private static final Comparator<ChatMessage> ORDER = Comparator.comparingLong(ChatMessage::getTimeMillis).thenComparing(ChatMessage::getId);
+
+    private final Path directory;
+    //Archiv-Dateien nach start. Unveränderliche Momentaufnahme (copy-on-write), wird nur in write/compact ersetzt,
+    //damit ein Leser während compact() nie alte und zusammengefasste Dateien gemischt sieht
+    private volatile NavigableMap<Long, Partition> partitions = Collections.emptyNavigableMap();
+    private volatile long archivedUntil = Long.MIN_VALUE;      //Alle Nachrichten mit time < archivedUntil liegen im Archiv
+
+    /**
+     * Öffnet alle vorhandenen Archiv-Dateien in directory
+     *
+     * @param directory Ordner des Archivs
+     * @throws IOException Error
+     */
+    public MessageArchive(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.toList();
+        }
+        NavigableMap<Long, Partition> opened = new TreeMap<>();
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (name.endsWith(".tmp")) {
+                Files.delete(file);     //Reste eines abgebrochenen Schreibvorgangs
+            } else if (name.endsWith(SUFFIX)) {
+                Partition p = Partition.open(file);
+                opened.put(p.start, p);
+            }
+        }
+        long covered = Long.MIN_VALUE;
+        for (Partition p : new ArrayList<>(opened.values())) {
+            if (p.start < covered) {    //Liegt in einer zusammengefassten Datei (compact() wurde vor dem Löschen abgebrochen)
+                opened.remove(p.start);
+                Files.delete(p.file);
+                continue;
+            }
+            covered = p.end;
+            archivedUntil = Math.max(archivedUntil, p.end);
+        }
+        partitions = Collections.unmodifiableNavigableMap(opened);
+    }
+
+    //Gibt den Beginn des Zeitabschnitts zurück, in dem time liegt
+    public static long partitionStart(long time) {
+        return Math.floorDiv(time, PARTITION_SIZE) * PARTITION_SIZE;
+    }
+
+    //Alle Nachrichten mit time < archivedUntil liegen im Archiv (und werden nicht mehr in der Datenbank gesucht)
+    public long getArchivedUntil() {
+        return archivedUntil;
+    }
+
+    /**
+     * Schreibt die Nachrichten eines Zeitabschnitts in dessen Archiv-Datei. Gibt es schon eine Datei, die den Zeitabschnitt
+     * enthält (evtl. von compact() zusammengefasst), wird sie mit den neuen Nachrichten zusammengeführt (doppelte IDs nur
+     * einmal) und durch eine neue Datei ersetzt.
+     * Danach gilt der Zeitabschnitt bis end als archiviert
+     *
+     * @param start    Beginn des Zeitabschnitts (s. partitionStart)
+     * @param end      Ende des Zeitabschnitts (exklusiv)
+     * @param messages Nachrichten mit start <= time < end
+     * @throws IOException Error
+     */
+    public synchronized void write(long start, long end, List<ChatMessage> messages) throws IOException {
+        List<ChatMessage> all = new ArrayList<>(messages);
+        Map.Entry<Long, Partition> containing = partitions.floorEntry(start);
+        Partition existing = containing != null && containing.getValue().end > start ? containing.getValue() : null;
+        if (existing != null) {
+            existing.scan(null, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, "", m -> all.add(m));
+            start = existing.start;
+            end = Math.max(end, existing.end);
+        }
+        all.sort(ORDER);
+        List<ChatMessage> unique = new ArrayList<>(all.size());
+        for (ChatMessage m : all) {
+            ChatMessage last = unique.isEmpty() ? null : unique.get(unique.size() - 1);
+            if (last == null || last.getTimeMillis() != m.getTimeMillis() || !last.getId().equals(m.getId())) {
+                unique.add(m);
+            }
+        }
+
+        BlockWriter writer = new BlockWriter();
+        for (ChatMessage m : unique) {
+            writer.add(m);
+        }
+        publish(start, end, writer, existing == null ? List.of() : List.of(existing));
+    }
+
+    /**
+     * Fasst die Dateien jedes vollständig archivierten Zeitfensters (COMPACT_SPAN) zu einer Datei zusammen, höchstens
+     * COMPACT_MAX_MESSAGES Nachrichten pro Datei. Dateien im alten Format werden dabei auf das aktuelle gebracht.
+     * Die ersetzten Dateien werden erst gelöscht, wenn die neue Datei auf der Platte ist und veröffentlicht wurde
+     *
+     * @return Anzahl der ersetzten Dateien
+     * @throws IOException Error
+     */
+    public synchronized int compact() throws IOException {
+        int replaced = 0;
+        List<Partition> group = new ArrayList<>();
+        long window = Long.MIN_VALUE;
+        long count = 0;
+        for (Partition p : partitions.values()) {      //Momentaufnahme, nur compact/write (synchronized) ersetzen sie
+            long w = Math.floorDiv(p.start, COMPACT_SPAN);
+            if ((w + 1) * COMPACT_SPAN > archivedUntil) {
+                break;      //Zeitfenster noch nicht vollständig archiviert (alle weiteren auch nicht)
+            }
+            if (w != window || count + p.count > COMPACT_MAX_MESSAGES) {
+                replaced += merge(group);
+                group.clear();
+                window = w;
+                count = 0;
+            }
+            group.add(p);
+            count += p.count;
+        }
+        return replaced + merge(group);
+    }
+
+    //Schreibt die (zeitlich aufeinanderfolgenden) Dateien in group als eine Datei, gibt die Anzahl ersetzter Dateien zurück
+    private int merge(List<Partition> group) throws IOException {
+        if (group.isEmpty() || (group.size() == 1 && group.get(0).hasRoom)) {
+            return 0;
+        }
+        BlockWriter writer = new BlockWriter();
+        for (Partition p : group) {     //Die Dateien sind disjunkt und sortiert, die Nachrichten also schon in (time, id) Reihenfolge
+            p.scan(null, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, "", m -> {
+                writer.add(m);
+                return true;
+            });
+        }
+        publish(group.get(0).start, group.get(group.size() - 1).end, writer, group);
+        return group.size();
+    }
+
+    /**
+     * Schreibt eine neue Datei (start.arc), veröffentlicht sie anstelle von replaced und löscht danach deren Dateien
+     *
+     * @param start    Beginn des Zeitraums der Datei
+     * @param end      Ende des Zeitraums (exklusiv)
+     * @param writer   Inhalt
+     * @param replaced Ersetzte Dateien (im Zeitraum)
+     * @throws IOException Error
+     */
+    private void publish(long start, long end, BlockWriter writer, Collection<Partition> replaced) throws IOException {
+        Path file = directory.resolve(start + SUFFIX);
+        Path tmp = directory.resolve(start + SUFFIX + ".tmp");
+        writer.writeTo(tmp, start, end);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);   //Leser sehen entweder die alte oder die neue Datei
+        Partition written = Partition.open(file);
+
+        NavigableMap<Long, Partition> next = new TreeMap<>(partitions);
+        for (Partition p : replaced) {
+            next.remove(p.start);
+        }
+        next.put(start, written);
+        partitions = Collections.unmodifiableNavigableMap(next);
+        archivedUntil = Math.max(archivedUntil, end);
+
+        for (Partition p : replaced) {
+            if (!p.file.equals(file)) {
+                Files.deleteIfExists(p.file);   //Laufende Leser behalten ihr Mapping, übrig gebliebene Dateien entfernt der nächste Start
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    /**
+     * Übergibt alle archivierten Nachrichten eines Raums mit from <= time <= to, die hinter (afterTime, afterId) liegen,
+     * sortiert nach (time, id) an visitor
+     *
+     * @param room    Raum (null = alle Räume)
+     * @param visitor Bekommt jede Nachricht, gibt false zurück um abzubrechen
+     * @return false, wenn visitor abgebrochen hat
+     */
+    public boolean scan(String room, long from, long to, long afterTime, String afterId, Predicate<ChatMessage> visitor) {
+        NavigableMap<Long, Partition> snapshot = partitions;
+        Long first = snapshot.floorKey(from);
+        for (Partition p : snapshot.subMap(first == null ? from : first, true, to, true).values()) {
+            if (!p.scan(room, from, to, afterTime, afterId, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Gibt die Archiv Statistiken in der Konsole aus
+    public void printStats() {
+        long messages = 0;
+        long bytes = 0;
+        for (Partition p : partitions.values()) {
+            messages += p.count;
+            bytes += p.buffer.capacity();
+        }
+        System.out.println("Message archive: " + partitions.size() + " partitions, " + messages + " messages, "
+                + bytes + " bytes compressed, archived until " + archivedUntil);
+    }
+
+    /**
+     * Sammelt nach (time, id) sortierte Nachrichten und komprimiert sie blockweise (es liegt immer nur ein Block unkomprimiert
+     * im Speicher), writeTo schreibt Header und Blöcke als Datei
+     */
+    private static final class BlockWriter {
+        private final List<long[]> blockTimes = new ArrayList<>();
+        private final List<byte[]> blocks = new ArrayList<>();
+        private final List<Integer> rawSizes = new ArrayList<>();
+        private final ByteArrayOutputStream raw = new ByteArrayOutputStream(BLOCK_SIZE + 1024);
+        private final DataOutputStream out = new DataOutputStream(raw);
+        private long first;
+        private long last;
+        private int count;
+
+        void add(ChatMessage m) {
+            if (raw.size() == 0) {
+                first = m.getTimeMillis();
+            }
+            last = m.getTimeMillis();
+            try {
+                out.writeLong(m.getTimeMillis());
+                writeString(out, m.getId());
+                writeString(out, m.getAuthor());
+                writeString(out, m.getAuthor_id());
+                writeString(out, m.getContent());
+                writeString(out, m.getRoom());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);     //Kann bei einem ByteArrayOutputStream nicht passieren
+            }
+            count++;
+            if (raw.size() >= BLOCK_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            byte[] bytes = raw.toByteArray();
+            Deflater deflater = new Deflater();
+            try {
+                deflater.setInput(bytes);
+                deflater.finish();
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 2 + 64);
+                byte[] chunk = new byte[8192];
+                while (!deflater.finished()) {
+                    compressed.write(chunk, 0, deflater.deflate(chunk));
+                }
+                blocks.add(compressed.toByteArray());
+            } finally {
+                deflater.end();
+            }
+            blockTimes.add(new long[]{first, last});
+            rawSizes.add(bytes.length);
+            raw.reset();
+        }
+
+        void writeTo(Path file, long start, long end) throws IOException {
+            if (raw.size() > 0) {
+                flush();
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + blocks.size() * BLOCK_ENTRY_SIZE);
+            header.putInt(MAGIC).putLong(start).putLong(end).putInt(count).putInt(blocks.size());
+            int offset = header.capacity();
+            for (int i = 0; i < blocks.size(); i++) {
+                header.putLong(blockTimes.get(i)[0]).putLong(blockTimes.get(i)[1]);
+                header.putInt(offset).putInt(blocks.get(i).length).putInt(rawSizes.get(i));
+                offset += blocks.get(i).length;
+            }
+            header.flip();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                writeFully(channel, header);
+                for (byte[] block : blocks) {
+                    writeFully(channel, ByteBuffer.wrap(block));
+                }
+                channel.force(true);    //Erst auf der Platte, dann umbenennen (und danach aus der Datenbank löschen)
+            }
+        }
+    }
+
+    /**
+     * Eine (memory-mapped) Archiv-Datei
+     */
+    private static final class Partition {
+        final Path file;
+        final long start;
+        final long end;
+        final int count;
+        final MappedByteBuffer buffer;
+        final int blocks;
+        final boolean hasRoom;      //Neues Format (mit Raum pro Eintrag)
+
+        private Partition(Path file, MappedByteBuffer buffer) throws IOException {
+            this.file = file;
+            this.buffer = buffer;
+            if (buffer.capacity() < HEADER_SIZE || (buffer.getInt(0) != MAGIC && buffer.getInt(0) != MAGIC_V1)) {
+                throw new IOException("Not a message archive");
+            }
+            hasRoom = buffer.getInt(0) == MAGIC;
+            start = buffer.getLong(4);
+            end = buffer.getLong(12);
+            count = buffer.getInt(20);
+            blocks = buffer.getInt(24);
+        }
+
+        static Partition open(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return new Partition(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));    //Mapping bleibt nach close gültig
+            } catch (IOException e) {
+                throw new IOException(e.getMessage() + " (" + file + ")", e);
+            }
+        }
+
+        boolean scan(String room, long from, long to, long afterTime, String afterId, Predicate<ChatMessage> visitor) {
+            for (int b = 0; b < blocks; b++) {
+                int entry = HEADER_SIZE + b * BLOCK_ENTRY_SIZE;
+                long firstTime = buffer.getLong(entry);
+                long lastTime = buffer.getLong(entry + 8);
+                if (firstTime > to) {
+                    return true;
+                }
+                if (lastTime < from || lastTime < afterTime) {
+                    continue;
+                }
+                ByteBuffer raw = inflate(buffer.getInt(entry + 16), buffer.getInt(entry + 20), buffer.getInt(entry + 24));
+                while (raw.hasRemaining()) {
+                    long time = raw.getLong();
+                    String id = readString(raw);
+                    String author = readString(raw);
+                    String authorId = readString(raw);
+                    String content = readString(raw);
+                    String messageRoom = hasRoom ? readString(raw) : Room.DEFAULT;
+                    if (time > to) {
+                        return true;
+                    }
+                    if (time < from || time < afterTime || (time == afterTime && id.compareTo(afterId) <= 0)) {
+                        continue;
+                    }
+                    if (room != null && !room.equals(messageRoom)) {
+                        continue;
+                    }
+                    if (!visitor.test(new ChatMessage(id, content, author, authorId, Long.toString(time), messageRoom))) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private ByteBuffer inflate(int offset, int length, int rawLength) {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(buffer.slice(offset, length));
+                byte[] raw = new byte[rawLength];
+                int n = 0;
+                while (n < rawLength && !inflater.finished()) {
+                    n += inflater.inflate(raw, n, rawLength - n);
+                }
+                return ByteBuffer.wrap(raw, 0, n);
+            } catch (DataFormatException e) {
+                Util.log(e.getMessage() + " @server.MessageArchive.inflate DataFormatException (partition " + start + ")");
+                return ByteBuffer.allocate(0);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        private static String readString(ByteBuffer buf) {
+            int n = buf.getInt();
+            if (n < 0) {
+                return null;
+            }
+            String s = new String(buf.array(), buf.arrayOffset() + buf.position(), n, StandardCharsets.UTF_8);
+            buf.position(buf.position() + n);
+            return s;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package server;
+
+import java.util.HashMap;
+import java.util.function.Consumer;
+
+/**
+ * Verteilt Events (Chat-Nachrichten, Join/Leave/Disconnect) an alle Knoten eines Clusters, inklusive dem eigenen.
+ * Jeder Knoten stellt die Events dann an seine lokal verbundenen User zu.
+ * <p>
+ * Jedes Event bekommt beim Veröffentlichen die Keys "origin" (ID des Knotens) und "seq" (fortlaufende Nummer pro Knoten).
+ * Events eines Knotens kommen bei allen anderen in der Reihenfolge von seq an, doppelte Events werden verworfen
+ */
+public interface MessageBus {
+
+    /**
+     * Veröffentlicht ein Event an alle Knoten (der eigene Knoten bekommt es direkt)
+     *
+     * @param event Event (wird um origin und seq ergänzt)
+     */
+    void publish(HashMap<String, String> event);
+
+    /**
+     * Setzt den Empfänger aller Events (eigene und die anderer Knoten)
+     *
+     * @param listener Empfänger
+     */
+    void setListener(Consumer<HashMap<String, String>> listener);
+
+    //Gibt die ID dieses Knotens zurück (eindeutig pro Prozess-Start)
+    String getNodeId();
+
+    //Gibt die Statistiken des Bus in der Konsole aus
+    void printStats();
+
+    //Beendet den Bus
+    void close();
+}
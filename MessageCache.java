@@ -0,0 +1,196 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Begrenzter In-Memory Cache der neuesten Chat-Nachrichten (Ringpuffer, sortiert nach (time, id)).
+ * Zeitraum-Abfragen, die komplett im gecachten Zeitfenster liegen, werden ohne Datenbank beantwortet (für alle Räume).
+ * Nachrichten werden verdrängt, wenn der Puffer voll ist oder sie älter als maxAge sind
+ */
+public class MessageCache {
+    private final ChatMessage[] ring;           //Ringpuffer, ältester Eintrag bei head
+    private final long maxAge;                  //Maximales Alter eines Eintrags (ms)
+    private int head;                           //Index des ältesten Eintrags
+    private int size;                           //Anzahl Einträge
+    private long completeFrom;                  //Ab diesem Zeitpunkt (ms) enthält der Cache garantiert alle Nachrichten
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    //Statistiken
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Erstellt einen leeren Cache, der ab jetzt vollständig ist
+     *
+     * @param capacity Maximale Anzahl Nachrichten
+     * @param maxAge   Maximales Alter einer Nachricht (ms)
+     */
+    public MessageCache(int capacity, long maxAge) {
+        this.ring = new ChatMessage[capacity];
+        this.maxAge = maxAge;
+        this.completeFrom = System.currentTimeMillis();
+    }
+
+    /**
+     * Füllt den Cache mit bereits gespeicherten Nachrichten (z.B. beim Start aus der Datenbank)
+     *
+     * @param messages     Nachrichten, sortiert nach (time, id)
+     * @param completeFrom Ab diesem Zeitpunkt (ms) sind die Nachrichten vollständig
+     */
+    public void warm(List<ChatMessage> messages, long completeFrom) {
+        lock.writeLock().lock();
+        try {
+            head = 0;
+            size = 0;
+            this.completeFrom = completeFrom;
+            for (ChatMessage m : messages) {
+                addLocked(m);   //Wird dabei verdrängt, verschiebt sich completeFrom entsprechend nach hinten
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Fügt eine neue Nachricht hinzu (write-through)
+     *
+     * @param message Nachricht
+     */
+    public void add(ChatMessage message) {
+        lock.writeLock().lock();
+        try {
+            addLocked(message);
+            evictExpired(System.currentTimeMillis());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void addLocked(ChatMessage message) {
+        if (size == ring.length) {
+            evictOldest();
+        }
+        //Nachrichten kommen fast immer in zeitlicher Reihenfolge an, nur selten muss vom Ende aus einsortiert werden
+        int i = size;
+        while (i > 0 && compare(get(i - 1), message) > 0) {
+            ring[(head + i) % ring.length] = get(i - 1);
+            i--;
+        }
+        ring[(head + i) % ring.length] = message;
+        size++;
+    }
+
+    private void evictOldest() {
+        ChatMessage oldest = ring[head];
+        ring[head] = null;
+        head = (head + 1) % ring.length;
+        size--;
+        completeFrom = Math.max(completeFrom, oldest.getTimeMillis() + 1);  //Nachrichten mit dieser Zeit sind evtl. nicht mehr vollständig
+    }
+
+    private void evictExpired(long now) {
+        while (size > 0 && get(0).getTimeMillis() < now - maxAge) {
+            evictOldest();
+        }
+        completeFrom = Math.max(completeFrom, now - maxAge);
+    }
+
+    /**
+     * Gibt eine Seite an Nachrichten eines Raums zurück, wenn der Zeitraum komplett im Cache liegt.
+     * Der Cache enthält alle Räume, Nachrichten anderer Räume werden übersprungen
+     *
+     * @param room   Raum
+     * @param from   start-Wert (ms)
+     * @param to     end-Wert (ms)
+     * @param cursor Cursor der vorherigen Seite ("time:id") oder null
+     * @param limit  Maximale Anzahl Nachrichten
+     * @return Seite an Nachrichten oder null (Cache-Miss)
+     */
+    public MessagePage getPage(String room, long from, long to, String cursor, int limit) {
+        if (from > to) {
+            long t = to;
+            to = from;
+            from = t;
+        }
+        long afterTime = cursor == null ? from : MessagePage.cursorTime(cursor);
+        String afterId = cursor == null ? "" : MessagePage.cursorId(cursor);
+
+        lock.readLock().lock();
+        try {
+            if (from < completeFrom) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            List<Map<String, String>> messages = new ArrayList<>(Math.min(limit, 256));
+            boolean hasMore = false;
+            for (int i = lowerBound(Math.max(from, afterTime), afterTime, afterId); i < size; i++) {
+                ChatMessage m = get(i);
+                if (m.getTimeMillis() > to) {
+                    break;
+                }
+                if (!room.equals(m.getRoom())) {
+                    continue;
+                }
+                if (messages.size() == limit) {
+                    hasMore = true;
+                    break;
+                }
+                messages.add(m.toMap());
+            }
+            String nextCursor = null;
+            if (hasMore) {
+                Map<String, String> last = messages.get(messages.size() - 1);
+                nextCursor = MessagePage.cursor(Long.parseLong(last.get("time")), last.get("id"));
+            }
+            return new MessagePage(messages, hasMore, nextCursor);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sucht per Binärsuche den ersten Eintrag mit time >= minTime, der hinter (afterTime, afterId) liegt
+     */
+    private int lowerBound(long minTime, long afterTime, String afterId) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            ChatMessage m = get(mid);
+            long t = m.getTimeMillis();
+            boolean before = t < minTime || t < afterTime || (t == afterTime && m.getId().compareTo(afterId) <= 0);
+            if (before) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private ChatMessage get(int i) {
+        return ring[(head + i) % ring.length];
+    }
+
+    private static int compare(ChatMessage a, ChatMessage b) {
+        int c = Long.compare(a.getTimeMillis(), b.getTimeMillis());
+        return c != 0 ? c : a.getId().compareTo(b.getId());
+    }
+
+    //Gibt die Cache Statistiken in der Konsole aus
+    public void printStats() {
+        lock.readLock().lock();
+        try {
+            System.out.println("Message cache: " + size + "/" + ring.length + " messages, complete from " + completeFrom
+                    + ", " + hits.sum() + " hits, " + misses.sum() + " misses");
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
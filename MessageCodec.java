@@ -0,0 +1,220 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Kompaktes binäres Nachrichtenformat (Alternative zu Java-Serialisierung + Base64)
+ * <p>
+ * Aufbau eines Frames: [MAGIC][VERSION][Anzahl Felder (varint)] danach pro Feld [Key][Value]
+ * <ul>
+ *     <li>Key: varint Tag-Index eines bekannten Keys, oder 0 + varint Länge + UTF-8</li>
+ *     <li>Value von "type": varint Tag-Index eines bekannten Typs, oder 0 + varint Länge + UTF-8</li>
+ *     <li>Sonstige Values: varint (Länge + 1) + UTF-8, wobei 0 für null steht</li>
+ * </ul>
+ */
+public class MessageCodec {
+    public static final byte MAGIC = (byte) 0xAE;      //Erstes Byte jedes binären Frames
+    public static final byte VERSION = 1;              //Version des Formats
+
+    //Bekannte Keys und Typen werden als Tag (Index) statt als String übertragen, Index 0 = nicht interniert.
+    //Neue Einträge nur hinten anhängen, damit die Tags bestehender Clients gültig bleiben
+    private static final String[] KEYS = {null, "type", "content", "id", "name", "ip", "time", "from", "to", "author", "author_id",
+            "room", "origin", "seq", "rooms"};
+    private static final String[] TYPES = {null, "connect", "connect_with_id", "message", "request_message_history",
+            "connect_id", "error", "user_join", "user_disconnect", "message_history", "broadcast",
+            "join_room", "leave_room", "room_joined", "room_left", "user_join_room", "user_leave_room",
+            "search_messages", "search_results", "frames_dropped"};
+    private static final Map<String, Integer> KEY_TAGS = tagMap(KEYS);
+    private static final Map<String, Integer> TYPE_TAGS = tagMap(TYPES);
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Kodiert eine Map als binären Frame
+     *
+     * @param map Nachricht
+     * @return Frame-Bytes
+     * @throws IllegalArgumentException Wenn die Map einen null Key enthält (im Format nicht darstellbar)
+     */
+    public static byte[] encode(Map<String, String> map) {
+        //Zunächst werden alle Strings kodiert, damit das Ziel-Array genau einmal in der richtigen Größe angelegt werden kann
+        int n = map.size();
+        int[] keyTags = new int[n];
+        byte[][] keyBytes = new byte[n][];
+        int[] valueTags = new int[n];
+        byte[][] valueBytes = new byte[n][];
+
+        int size = 2 + varIntSize(n);
+        int i = 0;
+        for (Map.Entry<String, String> e : map.entrySet()) {
+            if (e.getKey() == null) {
+                throw new IllegalArgumentException("Null key in message " + map);
+            }
+            Integer keyTag = KEY_TAGS.get(e.getKey());
+            if (keyTag != null) {
+                keyTags[i] = keyTag;
+                size += varIntSize(keyTag);
+            } else {
+                keyBytes[i] = e.getKey().getBytes(StandardCharsets.UTF_8);
+                size += 1 + varIntSize(keyBytes[i].length) + keyBytes[i].length;
+            }
+
+            String value = e.getValue();
+            Integer typeTag = keyTags[i] == 1 && value != null ? TYPE_TAGS.get(value) : null;
+            if (typeTag != null) {
+                valueTags[i] = typeTag;
+                size += varIntSize(typeTag);
+                i++;
+                continue;
+            }
+            if (keyTags[i] == 1) {
+                size += 1;      //Marker für nicht internierten Typ
+            }
+            if (value == null) {
+                size += 1;
+            } else {
+                valueBytes[i] = value.getBytes(StandardCharsets.UTF_8);
+                size += varIntSize(valueBytes[i].length + 1) + valueBytes[i].length;
+            }
+            i++;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put(MAGIC).put(VERSION);
+        putVarInt(buf, n);
+        for (i = 0; i < n; i++) {
+            if (keyBytes[i] == null) {
+                putVarInt(buf, keyTags[i]);
+            } else {
+                buf.put((byte) 0);
+                putVarInt(buf, keyBytes[i].length);
+                buf.put(keyBytes[i]);
+            }
+
+            if (valueTags[i] != 0) {
+                putVarInt(buf, valueTags[i]);
+                continue;
+            }
+            if (keyTags[i] == 1) {
+                buf.put((byte) 0);
+            }
+            if (valueBytes[i] == null) {
+                buf.put((byte) 0);
+            } else {
+                putVarInt(buf, valueBytes[i].length + 1);
+                buf.put(valueBytes[i]);
+            }
+        }
+        return buf.array();
+    }
+
+    /**
+     * Dekodiert einen binären Frame zu einer HashMap
+     *
+     * @param buf Frame
+     * @return HashMap mit dem Inhalt des Frames
+     * @throws IllegalArgumentException Wenn der Frame nicht dem Format entspricht
+     */
+    public static HashMap<String, String> decode(ByteBuffer buf) {
+        try {
+            if (buf.get() != MAGIC) {
+                throw new IllegalArgumentException("Not a binary message frame");
+            }
+            byte version = buf.get();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported binary message version " + version);
+            }
+            int n = getVarInt(buf);
+            //Jedes Feld belegt mindestens 2 Bytes (Key + Value), n stammt vom Client und darf die Map nicht vorab dimensionieren
+            if (n < 0 || n > buf.remaining() / 2) {
+                throw new IllegalArgumentException("Invalid field count " + n);
+            }
+            HashMap<String, String> map = new HashMap<>();
+            for (int i = 0; i < n; i++) {
+                int keyTag = getVarInt(buf);
+                String key = keyTag == 0 ? getString(buf, getVarInt(buf)) : lookup(KEYS, keyTag);
+
+                String value;
+                if (keyTag == 1) {  //"type" (interniert)
+                    int typeTag = getVarInt(buf);
+                    value = typeTag == 0 ? getNullableString(buf) : lookup(TYPES, typeTag);
+                } else {
+                    value = getNullableString(buf);
+                }
+                map.put(key, value);
+            }
+            return map;
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated binary message frame");
+        }
+    }
+
+    private static String getNullableString(ByteBuffer buf) {
+        int len = getVarInt(buf);
+        return len == 0 ? null : getString(buf, len - 1);
+    }
+
+    private static String getString(ByteBuffer buf, int len) {
+        if (len < 0 || len > buf.remaining()) {
+            throw new IllegalArgumentException("Invalid field length " + len);
+        }
+        String s;
+        if (buf.hasArray()) {
+            s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+            buf.position(buf.position() + len);
+        } else {
+            byte[] b = new byte[len];
+            buf.get(b);
+            s = new String(b, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    private static String lookup(String[] table, int tag) {
+        if (tag <= 0 || tag >= table.length) {
+            throw new IllegalArgumentException("Unknown tag " + tag);
+        }
+        return table[tag];
+    }
+
+    private static Map<String, Integer> tagMap(String[] table) {
+        Map<String, Integer> m = new HashMap<>();
+        for (int i = 1; i < table.length; i++) {
+            m.put(table[i], i);
+        }
+        return m;
+    }
+
+    private static int varIntSize(int v) {
+        int size = 1;
+        while ((v & ~0x7F) != 0) {
+            v >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarInt(ByteBuffer buf, int v) {
+        while ((v & ~0x7F) != 0) {
+            buf.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
+    private static int getVarInt(ByteBuffer buf) {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buf.get();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+}
@@ -0,0 +1,200 @@
+package server;
+
+import org.java_websocket.WebSocket;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Verarbeitungs-Stufe zwischen den WebSocket-Threads und processMessage: Nachrichten werden auf einem Pool an
+ * Worker-Threads dekodiert und verarbeitet, damit eine langsame Datenbank-Abfrage nicht alle anderen Verbindungen blockiert.
+ * Jede Verbindung hat eine eigene Warteschlange, ihre Nachrichten werden also weiterhin der Reihe nach verarbeitet
+ */
+public class MessageDispatcher {
+    public static int WORKERS = Math.max(2, Runtime.getRuntime().availableProcessors());    //Anzahl Worker-Threads
+    public static int MAX_PENDING_PER_CONNECTION = 1024;    //Maximale Anzahl wartender Nachrichten pro Verbindung
+    public static int BATCH = 16;                           //Nach so vielen Nachrichten gibt eine Verbindung den Worker wieder frei (Fairness)
+
+    private final ThreadPoolExecutor pool;
+    private final Map<WebSocket, SerialQueue> queues = new ConcurrentHashMap<>();
+
+    //Statistiken
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private volatile long maxWaitNanos;
+    private static final Metrics.Histogram WAIT = Metrics.histogram("chat_dispatch_wait_seconds", "Time a client message waits for a worker");
+
+    /**
+     * Startet den Worker-Pool
+     *
+     * @param workers Anzahl Worker-Threads
+     */
+    public MessageDispatcher(int workers) {
+        AtomicInteger number = new AtomicInteger();
+        //Die Pool-Warteschlange enthält höchstens einen Eintrag pro Verbindung, begrenzt wird pro Verbindung
+        pool = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "message-worker-" + number.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Erstellt die Warteschlange einer neuen Verbindung (in onOpen, vor der ersten Nachricht)
+     *
+     * @param conn Verbindung
+     */
+    public void open(WebSocket conn) {
+        queues.computeIfAbsent(conn, c -> new SerialQueue());
+    }
+
+    /**
+     * Reiht eine Aufgabe in die Warteschlange der Verbindung ein. Legt keine Warteschlange an, eine Aufgabe nach
+     * executeLast (z.B. die Fortsetzung eines History-Streams) würde sonst eine neue erzeugen, die nie entfernt wird
+     *
+     * @param conn Verbindung
+     * @param task Aufgabe (z.B. Nachricht dekodieren und verarbeiten)
+     * @return false, wenn bereits MAX_PENDING_PER_CONNECTION Aufgaben warten oder die Verbindung geschlossen wurde
+     */
+    public boolean execute(WebSocket conn, Runnable task) {
+        SerialQueue queue = queues.get(conn);
+        boolean accepted = queue != null && queue.add(task, false);
+        if (!accepted) {
+            rejected.increment();
+        }
+        return accepted;
+    }
+
+    /**
+     * Reiht die letzte Aufgabe einer Verbindung ein (z.B. onClose): sie läuft nach allen noch wartenden Nachrichten,
+     * danach wird die Warteschlange entfernt und weitere Aufgaben werden abgelehnt. Hat die Verbindung (noch) keine
+     * Warteschlange, läuft die Aufgabe in einer eigenen, die danach ebenfalls entfernt wird
+     *
+     * @param conn Verbindung
+     * @param task Aufgabe
+     */
+    public void executeLast(WebSocket conn, Runnable task) {
+        SerialQueue queue = queues.computeIfAbsent(conn, c -> new SerialQueue());
+        queue.add(() -> {
+            try {
+                task.run();
+            } finally {
+                queues.remove(conn, queue);
+            }
+        }, true);
+    }
+
+    /**
+     * Nimmt keine neuen Aufgaben mehr an und wartet, bis alle wartenden verarbeitet wurden
+     *
+     * @param timeout Maximale Wartezeit (ms)
+     * @throws InterruptedException Error
+     */
+    public void shutdown(long timeout) throws InterruptedException {
+        pool.shutdown();
+        if (!pool.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+            Util.log(AsyncLogger.Level.WARN, pool.getQueue().size() + " connections still had pending messages at shutdown");
+        }
+    }
+
+    //Anzahl aller noch wartenden Nachrichten
+    public int getPending() {
+        int pending = 0;
+        for (SerialQueue queue : queues.values()) {
+            pending += queue.size();
+        }
+        return pending;
+    }
+
+    //Gibt die Statistiken der Verarbeitungs-Stufe in der Konsole aus
+    public void printStats() {
+        long count = processed.sum();
+        int pending = getPending();
+        System.out.println("Processing: " + pool.getPoolSize() + " workers (" + pool.getActiveCount() + " active), " + count + " processed, "
+                + pending + " pending, " + rejected.sum() + " rejected");
+        if (count > 0) {
+            System.out.println("+--avg wait: " + waitNanos.sum() / count / 1000 + " us, max wait: " + maxWaitNanos / 1000 + " us");
+        }
+    }
+
+    /**
+     * Warteschlange einer Verbindung, wird immer von höchstens einem Worker gleichzeitig abgearbeitet
+     */
+    private final class SerialQueue implements Runnable {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private final ArrayDeque<Long> enqueued = new ArrayDeque<>();   //Zeitpunkt des Einreihens (für die Wartezeit)
+        private boolean scheduled;      //Liegt gerade im Pool (wartend oder laufend)
+        private boolean closed;         //executeLast wurde aufgerufen
+
+        synchronized boolean add(Runnable task, boolean last) {
+            if (closed || (!last && tasks.size() >= MAX_PENDING_PER_CONNECTION)) {
+                return false;
+            }
+            closed = last;
+            tasks.add(task);
+            enqueued.add(System.nanoTime());
+            if (!scheduled) {
+                scheduled = true;
+                try {
+                    pool.execute(this);
+                } catch (RejectedExecutionException e) {   //Server wird gestoppt
+                    scheduled = false;
+                    tasks.clear();
+                    enqueued.clear();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        synchronized int size() {
+            return tasks.size();
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < BATCH; i++) {
+                Runnable task;
+                long wait;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        scheduled = false;
+                        return;
+                    }
+                    wait = System.nanoTime() - enqueued.poll();
+                }
+                waitNanos.add(wait);
+                WAIT.record(wait);
+                if (wait > maxWaitNanos) {
+                    maxWaitNanos = wait;
+                }
+                try {
+                    task.run();
+                } catch (Throwable throwable) {
+                    throwable.printStackTrace();
+                }
+                processed.increment();
+            }
+            synchronized (this) {
+                if (tasks.isEmpty()) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            try {
+                pool.execute(this);     //Hinten anstellen, damit andere Verbindungen nicht verhungern
+            } catch (RejectedExecutionException e) {
+                run();                  //Pool wird gestoppt -> Rest direkt abarbeiten
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package server;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Eine Seite der Nachrichten-History (Keyset-Pagination über (time, id))
+ */
+public class MessagePage {
+    private final List<Map<String, String>> messages;   //Nachrichten der Seite, sortiert nach (time, id)
+    private final boolean hasMore;                      //Gibt es nach dieser Seite noch weitere Nachrichten im Zeitraum
+    private final String nextCursor;                    //Cursor für die nächste Seite ("time:id"), null wenn keine weitere Seite
+
+    public MessagePage(List<Map<String, String>> messages, boolean hasMore, String nextCursor) {
+        this.messages = messages;
+        this.hasMore = hasMore;
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * Erstellt den Cursor, der auf die geg. Nachricht zeigt
+     *
+     * @param time Uhrzeit der Nachricht (in ms)
+     * @param id   Nachrichten ID
+     * @return Cursor-String
+     */
+    public static String cursor(long time, String id) {
+        return time + ":" + id;
+    }
+
+    /**
+     * Liest den Zeit-Teil eines Cursors
+     *
+     * @param cursor Cursor-String
+     * @return Uhrzeit (in ms)
+     * @throws IllegalArgumentException Wenn der Cursor ungültig ist
+     */
+    public static long cursorTime(String cursor) {
+        int i = cursor.indexOf(':');
+        if (i <= 0) {
+            throw new IllegalArgumentException("Invalid cursor '" + cursor + "'");
+        }
+        return Long.parseLong(cursor.substring(0, i));
+    }
+
+    //Liest den ID-Teil eines Cursors
+    public static String cursorId(String cursor) {
+        return cursor.substring(cursor.indexOf(':') + 1);
+    }
+
+    public List<Map<String, String>> getMessages() {
+        return messages;
+    }
+
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
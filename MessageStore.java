@@ -0,0 +1,82 @@
+package server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Speicher für Chat-Nachrichten. Nachrichten werden pro Raum gespeichert und als Map mit den Keys id, content, author,
+ * author_id, time und room zurückgegeben, immer nach (time, id) sortiert
+ */
+public interface MessageStore {
+
+    /**
+     * Speichert eine neue, auf diesem Knoten erstellte Chat-Nachricht (ID s. Util.generateTimeOrderedId).
+     * Die Nachricht wurde unter dieser ID schon verteilt, der Speicher darf sie daher nicht ändern: ist die ID wider
+     * Erwarten schon vergeben, wird die Nachricht nicht gespeichert und der Fehler geloggt
+     *
+     * @param message Nachricht
+     */
+    void newMessage(ChatMessage message);
+
+    /**
+     * Speichert eine fertige Nachricht mit bereits vergebener ID (z.B. eine Nachricht, die ein anderer Knoten über den MessageBus verteilt hat)
+     *
+     * @param message Nachricht
+     */
+    void storeMessage(ChatMessage message);
+
+    /**
+     * Sucht alle Nachrichten eines Raums zwischen from und to
+     *
+     * @param room Raum
+     * @param from start-Wert (ms)
+     * @param to   end-Wert (ms)
+     * @return Liste an Nachrichten oder null, wenn der Speicher nicht gelesen werden konnte
+     */
+    List<Map<String, String>> getAllMessages(String room, long from, long to);
+
+    /**
+     * Sucht eine Seite an Nachrichten eines Raums zwischen from und to (Keyset-Pagination über (time, id))
+     *
+     * @param room   Raum
+     * @param from   start-Wert (ms)
+     * @param to     end-Wert (ms)
+     * @param cursor Cursor der vorherigen Seite ("time:id") oder null für die erste Seite
+     * @param limit  Maximale Anzahl Nachrichten
+     * @return Seite an Nachrichten oder null, wenn der Speicher nicht gelesen werden konnte (keine leere Seite, damit der
+     * Client einen Fehler nicht für das Ende der History hält)
+     */
+    MessagePage getMessagePage(String room, long from, long to, String cursor, int limit);
+
+    /**
+     * Übergibt alle Nachrichten eines Raums zwischen from und to nacheinander an visitor, ohne sie komplett in den Speicher zu laden
+     *
+     * @param room    Raum
+     * @param from    start-Wert (ms)
+     * @param to      end-Wert (ms)
+     * @param visitor Bekommt jede Nachricht, gibt false zurück um abzubrechen
+     * @return Anzahl übergebener Nachrichten oder -1, wenn der Speicher nicht (vollständig) gelesen werden konnte
+     */
+    long streamMessages(String room, long from, long to, Predicate<Map<String, String>> visitor);
+
+    /**
+     * Volltextsuche in den Nachrichten eines Raums. Jeder Treffer enthält zusätzlich score (höher = relevanter) und snippet
+     *
+     * @param room   Raum
+     * @param query  Suchbegriffe (alle müssen vorkommen)
+     * @param author Nur Nachrichten dieses Autors (null = alle)
+     * @param from   start-Wert (ms)
+     * @param to     end-Wert (ms)
+     * @param cursor Cursor der vorherigen Seite oder null für die erste Seite
+     * @param limit  Maximale Anzahl Treffer
+     * @return Seite an Treffern, sortiert nach Relevanz (null, wenn der Speicher keine Suche unterstützt)
+     */
+    MessagePage searchMessages(String room, String query, String author, long from, long to, String cursor, int limit);
+
+    //Gibt die Statistiken des Speichers in der Konsole aus
+    void printStats();
+
+    //Schreibt alle noch wartenden Nachrichten und gibt alle Ressourcen frei
+    void close();
+}
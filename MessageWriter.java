@@ -0,0 +1,215 @@
+package server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Schreibt Chat-Nachrichten asynchron in die Datenbank (write-behind).
+ * Nachrichten werden in einer begrenzten Queue gesammelt und von einem eigenen Thread
+ * in Gruppen (eine Transaktion pro Gruppe) mit einem wiederverwendeten PreparedStatement gespeichert
+ */
+public class MessageWriter implements Runnable {
+    public static int QUEUE_CAPACITY = 8192;    //Maximale Anzahl wartender Nachrichten (danach Backpressure)
+    public static int BATCH_SIZE = 256;         //Maximale Anzahl Nachrichten pro Transaktion
+
+    private static final String INSERT_SQL = "INSERT INTO public(id,content,author,author_id,time,room) VALUES(?,?,?,?,?,?)";
+    //Nachrichten anderer Knoten behalten ihre ID, ist sie schon gespeichert (z.B. gemeinsame Datenbank), ist nichts zu tun
+    private static final String REPLICATE_SQL = INSERT_SQL + " ON CONFLICT(id) DO NOTHING";
+    private static final int SQLITE_CONSTRAINT = 19;    //SQLite Error-Code für verletzte Constraints
+
+    private final BlockingQueue<Pending> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Connection conn;              //Eigene Schreib-Verbindung
+    private final PreparedStatement insert;     //Wird für alle Nachrichten wiederverwendet
+    private final PreparedStatement replicate;  //Für Nachrichten mit fester ID (s. submit)
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    //Statistiken
+    private final LongAdder written = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder blockedSubmits = new LongAdder();
+    private final LongAdder collisions = new LongAdder();       //Nicht gespeichert wegen ID-Kollision
+    private static final Metrics.Histogram BATCH_LATENCY = Metrics.histograms("chat_db_seconds", "Message store latency", "op").get("write_batch");
+
+    /**
+     * Erstellt den Writer und startet den Schreib-Thread
+     *
+     * @param conn Verbindung, die ausschließlich von diesem Writer verwendet wird
+     * @throws SQLException Error
+     */
+    public MessageWriter(Connection conn) throws SQLException {
+        this.conn = conn;
+        this.conn.setAutoCommit(false);
+        this.insert = conn.prepareStatement(INSERT_SQL);
+        this.replicate = conn.prepareStatement(REPLICATE_SQL);
+        this.thread = new Thread(this, "message-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Reiht eine Nachricht zum Speichern ein. Ist die Queue voll, blockiert der Aufruf bis wieder Platz ist (Backpressure)
+     *
+     * @param message    Nachricht
+     * @param replicated Die ID wurde von einem anderen Knoten vergeben: sie wird nie geändert, existiert sie bereits, gilt
+     *                   die Nachricht als gespeichert (sonst wird eine Kollision als Fehler geloggt, s. writeSingle)
+     * @throws InterruptedException Error
+     */
+    public void submit(ChatMessage message, boolean replicated) throws InterruptedException {
+        if (!running) {
+            throw new IllegalStateException("MessageWriter is closed");
+        }
+        Pending p = new Pending(message, replicated);
+        if (!queue.offer(p)) {
+            blockedSubmits.increment();
+            queue.put(p);
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Pending> batch = new ArrayList<>(BATCH_SIZE);
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE - 1);   //Alles, was inzwischen angekommen ist, in die gleiche Transaktion
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                running = false;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Schreibt alle Nachrichten in einer Transaktion. Schlägt das fehl (z.B. ID-Kollision),
+     * werden die Nachrichten einzeln geschrieben
+     *
+     * @param batch Nachrichten
+     */
+    private void writeBatch(List<Pending> batch) {
+        long start = System.nanoTime();
+        try {
+            boolean anyReplicated = false;
+            for (Pending p : batch) {
+                PreparedStatement stmt = p.replicated ? replicate : insert;
+                bind(stmt, p.message);
+                stmt.addBatch();
+                anyReplicated |= p.replicated;
+            }
+            insert.executeBatch();
+            if (anyReplicated) {
+                replicate.executeBatch();
+            }
+            conn.commit();
+            written.add(batch.size());
+            batches.increment();
+            BATCH_LATENCY.recordSince(start);
+        } catch (SQLException e) {
+            rollback();
+            for (Pending p : batch) {
+                writeSingle(p.message, p.replicated);
+            }
+        }
+    }
+
+    /**
+     * Schreibt eine einzelne Nachricht. Bei einer ID-Kollision wird die ID nicht geändert: die Nachricht wurde unter
+     * dieser ID schon verteilt und gecacht, sie wird daher nicht gespeichert und der Fehler geloggt
+     *
+     * @param m          Nachricht
+     * @param replicated ID eines anderen Knotens (s. submit)
+     */
+    private void writeSingle(ChatMessage m, boolean replicated) {
+        try {
+            PreparedStatement stmt = replicated ? replicate : insert;
+            bind(stmt, m);
+            stmt.executeUpdate();
+            conn.commit();
+            written.increment();
+        } catch (SQLException e) {
+            rollback();
+            if ((e.getErrorCode() & 0xFF) == SQLITE_CONSTRAINT) {
+                collisions.increment();
+                Util.log(AsyncLogger.Level.ERROR, "Message ID collision on " + m.getId() + ", message not stored @server.MessageWriter.writeSingle");
+                return;
+            }
+            log(e.getMessage() + " @server.MessageWriter.writeSingle SQLException");
+        }
+    }
+
+    private void bind(PreparedStatement stmt, ChatMessage m) throws SQLException {
+        stmt.setString(1, m.getId());
+        stmt.setString(2, m.getContent());
+        stmt.setString(3, m.getAuthor());
+        stmt.setString(4, m.getAuthor_id());
+        stmt.setLong(5, m.getTimeMillis());
+        stmt.setString(6, m.getRoom());
+    }
+
+    private void rollback() {
+        try {
+            insert.clearBatch();
+            replicate.clearBatch();
+            conn.rollback();
+        } catch (SQLException e) {
+            log(e.getMessage() + " @server.MessageWriter.rollback SQLException");
+        }
+    }
+
+    /**
+     * Stoppt den Writer: alle wartenden Nachrichten werden noch geschrieben, danach wird die Verbindung geschlossen
+     */
+    public void close() {
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            insert.close();
+            replicate.close();
+            conn.close();
+        } catch (SQLException e) {
+            log(e.getMessage() + " @server.MessageWriter.close SQLException");
+        }
+        log("MessageWriter flushed " + written.sum() + " messages in " + batches.sum() + " batches");
+    }
+
+    //Gibt die Writer Statistiken in der Konsole aus
+    public void printStats() {
+        System.out.println("Message writer: " + written.sum() + " written in " + batches.sum() + " batches, "
+                + queue.size() + " queued, " + blockedSubmits.sum() + " blocked submits, " + collisions.sum() + " ID collisions");
+    }
+
+    //log the message to the logfile and console in format [dd-MM-yyyy hh:mm:ss] <message>
+    private void log(String s) {
+        Util.log(s);
+    }
+
+    /**
+     * Wartende Nachricht
+     */
+    private static final class Pending {
+        final ChatMessage message;
+        final boolean replicated;   //ID eines anderen Knotens, wird nie neu vergeben
+
+        Pending(ChatMessage message, boolean replicated) {
+            this.message = message;
+            this.replicated = replicated;
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package server;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Kennzahlen des Servers: Zähler, Latenz-Histogramme und Gauges (Momentwerte wie Heap oder Warteschlangen).
+ * Ausgabe über den stats Befehl der Konsole und im Prometheus-Textformat unter http://HOST:PORT/metrics.
+ * <p>
+ * Zähler und Histogramme sind lock-frei (LongAdder / AtomicLongArray) und werden einmal registriert und dann
+ * direkt verwendet, auf dem Hot-Path wird also nichts nachgeschlagen oder alloziert
+ */
+public class Metrics {
+    public static int PORT = 9555;                  //Port des Prometheus-Endpunkts (0 = aus)
+    public static String HOST = "127.0.0.1";        //Nur lokal erreichbar
+    public static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};   //Ausgegebene Perzentile der Histogramme
+
+    private static final Map<String, Family<?>> families = new ConcurrentHashMap<>();   //Alle Metriken nach Name
+    private static HttpServer http;
+
+    //Für die Raten im stats Befehl (Differenz zum letzten Aufruf)
+    private static final Map<String, Long> lastValues = new ConcurrentHashMap<>();
+    private static long lastPrint = System.nanoTime();
+
+    static {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        gauge("jvm_heap_used_bytes", "Used heap memory", () -> memory.getHeapMemoryUsage().getUsed());
+        gauge("jvm_heap_committed_bytes", "Committed heap memory", () -> memory.getHeapMemoryUsage().getCommitted());
+        gauge("jvm_heap_max_bytes", "Maximum heap memory", () -> memory.getHeapMemoryUsage().getMax());
+        Family<Supplier<Number>> gcCount = gauges("jvm_gc_collections", "Number of garbage collections", "gc");
+        Family<Supplier<Number>> gcTime = gauges("jvm_gc_seconds", "Time spent in garbage collection", "gc");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount.put(gc.getName(), gc::getCollectionCount);
+            gcTime.put(gc.getName(), () -> gc.getCollectionTime() / 1000.0);
+        }
+        gauge("jvm_threads", "Live threads", () -> ManagementFactory.getThreadMXBean().getThreadCount());
+    }
+
+    /**
+     * Registriert einen Zähler ohne Label (oder gibt den bestehenden zurück)
+     *
+     * @param name Name (Prometheus-Konvention: endet auf _total)
+     * @param help Beschreibung
+     * @return Zähler
+     */
+    public static Counter counter(String name, String help) {
+        return counters(name, help, null).get("");
+    }
+
+    /**
+     * Registriert eine Familie von Zählern mit einem Label (z.B. type)
+     *
+     * @param name  Name
+     * @param help  Beschreibung
+     * @param label Name des Labels
+     * @return Familie, pro Label-Wert ein Zähler
+     */
+    public static Family<Counter> counters(String name, String help, String label) {
+        return family(name, help, "counter", label, v -> new Counter());
+    }
+
+    /**
+     * Registriert ein Histogramm ohne Label (Werte in ns, ausgegeben in Sekunden)
+     *
+     * @param name Name (Prometheus-Konvention: endet auf _seconds)
+     * @param help Beschreibung
+     * @return Histogramm
+     */
+    public static Histogram histogram(String name, String help) {
+        return histograms(name, help, null).get("");
+    }
+
+    /**
+     * Registriert eine Familie von Histogrammen mit einem Label (z.B. op)
+     *
+     * @param name  Name
+     * @param help  Beschreibung
+     * @param label Name des Labels
+     * @return Familie, pro Label-Wert ein Histogramm
+     */
+    public static Family<Histogram> histograms(String name, String help, String label) {
+        return family(name, help, "summary", label, v -> new Histogram());
+    }
+
+    /**
+     * Registriert einen Momentwert, der erst beim Auslesen berechnet wird
+     *
+     * @param name  Name
+     * @param help  Beschreibung
+     * @param value Liefert den aktuellen Wert
+     */
+    public static void gauge(String name, String help, Supplier<Number> value) {
+        gauges(name, help, null).put("", value);
+    }
+
+    /**
+     * Registriert eine Familie von Momentwerten mit einem Label (Werte über Family.put)
+     *
+     * @param name  Name
+     * @param help  Beschreibung
+     * @param label Name des Labels
+     * @return Familie
+     */
+    public static Family<Supplier<Number>> gauges(String name, String help, String label) {
+        return family(name, help, "gauge", label, v -> () -> 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Family<T> family(String name, String help, String type, String label, Function<String, T> factory) {
+        Family<?> family = families.computeIfAbsent(name, n -> new Family<>(n, help, type, label, factory));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as " + family.type);
+        }
+        return (Family<T>) family;
+    }
+
+    /**
+     * Startet den Prometheus-Endpunkt (GET /metrics) an HOST:PORT
+     */
+    public static synchronized void startExporter() {
+        if (PORT <= 0 || http != null) {
+            return;
+        }
+        try {
+            http = HttpServer.create(new InetSocketAddress(HOST, PORT), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            http.start();   //Eigener (einzelner) Thread, Scrapes stören die Verarbeitung nicht
+            Util.log("Metrics available at http://" + HOST + ":" + PORT + "/metrics");
+        } catch (IOException e) {
+            Util.log(e.getMessage() + " @server.Metrics.startExporter IOException, metrics endpoint disabled");
+            http = null;
+        }
+    }
+
+    //Stoppt den Prometheus-Endpunkt
+    public static synchronized void stopExporter() {
+        if (http != null) {
+            http.stop(0);
+            http = null;
+        }
+    }
+
+    /**
+     * Gibt alle Metriken im Prometheus-Textformat (Version 0.0.4) zurück
+     *
+     * @return Text
+     */
+    public static String toPrometheus() {
+        StringBuilder sb = new StringBuilder(8192);
+        for (Family<?> family : new TreeMap<>(families).values()) {
+            sb.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            sb.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, ?> child : new TreeMap<>(family.children).entrySet()) {
+                String labels = family.labels(child.getKey());
+                Object metric = child.getValue();
+                if (metric instanceof Histogram) {
+                    Histogram h = (Histogram) metric;
+                    for (double q : QUANTILES) {
+                        String quantile = "quantile=\"" + q + "\"";
+                        sb.append(family.name).append(labels.isEmpty() ? "{" + quantile + "}" : labels.substring(0, labels.length() - 1) + "," + quantile + "}")
+                                .append(' ').append(h.getPercentile(q) / 1e9).append('\n');
+                    }
+                    sb.append(family.name).append("_sum").append(labels).append(' ').append(h.getSum() / 1e9).append('\n');
+                    sb.append(family.name).append("_count").append(labels).append(' ').append(h.getCount()).append('\n');
+                } else {
+                    sb.append(family.name).append(labels).append(' ').append(valueOf(metric)).append('\n');
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Gibt alle Metriken in der Konsole aus: Zähler mit Rate seit dem letzten Aufruf, Histogramme mit Perzentilen (in us)
+     */
+    public static synchronized void printStats() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-3, (now - lastPrint) / 1e9);
+        lastPrint = now;
+        System.out.println("Metrics (rates over the last " + String.format("%.1f", seconds) + " s):");
+        for (Family<?> family : new TreeMap<>(families).values()) {
+            for (Map.Entry<String, ?> child : new TreeMap<>(family.children).entrySet()) {
+                String name = family.name + family.labels(child.getKey());
+                Object metric = child.getValue();
+                if (metric instanceof Histogram) {
+                    Histogram h = (Histogram) metric;
+                    if (h.getCount() == 0) {
+                        continue;
+                    }
+                    System.out.println("|--" + name + ": n=" + h.getCount() + ", mean " + h.getSum() / h.getCount() / 1000 + " us, p50 "
+                            + h.getPercentile(0.5) / 1000 + " us, p99 " + h.getPercentile(0.99) / 1000 + " us, p99.9 "
+                            + h.getPercentile(0.999) / 1000 + " us, max " + h.getMax() / 1000 + " us");
+                } else if (metric instanceof Counter) {
+                    long value = ((Counter) metric).get();
+                    Long last = lastValues.put(name, value);
+                    System.out.println("|--" + name + ": " + value + " (" + String.format("%.1f", (value - (last == null ? 0 : last)) / seconds) + "/s)");
+                } else {
+                    System.out.println("|--" + name + ": " + valueOf(metric));
+                }
+            }
+        }
+    }
+
+    private static Object valueOf(Object metric) {
+        if (metric instanceof Counter) {
+            return ((Counter) metric).get();
+        }
+        try {
+            return ((Supplier<?>) metric).get();
+        } catch (RuntimeException e) {     //z.B. Gauge auf einen schon geschlossenen Speicher
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Metriken mit gleichem Namen, unterschieden durch den Wert eines Labels
+     *
+     * @param <T> Counter, Histogram oder Supplier (Gauge)
+     */
+    public static final class Family<T> {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final String label;     //null = kein Label
+        private final Function<String, T> factory;
+        private final Map<String, T> children = new ConcurrentHashMap<>();
+
+        private Family(String name, String help, String type, String label, Function<String, T> factory) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.label = label;
+            this.factory = factory;
+        }
+
+        /**
+         * Gibt die Metrik für einen Label-Wert zurück (wird beim ersten Mal angelegt).
+         * Die Werte sollten aus einer festen, kleinen Menge stammen (nicht direkt aus Client-Daten)
+         *
+         * @param value Label-Wert
+         * @return Metrik
+         */
+        public T get(String value) {
+            T child = children.get(value);
+            return child != null ? child : children.computeIfAbsent(value, factory);
+        }
+
+        //Setzt die Metrik für einen Label-Wert (für Gauges)
+        public void put(String value, T metric) {
+            children.put(value, metric);
+        }
+
+        private String labels(String value) {
+            if (label == null) {
+                return "";
+            }
+            return "{" + label + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"}";
+        }
+    }
+
+    /**
+     * Monoton steigender Zähler
+     */
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Latenz-Histogramm mit log-linearen Buckets (wie HdrHistogram): pro Zweierpotenz 16 Buckets, der relative Fehler
+     * eines Perzentils ist also höchstens 1/16. Werte in ns, feste Größe unabhängig von der Anzahl der Werte
+     */
+    public static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB = 1 << SUB_BITS;                 //Buckets pro Zweierpotenz
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB;     //Deckt alle positiven long Werte ab
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Zeichnet einen Wert auf
+         *
+         * @param nanos Dauer in ns
+         */
+        public void record(long nanos) {
+            long v = Math.max(0, nanos);
+            buckets.incrementAndGet(index(v));
+            count.increment();
+            sum.add(v);
+            long m = max.get();
+            while (v > m && !max.compareAndSet(m, v)) {
+                m = max.get();
+            }
+        }
+
+        /**
+         * Zeichnet die Dauer seit start auf
+         *
+         * @param start Startzeitpunkt (System.nanoTime())
+         */
+        public void recordSince(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        private static int index(long v) {
+            if (v < SUB) {
+                return (int) v;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            return (exp - SUB_BITS + 1) * SUB + (int) ((v >>> (exp - SUB_BITS)) & (SUB - 1));
+        }
+
+        //Größter Wert, der in Bucket index fällt
+        private static long upperBound(int index) {
+            if (index < SUB) {
+                return index;
+            }
+            int shift = index / SUB - 1;
+            return ((long) (SUB + index % SUB) << shift) + (1L << shift) - 1;
+        }
+
+        /**
+         * Ermittelt ein Perzentil (obere Grenze des Buckets, höchstens der Maximalwert)
+         *
+         * @param quantile z.B. 0.99
+         * @return Wert in ns (0, wenn noch nichts aufgezeichnet wurde)
+         */
+        public long getPercentile(double quantile) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package server;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Begrenzte Sende-Warteschlange einer Verbindung. Frames werden nur an Java-WebSocket übergeben, solange dessen
+ * Sendepuffer leer ist, der Rest wartet hier (maximal HIGH_WATERMARK Frames). Ist die Warteschlange voll,
+ * entscheidet POLICY, was passiert. Ein langsamer Client kann dadurch nicht mehr unbegrenzt Heap belegen.
+ * Verworfene Frames werden dem Client vor dem nächsten übergebenen Frame mit einer "frames_dropped" Nachricht
+ * (content = Anzahl) gemeldet, damit er die Lücke (z.B. im Chat oder in einer History) erkennt.
+ * <p>
+ * Übergeben wird außerhalb des Locks, es übergibt aber immer nur ein Thread gleichzeitig (writing), damit die
+ * Reihenfolge der Frames erhalten bleibt
+ */
+public class OutboundQueue {
+    public enum Policy {
+        DROP_OLDEST,    //Ältesten wartenden Frame verwerfen
+        COALESCE,       //Älteren Frame mit gleichem Key (z.B. Status eines Users) ersetzen, sonst ältesten verwerfen
+        DISCONNECT      //Verbindung schließen
+    }
+
+    public static int HIGH_WATERMARK = 1024;            //Maximale Anzahl wartender Frames pro Verbindung
+    public static int LOW_WATERMARK = 256;              //Unter dieser Anzahl gilt eine Verbindung wieder als normal
+    public static Policy POLICY = Policy.DROP_OLDEST;   //Verhalten bei voller Warteschlange
+    public static int DRAIN_BATCH = 32;                 //So viele Frames werden pro Durchgang an einen leeren Sendepuffer übergeben
+    public static final int CLOSE_SLOW_CONSUMER = 1013; //Close-Code "Try Again Later"
+
+    private static final Map<WebSocket, OutboundQueue> queues = new ConcurrentHashMap<>();  //Warteschlange pro Verbindung
+    private static final Set<OutboundQueue> pending = ConcurrentHashMap.newKeySet();        //Warteschlangen mit wartenden Frames
+
+    //Statistiken über alle Verbindungen
+    private static final Metrics.Counter totalDropped = Metrics.counter("chat_outbound_dropped_total", "Frames dropped from full outbound queues");
+    private static final Metrics.Counter totalCoalesced = Metrics.counter("chat_outbound_coalesced_total", "Frames replaced by a newer frame with the same key");
+    private static final Metrics.Counter totalDisconnects = Metrics.counter("chat_outbound_disconnects_total", "Slow consumers disconnected by the outbound queue");
+
+    private final WebSocket conn;
+    private final Deque<Frame> frames = new ArrayDeque<>();
+    private boolean lagging;        //Hat HIGH_WATERMARK erreicht und ist noch nicht unter LOW_WATERMARK
+    private boolean closed;
+    private boolean writing;        //Ein Thread übergibt gerade Frames (außerhalb des Locks)
+    private long gap;               //Verworfene Frames, die dem Client noch nicht gemeldet wurden
+    private boolean gapBinary;      //Format der Meldung (wie der zuletzt verworfene Frame)
+    private Runnable onDrained;     //Wird ausgeführt, sobald Warteschlange und Sendepuffer leer sind (s. whenDrained)
+    private int peakDepth;
+    private long dropped;
+    private long coalesced;
+
+    private OutboundQueue(WebSocket conn) {
+        this.conn = conn;
+    }
+
+    /**
+     * Erstellt die Warteschlange einer neuen Verbindung
+     *
+     * @param conn Verbindung
+     * @return Warteschlange
+     */
+    public static OutboundQueue open(WebSocket conn) {
+        return queues.computeIfAbsent(conn, OutboundQueue::new);
+    }
+
+    /**
+     * Gibt die Warteschlange einer Verbindung zurück
+     *
+     * @param conn Verbindung
+     * @return Warteschlange oder null
+     */
+    public static OutboundQueue get(WebSocket conn) {
+        return conn == null ? null : queues.get(conn);
+    }
+
+    /**
+     * Entfernt die Warteschlange einer geschlossenen Verbindung (wartende Frames werden verworfen)
+     *
+     * @param conn Verbindung
+     */
+    public static void close(WebSocket conn) {
+        OutboundQueue queue = queues.remove(conn);
+        if (queue != null) {
+            synchronized (queue) {
+                queue.closed = true;
+                queue.frames.clear();
+                queue.onDrained = null;
+            }
+            pending.remove(queue);
+        }
+    }
+
+    /**
+     * Übergibt wartende Frames aller Verbindungen, deren Sendepuffer leer ist (wird regelmäßig vom Server aufgerufen)
+     */
+    public static void drainAll() {
+        for (Iterator<OutboundQueue> it = pending.iterator(); it.hasNext(); ) {
+            OutboundQueue queue = it.next();
+            if (queue.drain()) {
+                it.remove();
+                if (queue.isWaiting()) {     //Zwischen drain() und remove() kam ein neuer Frame (oder whenDrained) dazu
+                    pending.add(queue);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sendet einen Frame: direkt, wenn nichts wartet und der Sendepuffer leer ist, sonst über die Warteschlange
+     *
+     * @param payload Kodierte Nachricht (String = Legacy Format, byte[] = MessageCodec, PreparedFrame = Broadcast)
+     * @param key     Key zum Zusammenfassen (COALESCE) oder null
+     */
+    public void send(Object payload, String key) {
+        boolean direct = false;
+        boolean disconnect = false;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (!writing && frames.isEmpty() && gap == 0 && !conn.hasBufferedData()) {
+                writing = true;
+                direct = true;
+            } else if (frames.size() >= HIGH_WATERMARK) {
+                if (!lagging) {
+                    lagging = true;
+                    Util.log(AsyncLogger.Level.WARN, "Slow consumer " + addressOf(conn) + ": outbound queue full (" + frames.size() + " frames), policy " + POLICY);
+                }
+                switch (POLICY) {
+                    case COALESCE:
+                        if (key != null && replace(key, payload)) {
+                            coalesced++;
+                            totalCoalesced.increment();
+                            return;
+                        }
+                        dropOldest();   //kein Frame mit gleichem Key -> wie DROP_OLDEST
+                        break;
+                    case DROP_OLDEST:
+                        dropOldest();
+                        break;
+                    case DISCONNECT:
+                        closed = true;
+                        dropped += frames.size() + 1;
+                        totalDropped.add(frames.size() + 1);
+                        frames.clear();
+                        disconnect = true;
+                        break;
+                }
+            }
+            if (!direct && !disconnect) {
+                frames.addLast(new Frame(payload, key));
+                peakDepth = Math.max(peakDepth, frames.size());
+            }
+        }
+        if (direct) {
+            try {
+                write(payload);     //Außerhalb des Locks, andere Threads reihen solange ein
+            } finally {
+                finishWrite();
+            }
+        } else if (disconnect) {   //Außerhalb des Locks, da close() evtl. direkt onClose auslöst
+            totalDisconnects.increment();
+            queues.remove(conn, this);
+            pending.remove(this);
+            conn.close(CLOSE_SLOW_CONSUMER, "Slow consumer");
+        } else {
+            pending.add(this);
+        }
+    }
+
+    /**
+     * Führt task aus, sobald alle wartenden Frames übergeben sind und der Sendepuffer der Verbindung leer ist (z.B. um den
+     * nächsten History-Chunk zu laden). task läuft auf dem Thread von drainAll, darf also nicht blockieren.
+     * Wird die Verbindung vorher geschlossen, wird task verworfen
+     *
+     * @param task Aufgabe (ersetzt eine noch nicht ausgeführte)
+     */
+    public void whenDrained(Runnable task) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            onDrained = task;
+        }
+        pending.add(this);
+    }
+
+    //Verwirft den ältesten wartenden Frame und merkt ihn für die Meldung an den Client vor (Lock muss gehalten werden)
+    private void dropOldest() {
+        Object payload = frames.pollFirst().payload;
+        gap++;
+        gapBinary = payload instanceof byte[] || (payload instanceof PreparedFrame && ((PreparedFrame) payload).isBinary());
+        dropped++;
+        totalDropped.increment();
+    }
+
+    //Ersetzt den jüngsten wartenden Frame mit gleichem Key (Lock muss gehalten werden)
+    private boolean replace(String key, Object payload) {
+        for (Iterator<Frame> it = frames.descendingIterator(); it.hasNext(); ) {
+            Frame f = it.next();
+            if (key.equals(f.key)) {
+                f.payload = payload;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Übergibt bis zu DRAIN_BATCH Frames (und ggf. vorher die Meldung verworfener Frames), wenn der Sendepuffer der
+     * Verbindung leer ist. Ist danach alles übergeben, wird die mit whenDrained registrierte Aufgabe ausgeführt
+     *
+     * @return true, wenn keine Frames und keine Aufgabe mehr warten
+     */
+    private boolean drain() {
+        List<Object> batch = new ArrayList<>();
+        Runnable task;
+        synchronized (this) {
+            if (closed || !conn.isOpen()) {
+                frames.clear();
+                onDrained = null;
+                return true;
+            }
+            if (writing || conn.hasBufferedData()) {
+                return false;
+            }
+            if (gap > 0) {      //Die Lücke liegt vor dem ältesten noch wartenden Frame
+                Object notice = dropNotice(gap, gapBinary);
+                if (notice != null) {
+                    batch.add(notice);
+                }
+                gap = 0;
+            }
+            for (int i = 0; i < DRAIN_BATCH && !frames.isEmpty(); i++) {
+                batch.add(frames.pollFirst().payload);
+            }
+            if (lagging && frames.size() < LOW_WATERMARK) {
+                lagging = false;
+                Util.log(AsyncLogger.Level.INFO, "Consumer " + addressOf(conn) + " caught up (" + frames.size() + " frames queued, " + dropped + " dropped)");
+            }
+            if (!batch.isEmpty()) {
+                writing = true;
+                task = null;
+            } else if (onDrained != null) {     //Die Aufgabe erst, wenn auch die zuletzt übergebenen Frames den Sendepuffer verlassen haben
+                task = onDrained;
+                onDrained = null;
+            } else {
+                return true;
+            }
+        }
+        if (task == null) {
+            try {
+                for (Object payload : batch) {
+                    write(payload);     //Außerhalb des Locks, send() reiht solange ein
+                }
+            } finally {
+                finishWrite();
+            }
+            return !isWaiting();
+        }
+        try {
+            task.run();     //Außerhalb des Locks, die Aufgabe darf wieder Frames senden
+        } catch (RuntimeException e) {
+            Util.log(e + " @server.OutboundQueue.drain");     //Sonst würde der Drainer still beendet
+        }
+        return true;
+    }
+
+    //Gibt die Verbindung für den nächsten übergebenden Thread frei
+    private synchronized void finishWrite() {
+        writing = false;
+    }
+
+    //Warten noch Frames, eine Meldung oder eine Aufgabe (s. whenDrained)
+    private synchronized boolean isWaiting() {
+        return !frames.isEmpty() || gap > 0 || onDrained != null;
+    }
+
+    /**
+     * Kodiert die Meldung verworfener Frames
+     *
+     * @param count  Anzahl verworfener Frames
+     * @param binary MessageCodec statt Legacy Format
+     * @return Kodierte Nachricht oder null
+     */
+    private static Object dropNotice(long count, boolean binary) {
+        HashMap<String, String> map = new HashMap<>();
+        map.put("type", "frames_dropped");
+        map.put("content", String.valueOf(count));
+        map.put("time", String.valueOf(System.currentTimeMillis()));
+        if (binary) {
+            return MessageCodec.encode(map);
+        }
+        try {
+            return Server.objectToString(map);
+        } catch (IOException e) {
+            Util.log(e.getMessage() + " @server.OutboundQueue.dropNotice IOException");
+            return null;
+        }
+    }
+
+    private void write(Object payload) {
+        write(conn, payload);
+    }
+
+    /**
+     * Übergibt einen kodierten Frame an Java-WebSocket
+     *
+     * @param conn    Verbindung
+     * @param payload String (Legacy Format), byte[] (MessageCodec) oder PreparedFrame (Broadcast)
+     */
+    static void write(WebSocket conn, Object payload) {
+        try {
+            if (payload instanceof PreparedFrame) {
+                conn.sendFrame(((PreparedFrame) payload).frame());     //Einmal kodiert, für alle Empfänger
+            } else if (payload instanceof byte[]) {
+                conn.send((byte[]) payload);    //Binärer Frame
+            } else {
+                conn.send((String) payload);    //Legacy Format
+            }
+        } catch (WebsocketNotConnectedException e) {
+            //A websocket that just disconnects can't receive any messages -> Exception, ignore
+        }
+    }
+
+    private static String addressOf(WebSocket conn) {
+        return conn.getRemoteSocketAddress() == null ? String.valueOf(conn) : conn.getRemoteSocketAddress().toString();
+    }
+
+    //Anzahl wartender Frames
+    public synchronized int getDepth() {
+        return frames.size();
+    }
+
+    //Höchste Anzahl gleichzeitig wartender Frames
+    public synchronized int getPeakDepth() {
+        return peakDepth;
+    }
+
+    //Anzahl verworfener Frames
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    //Anzahl zusammengefasster Frames
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    //Hat die Warteschlange HIGH_WATERMARK erreicht (und ist noch nicht wieder unter LOW_WATERMARK)
+    public synchronized boolean isLagging() {
+        return lagging;
+    }
+
+    //Anzahl aller wartenden Frames (über alle Verbindungen)
+    public static int getTotalDepth() {
+        int depth = 0;
+        for (OutboundQueue queue : queues.values()) {
+            depth += queue.getDepth();
+        }
+        return depth;
+    }
+
+    //Anzahl der Verbindungen, die gerade als zu langsam gelten
+    public static int getLaggingCount() {
+        int lagging = 0;
+        for (OutboundQueue queue : queues.values()) {
+            if (queue.isLagging()) {
+                lagging++;
+            }
+        }
+        return lagging;
+    }
+
+    //Gibt die Statistiken aller Warteschlangen in der Konsole aus
+    public static void printStats() {
+        int depth = getTotalDepth();
+        int lagging = getLaggingCount();
+        System.out.println("Outbound queues: " + queues.size() + " connections, " + depth + " frames queued, " + lagging + " lagging, "
+                + totalDropped.get() + " dropped, " + totalCoalesced.get() + " coalesced, " + totalDisconnects.get() + " slow consumers disconnected");
+    }
+
+    /**
+     * Wartender Frame
+     */
+    private static final class Frame {
+        Object payload;
+        final String key;
+
+        Frame(Object payload, String key) {
+            this.payload = payload;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * MessageBus über TCP zwischen mehreren Server-Prozessen (Peer-to-Peer, jeder Knoten kennt alle anderen).
+ * Jeder Knoten nimmt an CLUSTER_PORT Verbindungen an und baut zu jedem Peer eine eigene ausgehende Verbindung auf,
+ * über die nur seine eigenen Events gehen. Ein Event wird einmal mit dem MessageCodec kodiert und als
+ * [int Länge][Frame] an alle Peers geschickt.
+ * <p>
+ * Pro Ursprung gibt es genau eine TCP-Verbindung und einen Lese-Thread, die Events kommen also in der Reihenfolge von seq an.
+ * Ist ein Peer nicht erreichbar, werden seine Events bis SEND_QUEUE_CAPACITY gepuffert (danach die ältesten verworfen);
+ * Lücken in seq werden beim Empfänger erkannt und geloggt, doppelte Events (seq schon gesehen) verworfen.
+ * <p>
+ * Die Verbindungen sind nicht authentifiziert: eingehende Verbindungen werden nur von den Adressen der konfigurierten
+ * Peers angenommen, und der Port sollte nur im internen Netz erreichbar sein (Standard: nur Loopback)
+ */
+public class PeerBus implements MessageBus {
+    public static int SEND_QUEUE_CAPACITY = 65_536;         //Maximale Anzahl gepufferter Events pro Peer
+    public static long RECONNECT_DELAY = 1000;              //Wartezeit (ms) vor einem neuen Verbindungsversuch
+    public static int CONNECT_TIMEOUT = 2000;               //Timeout (ms) für den Verbindungsaufbau
+    public static int MAX_FRAME_SIZE = 16 * 1024 * 1024;    //Größere Frames werden als fehlerhaft betrachtet
+
+    private final String nodeId;
+    private final ServerSocket serverSocket;
+    private final List<Peer> peers = new ArrayList<>();
+    private final List<InetSocketAddress> peerAddresses;                    //Nur von diesen Hosts werden Verbindungen angenommen
+    private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();     //Eingehende Verbindungen (zum Schließen)
+    private final Map<String, Long> lastSeq = new ConcurrentHashMap<>();    //Letzte empfangene seq pro Ursprung
+    private long seq;                   //Letzte vergebene Nummer (Zugriff nur mit Lock auf this)
+    private volatile Consumer<HashMap<String, String>> listener;
+    private volatile boolean running = true;
+
+    //Statistiken
+    private final LongAdder published = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Startet den Knoten: nimmt an bindAddress:port Verbindungen an und verbindet sich mit allen Peers
+     *
+     * @param nodeId      ID des Knotens
+     * @param bindAddress Adresse für eingehende Verbindungen (z.B. 127.0.0.1 oder die Adresse im internen Netz)
+     * @param port        Port für eingehende Verbindungen anderer Knoten
+     * @param peers       Adressen aller anderen Knoten
+     * @throws IOException Port belegt
+     */
+    public PeerBus(String nodeId, String bindAddress, int port, List<InetSocketAddress> peers) throws IOException {
+        this.nodeId = nodeId;
+        this.peerAddresses = peers;
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(bindAddress, port));     //Verbindungen werden erst mit setListener angenommen, damit kein Event verloren geht
+        for (InetSocketAddress address : peers) {
+            Peer peer = new Peer(address);
+            this.peers.add(peer);
+            startThread(peer, "bus-peer-" + address.getHostString() + ":" + address.getPort());
+        }
+        log("Message bus node " + nodeId + " listening on " + bindAddress + ":" + port + " with " + peers.size() + " peers");
+    }
+
+    /**
+     * Liest eine Peer-Liste der Form "host:port,host:port"
+     *
+     * @param peers Peer-Liste (leer oder null = keine Peers)
+     * @return Adressen der Peers
+     */
+    public static List<InetSocketAddress> parsePeers(String peers) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        if (peers == null) {
+            return addresses;
+        }
+        for (String peer : peers.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int colon = peer.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Invalid peer '" + peer + "', expected host:port");
+            }
+            addresses.add(InetSocketAddress.createUnresolved(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+        return addresses;
+    }
+
+    @Override
+    public void publish(HashMap<String, String> event) {
+        synchronized (this) {   //seq vergeben und einreihen in einem Schritt, damit seq bei allen Peers aufsteigend ankommt
+            event.put("origin", nodeId);
+            event.put("seq", String.valueOf(++seq));
+            byte[] frame = MessageCodec.encode(event);     //Einmal kodieren, an alle Peers verteilen
+            for (Peer peer : peers) {
+                peer.offer(frame);
+            }
+        }
+        published.increment();
+        deliver(event);     //Der eigene Knoten bekommt das Event direkt
+    }
+
+    private void deliver(HashMap<String, String> event) {
+        Consumer<HashMap<String, String>> l = listener;
+        if (l == null) {
+            return;
+        }
+        try {
+            l.accept(event);
+        } catch (RuntimeException e) {
+            log(e.getMessage() + " @server.PeerBus.deliver Exception");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Nimmt Verbindungen anderer Knoten an (ein Lese-Thread pro Verbindung)
+     */
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                if (!isPeer(socket.getInetAddress())) {     //Sonst könnte jeder, der den Port erreicht, Nachrichten einschleusen
+                    rejected.increment();
+                    log("Rejected message bus connection from " + socket.getRemoteSocketAddress() + ", not a configured peer");
+                    socket.close();
+                    continue;
+                }
+                inbound.add(socket);
+                startThread(() -> readLoop(socket), "bus-reader-" + socket.getRemoteSocketAddress());
+            } catch (IOException e) {
+                if (running) {
+                    log(e.getMessage() + " @server.PeerBus.acceptLoop IOException");
+                }
+            }
+        }
+    }
+
+    /**
+     * Überprüft, ob address zu einem der konfigurierten Peers gehört. Die Hostnamen werden bei jeder Verbindung neu
+     * aufgelöst (Verbindungen sind selten, und so wird eine geänderte Adresse eines Peers übernommen)
+     *
+     * @param address Adresse der eingehenden Verbindung
+     * @return true, wenn die Verbindung angenommen werden darf
+     */
+    private boolean isPeer(InetAddress address) {
+        Set<InetAddress> allowed = new HashSet<>();
+        for (InetSocketAddress peer : peerAddresses) {
+            try {
+                allowed.addAll(Arrays.asList(InetAddress.getAllByName(peer.getHostString())));
+            } catch (UnknownHostException e) {
+                log(e.getMessage() + " @server.PeerBus.isPeer UnknownHostException");
+            }
+        }
+        return allowed.contains(address);
+    }
+
+    /**
+     * Liest die Events eines anderen Knotens, bis die Verbindung geschlossen wird
+     *
+     * @param socket Eingehende Verbindung
+     */
+    private void readLoop(Socket socket) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (running) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_FRAME_SIZE) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                receive(MessageCodec.decode(ByteBuffer.wrap(frame)));
+            }
+        } catch (EOFException | SocketException e) {
+            //Peer hat die Verbindung geschlossen (Neustart o.ä.), er baut sie selbst wieder auf
+        } catch (IOException | IllegalArgumentException e) {
+            log(e.getMessage() + " @server.PeerBus.readLoop Exception from " + socket.getRemoteSocketAddress());
+        } finally {
+            inbound.remove(socket);
+        }
+    }
+
+    /**
+     * Prüft seq eines empfangenen Events (doppelt, Lücke) und stellt es zu
+     *
+     * @param event Event eines anderen Knotens
+     */
+    private void receive(HashMap<String, String> event) {
+        String origin = event.get("origin");
+        if (origin == null || origin.equals(nodeId) || event.get("seq") == null) {
+            return;
+        }
+        long s = Long.parseLong(event.get("seq"));
+        Long last = lastSeq.get(origin);
+        if (last != null && s <= last) {
+            duplicates.increment();
+            return;
+        }
+        if (last != null && s > last + 1) {
+            lost.add(s - last - 1);
+            log("Lost " + (s - last - 1) + " events from node " + origin + " (seq " + (last + 1) + " to " + (s - 1) + ")");
+        }
+        lastSeq.put(origin, s);     //Nur der Lese-Thread dieses Ursprungs schreibt den Wert
+        received.increment();
+        deliver(event);
+    }
+
+    @Override
+    public synchronized void setListener(Consumer<HashMap<String, String>> listener) {
+        boolean first = this.listener == null;
+        this.listener = listener;
+        if (first && listener != null) {   //Bis hierhin warten die Events der anderen Knoten in deren Warteschlangen
+            startThread(this::acceptLoop, "bus-acceptor");
+        }
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void printStats() {
+        System.out.println("Message bus (tcp, node " + nodeId + "): " + published.sum() + " published, " + received.sum() + " received, "
+                + duplicates.sum() + " duplicates, " + lost.sum() + " lost, " + rejected.sum() + " rejected connections");
+        for (Peer peer : peers) {
+            System.out.println("|--" + peer);
+        }
+        System.out.println("+--inbound connections: " + inbound.size() + ", known origins: " + lastSeq.keySet());
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            log(e.getMessage() + " @server.PeerBus.close IOException");
+        }
+        for (Socket socket : inbound) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //Wird ohnehin geschlossen
+            }
+        }
+        for (Peer peer : peers) {
+            peer.close();
+        }
+    }
+
+    private static void startThread(Runnable task, String name) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static void log(String s) {
+        Util.log(s);
+    }
+
+    /**
+     * Ausgehende Verbindung zu einem anderen Knoten mit eigener Warteschlange und eigenem Sende-Thread
+     */
+    private class Peer implements Runnable {
+        private final InetSocketAddress address;
+        private final String name;     //host:port (für den Log)
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(SEND_QUEUE_CAPACITY);
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+        private volatile boolean connected;
+        private volatile Socket socket;
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+            this.name = address.getHostString() + ":" + address.getPort();
+        }
+
+        //Reiht einen Frame ein, bei voller Warteschlange wird der älteste verworfen
+        void offer(byte[] frame) {
+            while (!queue.offer(frame)) {
+                if (queue.poll() != null) {
+                    dropped.increment();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            byte[] pending = null;     //Frame, der beim letzten Verbindungsabbruch nicht geschrieben werden konnte
+            boolean warned = false;
+            while (running) {
+                try (Socket s = new Socket()) {
+                    socket = s;
+                    s.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT);
+                    s.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                    connected = true;
+                    warned = false;
+                    log("Message bus connected to peer " + name);
+                    while (running) {
+                        if (pending == null) {
+                            pending = queue.poll(100, TimeUnit.MILLISECONDS);
+                            if (pending == null) {
+                                continue;
+                            }
+                        }
+                        out.writeInt(pending.length);
+                        out.write(pending);
+                        pending = null;
+                        sent.increment();
+                        if (queue.isEmpty()) {     //Erst flushen, wenn gerade nichts mehr wartet (mehrere Events pro Paket)
+                            out.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    if (running && !warned) {   //Nur einmal pro Ausfall loggen
+                        log("Message bus peer " + name + " unavailable: " + e.getMessage());
+                        warned = true;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    connected = false;
+                }
+                try {
+                    Thread.sleep(RECONNECT_DELAY);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        void close() {
+            Socket s = socket;
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (IOException e) {
+                    //Wird ohnehin geschlossen
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "peer " + name + (connected ? " connected" : " disconnected")
+                    + ", " + sent.sum() + " sent, " + queue.size() + " queued, " + dropped.sum() + " dropped";
+        }
+    }
+}
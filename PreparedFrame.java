@@ -0,0 +1,52 @@
+package server;
+
+import org.java_websocket.framing.BinaryFrame;
+import org.java_websocket.framing.DataFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.TextFrame;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Einmal kodierte Nachricht für einen Broadcast. Die Nutzdaten (UTF-8 des Legacy Formats bzw. MessageCodec-Bytes) werden
+ * nur einmal erzeugt, jede Verbindung bekommt nur noch einen eigenen Frame um dieselben Bytes.
+ * Ein gemeinsamer Frame für alle Verbindungen geht nicht: Java-WebSocket liest beim Senden die Position des Payloads,
+ * und die Frames einer Nachricht werden von mehreren Threads (Sender und drainAll) gleichzeitig gesendet
+ */
+public class PreparedFrame {
+    private final ByteBuffer payload;
+    private final boolean binary;
+
+    private PreparedFrame(ByteBuffer payload, boolean binary) {
+        this.payload = payload;
+        this.binary = binary;
+    }
+
+    //Legacy Format (Text-Frame)
+    public static PreparedFrame text(String frame) {
+        return new PreparedFrame(ByteBuffer.wrap(frame.getBytes(StandardCharsets.UTF_8)), false);
+    }
+
+    //MessageCodec (Binär-Frame)
+    public static PreparedFrame binary(byte[] frame) {
+        return new PreparedFrame(ByteBuffer.wrap(frame), true);
+    }
+
+    //Binär-Frame (MessageCodec) statt Legacy Format
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Erstellt den Frame für eine Verbindung (teilt die Bytes, nicht die Position)
+     *
+     * @return Frame
+     */
+    public Framedata frame() {
+        DataFrame frame = binary ? new BinaryFrame() : new TextFrame();
+        frame.setPayload(payload.duplicate());
+        frame.setFin(true);
+        return frame;
+    }
+}
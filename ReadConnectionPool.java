@@ -0,0 +1,95 @@
+package server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kleiner Pool an schreibgeschützten SQLite-Verbindungen für Lese-Abfragen (z.B. die History).
+ * Im WAL-Modus blockieren sich Leser und der Writer dadurch nicht mehr gegenseitig
+ */
+public class ReadConnectionPool {
+    public static long ACQUIRE_TIMEOUT = 5000;  //So lange (ms) wird maximal auf eine freie Verbindung gewartet
+
+    private final BlockingQueue<StatementCache> idle;               //Freie Verbindungen (mit ihren PreparedStatements)
+    private final List<StatementCache> all = new ArrayList<>();     //Alle Verbindungen (zum Schließen)
+    private volatile long schemaGeneration;                         //Wird bei Schema-Änderungen erhöht
+
+    /**
+     * Öffnet size Verbindungen und führt auf jeder die geg. PRAGMAs aus
+     *
+     * @param url     JDBC URL
+     * @param size    Anzahl Verbindungen
+     * @param pragmas PRAGMA Befehle (ohne "PRAGMA")
+     * @throws SQLException Error
+     */
+    public ReadConnectionPool(String url, int size, String... pragmas) throws SQLException {
+        idle = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            Connection conn = DriverManager.getConnection(url);
+            try (Statement stmt = conn.createStatement()) {
+                for (String pragma : pragmas) {
+                    stmt.execute("PRAGMA " + pragma);
+                }
+                stmt.execute("PRAGMA query_only = ON");     //Verbindung kann nicht schreiben
+            }
+            StatementCache statements = new StatementCache(conn);
+            all.add(statements);
+            idle.add(statements);
+        }
+    }
+
+    /**
+     * Leiht eine Verbindung aus, diese muss mit release() zurückgegeben werden
+     *
+     * @return Statement-Cache der Verbindung
+     * @throws SQLException Wenn innerhalb von ACQUIRE_TIMEOUT keine Verbindung frei wird
+     */
+    public StatementCache acquire() throws SQLException {
+        try {
+            StatementCache statements = idle.poll(ACQUIRE_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (statements == null) {
+                throw new SQLException("No read connection available after " + ACQUIRE_TIMEOUT + " ms");
+            }
+            statements.checkGeneration(schemaGeneration);   //Nach einer Schema-Änderung neu kompilieren
+            return statements;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a read connection");
+        }
+    }
+
+    /**
+     * Gibt eine ausgeliehene Verbindung zurück
+     *
+     * @param statements Statement-Cache der Verbindung
+     */
+    public void release(StatementCache statements) {
+        if (statements != null) {
+            idle.offer(statements);
+        }
+    }
+
+    /**
+     * Markiert alle gecachten PreparedStatements als veraltet (nach einer Schema-Änderung).
+     * Jede Verbindung kompiliert ihre Statements beim nächsten acquire() neu
+     */
+    public void invalidateStatements() {
+        schemaGeneration++;
+    }
+
+    /**
+     * Schließt alle Verbindungen (inkl. Statements)
+     */
+    public void close() {
+        for (StatementCache statements : all) {
+            statements.close();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chat-Raum mit seinen Mitgliedern. Nachrichten eines Raums werden nur an dessen Mitglieder geschickt.
+ * Jeder User ist nach dem Verbinden Mitglied im DEFAULT Raum, leere Räume (außer DEFAULT) werden automatisch entfernt
+ */
+public class Room {
+    public static final String DEFAULT = "public";      //Raum, in dem jeder User ist (bisheriger globaler Chat)
+    public static int MAX_NAME_LENGTH = 64;             //Maximale Länge eines Raum-Namens
+
+    private static final Map<String, Room> rooms = new ConcurrentHashMap<>();   //Alle Räume nach Name
+
+    private final String name;
+    private final Set<User> members = ConcurrentHashMap.newKeySet();
+    private volatile List<User> snapshot = Collections.emptyList();     //Unveränderliche Momentaufnahme für Broadcasts (null = veraltet)
+
+    private Room(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Überprüft, ob name ein gültiger Raum-Name ist (1 bis MAX_NAME_LENGTH Zeichen, keine Steuerzeichen)
+     *
+     * @param name Raum-Name
+     * @return true, wenn gültig
+     */
+    public static boolean isValidName(String name) {
+        if (name == null || name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.isISOControl(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fügt user dem Raum hinzu (der Raum wird bei Bedarf erstellt)
+     *
+     * @param name Raum-Name
+     * @param user User
+     * @return false, wenn user schon Mitglied war
+     */
+    public static boolean join(String name, User user) {
+        boolean[] added = {false};
+        rooms.compute(name, (k, room) -> {     //Atomar pro Raum, damit ein gleichzeitig geleerter Raum nicht verloren geht
+            if (room == null) {
+                room = new Room(k);
+            }
+            synchronized (room) {
+                added[0] = room.members.add(user);
+                if (added[0]) {
+                    room.snapshot = null;
+                    user.addRoom(k);
+                }
+            }
+            return room;
+        });
+        return added[0];
+    }
+
+    /**
+     * Entfernt user aus dem Raum (ein leerer Raum wird entfernt, außer DEFAULT)
+     *
+     * @param name Raum-Name
+     * @param user User
+     * @return false, wenn user kein Mitglied war
+     */
+    public static boolean leave(String name, User user) {
+        boolean[] removed = {false};
+        rooms.computeIfPresent(name, (k, room) -> {
+            synchronized (room) {
+                removed[0] = room.members.remove(user);
+                if (removed[0]) {
+                    room.snapshot = null;
+                    user.removeRoom(k);
+                }
+            }
+            return room.members.isEmpty() && !DEFAULT.equals(k) ? null : room;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Ermittelt den Raum mit geg. Name
+     *
+     * @param name Raum-Name
+     * @return Raum oder null
+     */
+    public static Room get(String name) {
+        return name == null ? null : rooms.get(name);
+    }
+
+    //Gibt alle Räume zurück
+    public static Collection<Room> getRooms() {
+        return Collections.unmodifiableCollection(rooms.values());
+    }
+
+    /**
+     * Gibt alle Mitglieder zurück. Die Liste ist eine unveränderliche Momentaufnahme (copy-on-write),
+     * die nur nach einem Join/Leave neu aufgebaut wird
+     *
+     * @return Momentaufnahme aller Mitglieder
+     */
+    public List<User> getMembers() {
+        List<User> current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                current = snapshot;
+                if (current == null) {
+                    current = Collections.unmodifiableList(new ArrayList<>(members));
+                    snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    //Ist user Mitglied des Raums
+    public boolean isMember(User user) {
+        return members.contains(user);
+    }
+
+    //Gibt den Raum-Namen zurück
+    public String getName() {
+        return name;
+    }
+
+    //Schöne darstellung des Raum-Objekt
+    @Override
+    public String toString() {
+        return "Room: " + name + " (" + members.size() + " members)";
+    }
+}
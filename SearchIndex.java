@@ -0,0 +1,454 @@
+package server;
+
+import java.sql.*;
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Volltextsuche über die Nachrichten (SQLite FTS5, Tabelle public_fts).
+ * <p>
+ * Der Index wird nicht beim Speichern einer Nachricht aktualisiert, sondern im Hintergrund: ein Trigger auf public merkt
+ * sich nur die ID jeder neuen Nachricht in search_queue (AUTOINCREMENT, die Position wird also nie wiederverwendet, auch
+ * wenn der Archivierer Zeilen löscht). Der Indexer liest alle INDEX_INTERVAL ms die wartenden Nachrichten und fügt sie
+ * gesammelt in einer Transaktion ein, in der sie auch aus der Queue gelöscht werden. Weder der Client noch der
+ * MessageWriter warten also auf den Index, und nach einem Neustart holt der Indexer alles Fehlende automatisch nach.
+ * Archivierte Nachrichten bleiben im Index.
+ * <p>
+ * Suchbegriffe werden tippfehlertolerant erweitert: zu jedem Begriff werden über public_fts_vocab ähnliche Begriffe
+ * aus dem Index gesucht (Damerau-Levenshtein-Distanz 1 bzw. 2 bei langen Begriffen) und per OR verknüpft.
+ * Sortiert wird nach bm25
+ */
+public class SearchIndex {
+    public static long INDEX_INTERVAL = 1000;       //So oft (ms) werden neue Nachrichten indiziert
+    public static int INDEX_BATCH = 2000;           //Maximale Anzahl Nachrichten pro Transaktion
+    public static int MAX_QUERY_TERMS = 8;          //Weitere Suchbegriffe werden ignoriert
+    public static int MAX_EXPANSIONS = 8;           //Maximale Anzahl ähnlicher Begriffe pro Suchbegriff
+
+    private final Connection conn;                  //Eigene Verbindung des Indexers
+    private final ReadConnectionPool readers;       //Für Suchanfragen
+    private final ScheduledExecutorService indexer;
+
+    //Statistiken
+    private final LongAdder indexed = new LongAdder();
+    private final LongAdder searches = new LongAdder();
+    private volatile long lag;                      //Noch nicht indizierte Nachrichten beim letzten Durchgang
+
+    /**
+     * Legt den Index an (falls nötig), übernimmt beim ersten Start das Archiv und startet den Indexer
+     *
+     * @param url     JDBC-URL der Datenbank
+     * @param pragmas PRAGMAs für die Verbindung des Indexers
+     * @param readers Lese-Verbindungen für Suchanfragen
+     * @param archive Archiv (wird beim ersten Start mit indiziert) oder null
+     * @throws SQLException Wenn FTS5 nicht verfügbar ist
+     */
+    public SearchIndex(String url, String[] pragmas, ReadConnectionPool readers, MessageArchive archive) throws SQLException {
+        this.readers = readers;
+        conn = DriverManager.getConnection(url);
+        try (Statement stmt = conn.createStatement()) {
+            for (String pragma : pragmas) {
+                stmt.execute("PRAGMA " + pragma);
+            }
+            //Nur content wird indiziert, die übrigen Spalten dienen als Filter und für das Ergebnis
+            stmt.execute("CREATE VIRTUAL TABLE IF NOT EXISTS public_fts USING fts5(content, id UNINDEXED, author UNINDEXED, "
+                    + "author_id UNINDEXED, time UNINDEXED, room UNINDEXED, tokenize = 'unicode61 remove_diacritics 2')");
+            stmt.execute("CREATE VIRTUAL TABLE IF NOT EXISTS public_fts_vocab USING fts5vocab(public_fts, 'row')");
+            //Die Zeile in search_state markiert, dass das Archiv indiziert wurde (last_rowid wird seit search_queue nicht mehr verwendet)
+            stmt.execute("CREATE TABLE IF NOT EXISTS search_state (id INTEGER PRIMARY KEY CHECK (id = 1), last_rowid INTEGER NOT NULL)");
+            boolean queued;
+            try (ResultSet rs = stmt.executeQuery("SELECT 1 FROM sqlite_master WHERE type = 'trigger' AND name = 'public_search_queue'")) {
+                queued = rs.next();
+            }
+            if (!queued) {
+                createQueue(archive);
+            }
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+        indexer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "search-indexer");
+            t.setDaemon(true);
+            return t;
+        });
+        indexer.scheduleWithFixedDelay(this::indexNewMessages, 0, INDEX_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Legt search_queue und den Trigger an und reiht alle Nachrichten ein, die noch nicht im Index sind. Beim ersten Start
+     * wird außerdem das Archiv indiziert. Alles in einer Transaktion, es kann also keine neue Nachricht verloren gehen
+     *
+     * @param archive Archiv oder null
+     * @throws SQLException Error
+     */
+    private void createQueue(MessageArchive archive) throws SQLException {
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE search_queue (seq INTEGER PRIMARY KEY AUTOINCREMENT, id TEXT NOT NULL)");
+            stmt.execute("CREATE TRIGGER public_search_queue AFTER INSERT ON public BEGIN "
+                    + "INSERT INTO search_queue(id) VALUES (NEW.id); END");
+            boolean firstStart;
+            try (ResultSet rs = stmt.executeQuery("SELECT 1 FROM search_state WHERE id = 1")) {
+                firstStart = !rs.next();
+            }
+            if (firstStart) {
+                indexArchive(archive);     //Die Datenbank-Zeilen holt der Indexer über die Queue nach, das Archiv nicht
+                stmt.execute("INSERT INTO search_state(id, last_rowid) VALUES(1, 0)");
+            }
+            //Ältere Versionen sind public nach rowid gefolgt und konnten dabei Nachrichten übersehen -> alles Fehlende nachholen
+            int missing = stmt.executeUpdate("INSERT INTO search_queue(id) SELECT id FROM public "
+                    + "WHERE id NOT IN (SELECT id FROM public_fts) ORDER BY time, id");
+            conn.commit();
+            if (missing > 0) {
+                log("Queued " + missing + " messages for the search index");
+            }
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Indiziert alle schon archivierten Nachrichten (einmalig, in der Transaktion von createQueue)
+     *
+     * @param archive Archiv oder null
+     * @throws SQLException Error
+     */
+    private void indexArchive(MessageArchive archive) throws SQLException {
+        if (archive == null || archive.getArchivedUntil() == Long.MIN_VALUE) {
+            return;
+        }
+        try (PreparedStatement insert = conn.prepareStatement("INSERT INTO public_fts(content,id,author,author_id,time,room) VALUES(?,?,?,?,?,?)")) {
+            long[] count = {0};
+            SQLException[] error = {null};
+            archive.scan(null, Long.MIN_VALUE, archive.getArchivedUntil() - 1, Long.MIN_VALUE, "", m -> {
+                try {
+                    bind(insert, m.getContent(), m.getId(), m.getAuthor(), m.getAuthor_id(), m.getTimeMillis(), m.getRoom());
+                    insert.addBatch();
+                    if (++count[0] % INDEX_BATCH == 0) {
+                        insert.executeBatch();
+                    }
+                    return true;
+                } catch (SQLException e) {
+                    error[0] = e;
+                    return false;
+                }
+            });
+            if (error[0] != null) {
+                throw error[0];
+            }
+            insert.executeBatch();
+            if (count[0] > 0) {
+                log("Indexed " + count[0] + " archived messages for search");
+            }
+        }
+    }
+
+    /**
+     * Indiziert alle Nachrichten aus search_queue (in Transaktionen zu INDEX_BATCH Nachrichten), läuft auf dem Indexer-Thread
+     */
+    private void indexNewMessages() {
+        String countSql = "SELECT COUNT(*) FROM search_queue";
+        //Eine inzwischen gelöschte (archivierte) Nachricht hat keine Zeile in public mehr und wird übersprungen
+        String selectSql = "SELECT q.seq,p.id,p.content,p.author,p.author_id,p.time,p.room FROM search_queue q "
+                + "LEFT JOIN public p ON p.id = q.id ORDER BY q.seq LIMIT ?";
+        String insertSql = "INSERT INTO public_fts(content,id,author,author_id,time,room) VALUES(?,?,?,?,?,?)";
+        String dequeueSql = "DELETE FROM search_queue WHERE seq <= ?";
+        try (PreparedStatement count = conn.prepareStatement(countSql);
+             PreparedStatement select = conn.prepareStatement(selectSql);
+             PreparedStatement insert = conn.prepareStatement(insertSql);
+             PreparedStatement dequeue = conn.prepareStatement(dequeueSql)) {
+            try (ResultSet rs = count.executeQuery()) {
+                lag = rs.next() ? rs.getLong(1) : 0;
+            }
+            int rows;
+            do {
+                //Gelesen wird außerhalb der Transaktion (nur dieser Thread löscht aus der Queue), so beginnt die Transaktion
+                //mit einem Schreibzugriff und wartet per busy_timeout auf den MessageWriter, statt an einem veralteten Snapshot zu scheitern
+                rows = 0;
+                long last = -1;
+                int messages = 0;
+                select.setInt(1, INDEX_BATCH);
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        last = rs.getLong("seq");
+                        rows++;
+                        if (rs.getString("id") == null) {
+                            continue;
+                        }
+                        bind(insert, rs.getString("content"), rs.getString("id"), rs.getString("author"), rs.getString("author_id"),
+                                rs.getLong("time"), rs.getString("room"));
+                        insert.addBatch();
+                        messages++;
+                    }
+                }
+                if (rows == 0) {
+                    break;
+                }
+                conn.setAutoCommit(false);
+                insert.executeBatch();
+                dequeue.setLong(1, last);
+                dequeue.executeUpdate();
+                conn.commit();      //Index und Queue in einer Transaktion, nach einem Absturz wird nichts doppelt indiziert
+                conn.setAutoCommit(true);
+                indexed.add(messages);
+                lag = Math.max(0, lag - rows);
+            } while (rows == INDEX_BATCH);
+        } catch (SQLException e) {
+            log(e.getMessage() + " @server.SearchIndex.indexNewMessages SQLException");
+            try {
+                if (!conn.getAutoCommit()) {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                }
+            } catch (SQLException ex) {
+                log(ex.getMessage() + " @server.SearchIndex.indexNewMessages rollback SQLException");
+            }
+        } catch (RuntimeException e) {
+            log(e + " @server.SearchIndex.indexNewMessages");     //Sonst würde der Indexer still beendet
+        }
+    }
+
+    private static void bind(PreparedStatement insert, String content, String id, String author, String authorId, long time, String room) throws SQLException {
+        insert.setString(1, content);
+        insert.setString(2, id);
+        insert.setString(3, author);
+        insert.setString(4, authorId);
+        insert.setLong(5, time);
+        insert.setString(6, room);
+    }
+
+    /**
+     * Sucht Nachrichten eines Raums, sortiert nach Relevanz (bm25), bei gleicher Relevanz die neueren zuerst
+     *
+     * @param room   Raum
+     * @param query  Suchbegriffe (alle müssen vorkommen, jeweils mit Tippfehler-Toleranz)
+     * @param author Nur Nachrichten dieses Autors (null = alle)
+     * @param from   start-Wert (ms)
+     * @param to     end-Wert (ms)
+     * @param cursor Cursor der vorherigen Seite (Anzahl schon gelieferter Treffer) oder null
+     * @param limit  Maximale Anzahl Treffer
+     * @return Seite an Treffern (Nachricht + score und snippet)
+     */
+    public MessagePage search(String room, String query, String author, long from, long to, String cursor, int limit) {
+        searches.increment();
+        int offset = cursor == null ? 0 : Integer.parseInt(cursor);
+        List<Map<String, String>> results = new ArrayList<>(Math.min(limit, 64));
+        boolean hasMore = false;
+        String sql = "SELECT id,content,author,author_id,time,room,bm25(public_fts) AS score,"
+                + "snippet(public_fts, 0, '[', ']', '...', 12) AS snippet FROM public_fts "
+                + "WHERE public_fts MATCH ? AND room = ? AND time BETWEEN ? AND ? AND (? IS NULL OR author = ?) "
+                + "ORDER BY score, time DESC LIMIT ? OFFSET ?";
+        StatementCache statements = null;
+        try {
+            statements = readers.acquire();
+            String match = buildMatch(statements, query);
+            if (match == null) {     //Keine verwertbaren Suchbegriffe
+                return new MessagePage(results, false, null);
+            }
+            PreparedStatement pstmt = statements.get(sql);
+            pstmt.setString(1, match);
+            pstmt.setString(2, room);
+            pstmt.setLong(3, from);
+            pstmt.setLong(4, to);
+            pstmt.setString(5, author);
+            pstmt.setString(6, author);
+            pstmt.setInt(7, limit + 1);     //Ein Treffer mehr, um zu wissen, ob es eine weitere Seite gibt
+            pstmt.setInt(8, offset);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    if (results.size() == limit) {
+                        hasMore = true;
+                        break;
+                    }
+                    Map<String, String> m = new HashMap<>();
+                    m.put("id", rs.getString("id"));
+                    m.put("content", rs.getString("content"));
+                    m.put("author", rs.getString("author"));
+                    m.put("author_id", rs.getString("author_id"));
+                    m.put("time", rs.getString("time"));
+                    m.put("room", rs.getString("room"));
+                    m.put("score", String.valueOf(-rs.getDouble("score")));    //bm25: kleiner = relevanter, für den Client umgedreht
+                    m.put("snippet", rs.getString("snippet"));
+                    results.add(m);
+                }
+            }
+        } catch (SQLException e) {
+            log(e.getMessage() + " @server.SearchIndex.search SQLException");
+        } finally {
+            readers.release(statements);   //Verbindung zurück in den Pool
+        }
+        return new MessagePage(results, hasMore, hasMore ? String.valueOf(offset + limit) : null);
+    }
+
+    /**
+     * Baut den FTS5 MATCH-Ausdruck: pro Suchbegriff (Begriff OR Präfix OR ähnliche Begriffe), alle Suchbegriffe per AND
+     *
+     * @param statements Lese-Verbindung (für public_fts_vocab)
+     * @param query      Suchbegriffe des Users
+     * @return MATCH-Ausdruck oder null
+     * @throws SQLException Error
+     */
+    private String buildMatch(StatementCache statements, String query) throws SQLException {
+        List<String> terms = tokenize(query);
+        if (terms.isEmpty()) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        for (String term : terms) {
+            Set<String> alternatives = new LinkedHashSet<>();
+            alternatives.add(quote(term));
+            if (term.length() >= 3) {
+                alternatives.add(quote(term) + "*");    //Präfix, z.B. "serv" findet "server"
+            }
+            for (String similar : similarTerms(statements, term)) {
+                alternatives.add(quote(similar));
+            }
+            if (match.length() > 0) {
+                match.append(" AND ");
+            }
+            match.append('(').append(String.join(" OR ", alternatives)).append(')');
+        }
+        return match.toString();
+    }
+
+    /**
+     * Sucht Begriffe aus dem Index, die sich von term um höchstens 1 (ab 7 Zeichen: 2) Zeichen unterscheiden.
+     * Es werden nur Begriffe mit gleichem Anfangsbuchstaben betrachtet (über den term-Bereich in public_fts_vocab)
+     *
+     * @param statements Lese-Verbindung
+     * @param term       Suchbegriff (normalisiert)
+     * @return bis zu MAX_EXPANSIONS ähnliche Begriffe, die häufigsten zuerst
+     * @throws SQLException Error
+     */
+    private List<String> similarTerms(StatementCache statements, String term) throws SQLException {
+        if (term.length() < 4) {    //Bei kurzen Begriffen würde fast alles passen
+            return Collections.emptyList();
+        }
+        int maxDistance = term.length() <= 6 ? 1 : 2;
+        int first = term.codePointAt(0);
+        String sql = "SELECT term, doc FROM public_fts_vocab WHERE term >= ? AND term < ? AND length(term) BETWEEN ? AND ?";
+        PreparedStatement pstmt = statements.get(sql);
+        pstmt.setString(1, new String(Character.toChars(first)));
+        pstmt.setString(2, new String(Character.toChars(first + 1)));
+        pstmt.setInt(3, term.length() - maxDistance);
+        pstmt.setInt(4, term.length() + maxDistance);
+        List<long[]> ranks = new ArrayList<>();     //{Index in candidates, doc}
+        List<String> candidates = new ArrayList<>();
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                String candidate = rs.getString("term");
+                if (!candidate.equals(term) && distance(term, candidate, maxDistance) <= maxDistance) {
+                    ranks.add(new long[]{candidates.size(), rs.getLong("doc")});
+                    candidates.add(candidate);
+                }
+            }
+        }
+        ranks.sort((a, b) -> Long.compare(b[1], a[1]));
+        List<String> similar = new ArrayList<>();
+        for (int i = 0; i < ranks.size() && i < MAX_EXPANSIONS; i++) {
+            similar.add(candidates.get((int) ranks.get(i)[0]));
+        }
+        return similar;
+    }
+
+    /**
+     * Damerau-Levenshtein-Distanz (Vertauschung zweier benachbarter Zeichen zählt als ein Fehler),
+     * bricht ab, sobald sie sicher größer als max ist
+     *
+     * @param a   Begriff
+     * @param b   Begriff
+     * @param max Maximal interessante Distanz
+     * @return Distanz (oder max + 1)
+     */
+    static int distance(String a, String b, int max) {
+        if (Math.abs(a.length() - b.length()) > max) {
+            return max + 1;
+        }
+        int[] beforePrevious = new int[b.length() + 1];
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = current[0];
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    current[j] = Math.min(current[j], beforePrevious[j - 2] + 1);   //Vertauschung
+                }
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > max) {
+                return max + 1;
+            }
+            int[] t = beforePrevious;
+            beforePrevious = previous;
+            previous = current;
+            current = t;
+        }
+        return previous[b.length()];
+    }
+
+    /**
+     * Zerlegt die Suchanfrage wie der unicode61 Tokenizer: Buchstaben/Ziffern-Folgen, klein geschrieben, ohne Akzente
+     *
+     * @param query Suchanfrage
+     * @return bis zu MAX_QUERY_TERMS Begriffe
+     */
+    static List<String> tokenize(String query) {
+        String normalized = Normalizer.normalize(query, Normalizer.Form.NFD).replaceAll("\\p{M}", "").toLowerCase(Locale.ROOT);
+        List<String> terms = new ArrayList<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= normalized.length() && terms.size() < MAX_QUERY_TERMS; i++) {
+            char c = i < normalized.length() ? normalized.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                term.append(c);
+            } else if (term.length() > 0) {
+                if (!terms.contains(term.toString())) {
+                    terms.add(term.toString());
+                }
+                term.setLength(0);
+            }
+        }
+        return terms;
+    }
+
+    //Setzt einen Begriff als FTS5-String in Anführungszeichen (keine Operatoren aus der Eingabe)
+    private static String quote(String term) {
+        return "\"" + term.replace("\"", "\"\"") + "\"";
+    }
+
+    //Gibt die Statistiken des Index in der Konsole aus
+    public void printStats() {
+        System.out.println("Search index: " + indexed.sum() + " messages indexed since start, " + lag + " pending, " + searches.sum() + " searches");
+    }
+
+    //Stoppt den Indexer (ein laufender Durchgang wird noch abgeschlossen) und schließt die Verbindung
+    public void close() {
+        indexer.shutdown();
+        try {
+            indexer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            log(e.getMessage() + " @server.SearchIndex.close SQLException");
+        }
+    }
+
+    private static void log(String s) {
+        Util.log(s);
+    }
+}
@@ -3,12 +3,18 @@ package server;
 import java.io.*;
 import java.net.InetSocketAddress;
 
+import java.nio.ByteBuffer;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.java_websocket.WebSocket;
 
-import org.java_websocket.exceptions.WebsocketNotConnectedException;
 import org.java_websocket.handshake.ClientHandshake;
 import org.java_websocket.server.WebSocketServer;
 
@@ -16,7 +22,62 @@ import org.java_websocket.server.WebSocketServer;
 public class Server extends WebSocketServer {
     public static String __version = "0.2.5";   //Server Version (random)
     public static int PORT = 5555;              //Server Port
-    private DatabaseHandler database;           //Database Handler
+    public static String BINARY_CODEC_QUERY = "codec=binary";  //Handshake-Parameter, mit dem ein Client das binäre Format aushandelt
+    public static int MAX_HISTORY_PAGE_SIZE = 500;              //Maximale Anzahl Nachrichten pro message_history Antwort
+    public static int MAX_SEARCH_PAGE_SIZE = 50;                //Maximale Anzahl Treffer pro search_results Antwort
+    public static int MAX_SEARCH_QUERY_LENGTH = 256;            //Längere Suchanfragen werden abgelehnt
+    public static int HISTORY_CHUNK_MESSAGES = 200;             //Maximale Anzahl Nachrichten pro message_history_chunk
+    public static int HISTORY_CHUNK_CHARS = 64 * 1024;          //Ungefähre maximale Größe (Zeichen Inhalt) pro message_history_chunk
+    public static int LOG_CONTENT_LENGTH = 80;                  //Nachrichteninhalte werden im Log auf diese Länge gekürzt
+    public static int LOG_CONTENT_PER_SECOND = 50;              //Maximal so viele Nachrichteninhalte pro Sekunde loggen (Sampling)
+    public static String MESSAGE_STORE = "sqlite";             //Nachrichten-Speicher: "sqlite" (DatabaseHandler) oder "log" (LogFileMessageStore)
+    public static long OUTBOUND_DRAIN_INTERVAL = 5;             //So oft (ms) werden wartende Frames an freie Sendepuffer übergeben
+    public static String CLUSTER_BUS = "local";                 //MessageBus: "local" (InProcessBus, ein Knoten) oder "tcp" (PeerBus, mehrere Knoten)
+    public static String NODE_NAME = "node";                    //Präfix der Knoten-ID (die ID ist pro Start eindeutig)
+    public static String CLUSTER_BIND = "127.0.0.1";            //Adresse für Verbindungen anderer Knoten (nur "tcp", für mehrere Rechner die Adresse im internen Netz)
+    public static int CLUSTER_PORT = 5556;                      //Port für Verbindungen anderer Knoten (nur "tcp")
+    public static String CLUSTER_PEERS = "";                    //Alle anderen Knoten als "host:port,host:port" (nur "tcp")
+    public static boolean CLUSTER_REPLICATE = true;             //Nachrichten anderer Knoten auch lokal speichern (false, wenn sich alle Knoten einen Speicher teilen)
+    private final MessageStore database;        //Nachrichten-Speicher
+    private final MessageBus bus;               //Verteilt Events an alle Knoten (auch an diesen)
+    private final MessageDispatcher dispatcher = new MessageDispatcher(MessageDispatcher.WORKERS);     //Verarbeitet Nachrichten auf Worker-Threads
+    private final ScheduledExecutorService outboundDrainer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "outbound-drainer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicInteger loggedContentThisSecond = new AtomicInteger();
+    private volatile long logContentSecond;
+    private final Set<WebSocket> binaryConnections = ConcurrentHashMap.newKeySet();   //Verbindungen, die das binäre Format (MessageCodec) verwenden
+
+    //Broadcast Statistiken (Kodieren vs. Senden)
+    private final LongAdder broadcastCount = new LongAdder();
+    private final LongAdder broadcastRecipients = new LongAdder();
+    private final LongAdder broadcastEncodeNanos = new LongAdder();
+    private final LongAdder broadcastSendNanos = new LongAdder();
+    private volatile long lastBroadcastEncodeNanos;
+    private volatile long lastBroadcastSendNanos;
+
+    //Metriken (s. Metrics), einmal registriert und auf dem Hot-Path direkt verwendet
+    private static final Set<String> CLIENT_TYPES = Set.of("connect", "connect_with_id", "message", "join_room", "leave_room", "request_message_history", "search_messages");
+    private static final Metrics.Family<Metrics.Counter> FRAMES_IN = Metrics.counters("chat_frames_in_total", "Frames received from clients", "format");
+    private static final Metrics.Counter FRAMES_IN_LEGACY = FRAMES_IN.get("legacy");
+    private static final Metrics.Counter FRAMES_IN_BINARY = FRAMES_IN.get("binary");
+    private static final Metrics.Counter FRAMES_OUT = Metrics.counter("chat_frames_out_total", "Frames queued for clients");
+    private static final Metrics.Family<Metrics.Counter> MESSAGES_BY_TYPE = Metrics.counters("chat_messages_total", "Processed client messages by type", "type");
+    private static final Metrics.Family<Metrics.Histogram> DECODE = Metrics.histograms("chat_decode_seconds", "Time to decode a client frame", "format");
+    private static final Metrics.Histogram DECODE_LEGACY = DECODE.get("legacy");
+    private static final Metrics.Histogram DECODE_BINARY = DECODE.get("binary");
+    private static final Metrics.Family<Metrics.Histogram> ENCODE = Metrics.histograms("chat_encode_seconds", "Time to encode an outgoing frame", "format");
+    private static final Metrics.Histogram ENCODE_LEGACY = ENCODE.get("legacy");
+    private static final Metrics.Histogram ENCODE_BINARY = ENCODE.get("binary");
+    private static final Metrics.Family<Metrics.Histogram> DB = Metrics.histograms("chat_db_seconds", "Message store latency", "op");
+    private static final Metrics.Histogram DB_STORE = DB.get("store");
+    private static final Metrics.Histogram DB_PAGE = DB.get("page");
+    private static final Metrics.Histogram DB_STREAM = DB.get("stream");
+    private static final Metrics.Histogram DB_SEARCH = DB.get("search");
+    private static final Metrics.Histogram PROCESS = Metrics.histogram("chat_process_seconds", "Time to process a client message (store and fan-out included)");
+    private static final Metrics.Histogram FANOUT = Metrics.histogram("chat_fanout_seconds", "Time to encode and queue one event for all local recipients");
 
     /**
      * Startet Server an geg. Port
@@ -27,14 +88,59 @@ public class Server extends WebSocketServer {
         super(new InetSocketAddress(port));
         log("ChatServer started at " + getAddress());
 
+        User.createDummyUser();     //Erstellt Dummyuser (wird als fallback verwendet)
+        database = openMessageStore();
+        bus = openMessageBus();
+        bus.setListener(this::onBusEvent);
+
+        Metrics.gauge("chat_connections", "Open WebSocket connections", () -> getConnections().size());
+        Metrics.gauge("chat_users", "Connected users", () -> User.getUsers().size());
+        Metrics.gauge("chat_rooms", "Rooms", () -> Room.getRooms().size());
+        Metrics.gauge("chat_outbound_queue_depth", "Frames waiting in all outbound queues", OutboundQueue::getTotalDepth);
+        Metrics.gauge("chat_outbound_lagging", "Connections above the outbound high watermark", OutboundQueue::getLaggingCount);
+        Metrics.gauge("chat_dispatch_pending", "Client messages waiting for a worker", dispatcher::getPending);
+    }
+
+    /**
+     * Öffnet den in MESSAGE_STORE eingestellten Nachrichten-Speicher. Kann SQLite nicht geladen werden, wird auf das
+     * Log ausgewichen. Ist gar kein Speicher verfügbar oder schlägt die Migration der Datenbank fehl, startet der Server
+     * nicht (statt Nachrichten stillschweigend zu verlieren)
+     *
+     * @return Nachrichten-Speicher
+     */
+    private MessageStore openMessageStore() {
+        if (!"log".equals(MESSAGE_STORE)) {
+            try {
+                return new DatabaseHandler();       //Verbindung mit dem DatabaseHandler (Speicher Nachricht in Datenbank)
+            } catch (ClassNotFoundException | SQLException e) {
+                log(e.getMessage() + " @server.Server.openMessageStore while trying to connect to DatabaseHandler, falling back to the message log");
+            }
+        }
         try {
-            database = new DatabaseHandler();       //Verbindung mit dem DatabaseHandler (Speicher Nachricht in Datenbank)
-        } catch (ClassNotFoundException | SQLException e) {
-            log(e.getMessage() + " @server.Server.init while trying to connect to DatabaseHandler");
+            return new LogFileMessageStore();
+        } catch (IOException e) {
+            throw new IllegalStateException("No message store available: " + e.getMessage(), e);
         }
     }
 
 
+    /**
+     * Öffnet den in CLUSTER_BUS eingestellten MessageBus
+     *
+     * @return MessageBus
+     */
+    private MessageBus openMessageBus() {
+        String nodeId = NODE_NAME + "-" + Util.generateUniqueString(6, Collections.emptySet());   //Neue ID pro Start, damit seq wieder bei 1 anfangen darf
+        if ("tcp".equals(CLUSTER_BUS)) {
+            try {
+                return new PeerBus(nodeId, CLUSTER_BIND, CLUSTER_PORT, PeerBus.parsePeers(CLUSTER_PEERS));
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not start message bus on " + CLUSTER_BIND + ":" + CLUSTER_PORT + ": " + e.getMessage(), e);
+            }
+        }
+        return new InProcessBus(nodeId);
+    }
+
     /**
      * Verarbeitet eine (als Map kodierte) Nachricht von conn (Autor)
      *
@@ -48,69 +154,389 @@ public class Server extends WebSocketServer {
             return;
         }
         String time = System.currentTimeMillis() + "";                                      //Zeitpunkt, an dem die Nachricht den Server erreicht hat
+        String type = data.get("type");
+        MESSAGES_BY_TYPE.get(type != null && CLIENT_TYPES.contains(type) ? type : "other").increment();  //Nur bekannte Typen als Label (sonst beliebig viele)
 
-        log("Received type '" + data.get("type") + "' with content '" + data.get("content") + "' from " + User.getUserByConnection(conn).getName() + "@" + User.getUserByConnection(conn).getIp() + " (User " + User.getUserByConnection(conn).getId() + ")");
+        User user = User.getUserByConnection(conn);                                         //Der Autor wird einmal ermittelt und wiederverwendet
+
+        if (AsyncLogger.isEnabled(AsyncLogger.Level.DEBUG)) {                               //Log-String nur bauen, wenn DEBUG aktiv ist
+            String content = sampleContent() ? "'" + Util.truncate(data.get("content"), LOG_CONTENT_LENGTH) + "'" : "<sampled out>";
+            Util.log(AsyncLogger.Level.DEBUG, "Received type '" + data.get("type") + "' with content " + content + " from " + user.getName() + "@" + user.getIp() + " (User " + user.getId() + ")");
+        }
 
         switch (data.get("type")) {                                                         //Die Nachricht wird nach Typ gefiltert
             case "connect": //Die Nachricht ist eine Anfrage, sich mit dem Server zu verbinden
-                String id = database.newConnection(conn, data.get("content"));  //Der User wird dem DatabaseHandler mitgeteilt und ein ID wird generiert..
+                User created = User.createNewUser(conn, data.get("content"));  //Der User wird erstellt und ein ID wird generiert..
+                Room.join(Room.DEFAULT, created);                              //Jeder User ist im DEFAULT Raum
+                String id = created.getId();
                 sendMessageToConn(conn, mapBlueprint("connect_id", id));   //..welche an den User zurückgeschickt wird.
                 break;
 
             case "connect_with_id": //Die Nachricht ist eine Anfrage, sich mit dem Server zu verbinden, wobei vom User eine ID bereitgestellt, wodurch der Server den User "wieder erkennt"
                 if (isValidMessage(data, new String[]{"id"})) { //Wenn sich der User mit einer ID verbinden möchte, muss die auch im Datensatz vorhanden sein, dies wird hier überprüft
-                    database.newConnection(conn, data.get("content"), data.get("id"));  //Der User wird dem DatabaseHandler mitgeteilt, wobei die gegebende ID zur wiedererkennung verwendet wird
+                    Room.join(Room.DEFAULT, User.createNewUser(conn, data.get("content"), data.get("id")));  //Der User wird erstellt, wobei die gegebende ID zur wiedererkennung verwendet wird
                     sendMessageToConn(conn, mapBlueprint("connect_id", data.get("id")));    //Eigentlich unnötig: Die ID wird an den User zurückgeschickt
                 } else {
                     sendMessageToConn(conn, mapBlueprint("error", "Invalid message with 'connect_with_id'"));   //Wurde keine ID angegeben, wird eine Fehlernachricht an den User geschickt
                 }
                 break;
 
-            case "message": //Die Nachricht ist eine Chat-Nachricht
-                database.newMessage(conn, data.get("content"), time);   //Dem DatabaseHandler wird die neue Nachricht mitgeteilt, welcher diese in einer Datenbank speichert
-                User author = User.getUserByConnection(conn);           //Es werden informationen über den Autor der nachricht gesammelt
-                sendMessageToUsers(User.getUsers(), textMessageMapBlueprint(data.get("content"), author.getName(), time));
-                //Die Chat-Nachricht wird an alle User weiter geleitet, sammt Name des Autors und Uhrzeit (sowie Autor User ID, eigentlich unnötig)
+            case "message": { //Die Nachricht ist eine Chat-Nachricht
+                String room = roomOf(data);
+                if (!canAccess(room, user)) {
+                    sendMessageToConn(conn, mapBlueprint("error", "Not a member of room '" + room + "'"));
+                    break;
+                }
+                ChatMessage message = new ChatMessage(Util.generateTimeOrderedId(), data.get("content"), user.getName(), user.getId(), time, room);
+                long dbStart = System.nanoTime();
+                database.newMessage(message);   //Die neue Nachricht wird im Nachrichten-Speicher gespeichert (die ID gilt auf allen Knoten)
+                DB_STORE.recordSince(dbStart);
+                publishMessage(message);
+                //Die Chat-Nachricht wird an alle Mitglieder des Raums (auf allen Knoten) weiter geleitet, sammt Name des Autors und Uhrzeit (sowie ID und Autor User ID)
+                break;
+            }
+
+            case "join_room": //Der User möchte einem Raum beitreten (content = Raum-Name)
+            case "leave_room": { //Der User möchte einen Raum verlassen (content = Raum-Name)
+                String room = data.get("content");
+                boolean join = "join_room".equals(data.get("type"));
+                if (!user.exists || !Room.isValidName(room) || (!join && Room.DEFAULT.equals(room))) {   //Nur verbundene User, DEFAULT kann nicht verlassen werden
+                    sendMessageToConn(conn, mapBlueprint("error", "Invalid message with '" + data.get("type") + "'"));
+                    break;
+                }
+                boolean changed = join ? Room.join(room, user) : Room.leave(room, user);
+                sendMessageToConn(conn, mapBlueprint(join ? "room_joined" : "room_left", room));
+                if (changed) {  //Die (übrigen) Mitglieder des Raums werden informiert
+                    HashMap<String, String> map = mapBlueprint(join ? "user_join_room" : "user_leave_room", room);
+                    map.put("room", room);
+                    map.put("name", user.getName());
+                    map.put("id", user.getId());
+                    map.put("time", time);
+                    bus.publish(map);
+                }
                 break;
+            }
 
-            case "request_message_history": //Die Nachricht ist eine Anfrage, vergangene Nachricht zu bekommen
-                if (isValidMessage(data, new String[]{"from", "to"})) { //Es wird überprüft ob alle Daten für die anfrage vorliegen (from = start Zeitpunkt, to = end Zeitpunk is ms)
-                    List<Map<String, String>> messages = database.getAllMessages(Long.parseLong(data.get("from")), Long.parseLong(data.get("to"))); //Es werden alle Nachrichten aus der Datenbank geladen,
+            case "request_message_history": //Die Nachricht ist eine Anfrage, vergangene Nachricht zu bekommen (optional: room, Standard ist Room.DEFAULT)
+                if (!canAccess(roomOf(data), user)) {
+                    sendMessageToConn(conn, mapBlueprint("error", "Not a member of room '" + roomOf(data) + "'"));
+                } else if (isValidMessage(data, new String[]{"from", "to"}) && "true".equals(data.get("stream"))) {    //Streaming: die History wird in mehreren Frames verschickt
+                    streamMessageHistory(conn, user, roomOf(data), Long.parseLong(data.get("from")), Long.parseLong(data.get("to")));
+                } else if (isValidMessage(data, new String[]{"from", "to"})) { //Es wird überprüft ob alle Daten für die anfrage vorliegen (from = start Zeitpunkt, to = end Zeitpunk is ms)
+                    int limit = MAX_HISTORY_PAGE_SIZE;                  //Optional: limit (wird auf MAX_HISTORY_PAGE_SIZE begrenzt) und cursor der vorherigen Seite
+                    if (data.get("limit") != null) {
+                        limit = Math.max(1, Math.min(MAX_HISTORY_PAGE_SIZE, Integer.parseInt(data.get("limit"))));
+                    }
+                    long dbStart = System.nanoTime();
+                    MessagePage page = database.getMessagePage(roomOf(data), Long.parseLong(data.get("from")), Long.parseLong(data.get("to")), data.get("cursor"), limit); //Es wird eine Seite an Nachrichten aus der Datenbank geladen,
+                    DB_PAGE.recordSince(dbStart);
+                    if (page == null) {     //Datenbank überlastet o.ä. -> der Client soll es später erneut versuchen
+                        sendMessageToConn(conn, mapBlueprint("error", "Message history is temporarily unavailable"));
+                        break;
+                    }
+                    List<Map<String, String>> messages = page.getMessages();
                     HashMap<String, String> map = mapBlueprint("message_history", objectToString(messages));    //...konvertiert,
+                    map.put("has_more", String.valueOf(page.hasMore()));
+                    if (page.hasMore()) {
+                        map.put("cursor", page.getNextCursor());    //Mit diesem Cursor kann der Client die nächste Seite anfragen
+                    }
                     sendMessageToConn(conn, map);                                                                    //..und an die User zurückgeschickt
 
-                    log("Sending " + messages.size() + " messages to " + User.getUserByConnection(conn).getName() + "@" + User.getUserByConnection(conn).getIp());  //log
+                    Util.log(AsyncLogger.Level.DEBUG, () -> "Sending " + messages.size() + " messages to " + user.getName() + "@" + user.getIp());  //log
                 } else {
                     sendMessageToConn(conn, mapBlueprint("error", "Invalid message with 'request_message_history'"));   //Es wurde kein Zeitraum angegeben -> Error message zurück
                 }
                 break;
 
+            case "search_messages": { //Volltextsuche (content = Suchbegriffe, optional: room, author, from, to, limit, cursor)
+                String room = roomOf(data);
+                String query = data.get("content");
+                if (!canAccess(room, user)) {
+                    sendMessageToConn(conn, mapBlueprint("error", "Not a member of room '" + room + "'"));
+                    break;
+                }
+                if (query == null || query.trim().isEmpty() || query.length() > MAX_SEARCH_QUERY_LENGTH) {
+                    sendMessageToConn(conn, mapBlueprint("error", "Invalid message with 'search_messages'"));
+                    break;
+                }
+                long from = data.get("from") == null ? 0 : Long.parseLong(data.get("from"));     //Ohne Zeitraum: alle Nachrichten
+                long to = data.get("to") == null ? Long.MAX_VALUE : Long.parseLong(data.get("to"));
+                int limit = MAX_SEARCH_PAGE_SIZE;
+                if (data.get("limit") != null) {
+                    limit = Math.max(1, Math.min(MAX_SEARCH_PAGE_SIZE, Integer.parseInt(data.get("limit"))));
+                }
+                long dbStart = System.nanoTime();
+                MessagePage page = database.searchMessages(room, query, data.get("author"), from, to, data.get("cursor"), limit);
+                DB_SEARCH.recordSince(dbStart);
+                if (page == null) {
+                    sendMessageToConn(conn, mapBlueprint("error", "Search is not available"));
+                    break;
+                }
+                HashMap<String, String> map = mapBlueprint("search_results", objectToString(page.getMessages()));   //Treffer nach Relevanz sortiert
+                map.put("has_more", String.valueOf(page.hasMore()));
+                if (page.hasMore()) {
+                    map.put("cursor", page.getNextCursor());    //Mit diesem Cursor kann der Client die nächsten Treffer anfragen
+                }
+                sendMessageToConn(conn, map);
+                Util.log(AsyncLogger.Level.DEBUG, () -> "Sending " + page.getMessages().size() + " search results to " + user.getName() + "@" + user.getIp());
+                break;
+            }
+
         }
 
         //Bei einer Verbindungs-Anfrage, wird zusätzlich eine "Willkommens" Nachricht an alle anderen User geschick
         switch (data.get("type")) {
             case "connect":
             case "connect_with_id":
-                HashMap<String, String> map = mapBlueprint("user_join", User.getUserByConnection(conn).getId());
-                map.put("name", User.getUserByConnection(conn).getName());
-                map.put("id", User.getUserByConnection(conn).getId());
-                map.put("ip", User.getUserByConnection(conn).getIp());
+                User joined = User.getUserByConnection(conn);   //Der User wurde eben erst erstellt, daher erneut ermitteln
+                HashMap<String, String> map = mapBlueprint("user_join", joined.getId());
+                map.put("name", joined.getName());
+                map.put("id", joined.getId());
+                map.put("ip", joined.getIp());
                 map.put("time", time);
-                sendMessageToUsers(User.getUsers(), map);
+                map.put("room", Room.DEFAULT);
+                bus.publish(map);
                 break;
         }
     }
 
     /**
-     * Sendet eine Nachricht an eine Liste von Users, mit dem Inhalt der HashMap map
+     * Verteilt eine (schon gespeicherte) Chat-Nachricht über den MessageBus an alle Knoten
+     *
+     * @param message Chat-Nachricht
+     */
+    private void publishMessage(ChatMessage message) {
+        HashMap<String, String> map = textMessageMapBlueprint(message.getContent(), message.getAuthor(), message.getTime());
+        map.put("room", message.getRoom());
+        map.put("id", message.getId());
+        map.put("author_id", message.getAuthor_id());
+        bus.publish(map);
+    }
+
+    /**
+     * Stellt ein Event des MessageBus (von diesem oder einem anderen Knoten) an die lokal verbundenen Empfänger zu:
+     * die Mitglieder von "room" bzw. aller Räume in "rooms" (durch Zeilenumbruch getrennt).
+     * Chat-Nachrichten anderer Knoten werden zusätzlich mit ihrer ursprünglichen ID gespeichert (CLUSTER_REPLICATE)
+     *
+     * @param event Event
+     */
+    private void onBusEvent(HashMap<String, String> event) {
+        boolean local = bus.getNodeId().equals(event.remove("origin"));    //origin und seq braucht nur der Bus, nicht der Client
+        event.remove("seq");
+        if (!local && CLUSTER_REPLICATE && "message".equals(event.get("type"))) {
+            database.storeMessage(new ChatMessage(event.get("id"), event.get("content"), event.get("name"), event.get("author_id"), event.get("time"), event.get("room")));
+        }
+
+        List<User> recipients;
+        String rooms = event.remove("rooms");
+        if (rooms != null) {    //Mehrere Räume (z.B. user_disconnect) -> jeden Empfänger nur einmal
+            Set<User> union = new LinkedHashSet<>();
+            for (String room : rooms.split("\n")) {
+                union.addAll(membersOf(room));
+            }
+            recipients = new ArrayList<>(union);
+        } else {
+            recipients = membersOf(roomOf(event));
+        }
+        try {
+            sendMessageToUsers(recipients, event);
+        } catch (IOException e) {
+            log(e.getMessage() + " @server.Server.onBusEvent IOException");
+        }
+    }
+
+    //Gibt den Raum einer Nachricht zurück (ohne Angabe: Room.DEFAULT)
+    private String roomOf(HashMap<String, String> data) {
+        String room = data.get("room");
+        return room == null ? Room.DEFAULT : room;
+    }
+
+    //Darf user im Raum schreiben und lesen (im DEFAULT Raum immer, sonst nur als Mitglied)
+    private boolean canAccess(String room, User user) {
+        if (Room.DEFAULT.equals(room)) {
+            return true;
+        }
+        Room r = Room.get(room);
+        return r != null && r.isMember(user);
+    }
+
+    //Gibt alle Mitglieder des Raums zurück (leer, wenn es den Raum nicht gibt)
+    private List<User> membersOf(String room) {
+        Room r = Room.get(room);
+        return r == null ? Collections.emptyList() : r.getMembers();
+    }
+
+    /**
+     * Schickt die History zwischen from und to als Folge von message_history_chunk Frames.
+     * Jeder Chunk wird mit einer eigenen Keyset-Abfrage (Cursor (time, id), s. getMessagePage) geladen, die Datenbank-Verbindung
+     * ist also nur während der Abfrage belegt und es liegt nie mehr als ein Chunk im Speicher.
+     * Der nächste Chunk wird erst geladen, wenn die Sende-Warteschlange der Verbindung leer ist (Backpressure). Dabei wartet
+     * kein Worker: die OutboundQueue reiht das Laden des nächsten Chunks in die Warteschlange der Verbindung ein
+     *
+     * @param conn Ziel Verbindung
+     * @param user User der Verbindung (nur für den Log)
+     * @param room Raum
+     * @param from start-Wert (ms)
+     * @param to   end-Wert (ms)
+     * @throws IOException Error
+     */
+    private void streamMessageHistory(WebSocket conn, User user, String room, long from, long to) throws IOException {
+        sendHistoryChunk(new HistoryStream(conn, user, room, from, to));
+    }
+
+    /**
+     * Lädt und sendet den nächsten Chunk eines History-Streams und meldet den übernächsten bei der OutboundQueue an
+     *
+     * @param stream Zustand des Streams
+     * @throws IOException Error
+     */
+    private void sendHistoryChunk(HistoryStream stream) throws IOException {
+        WebSocket conn = stream.conn;
+        long dbStart = System.nanoTime();
+        MessagePage page = database.getMessagePage(stream.room, stream.from, stream.to, stream.cursor, HISTORY_CHUNK_MESSAGES);
+        DB_STREAM.recordSince(dbStart);
+        if (page == null) {     //Ohne last = true weiß der Client, dass der Stream unvollständig ist
+            sendMessageToConn(conn, mapBlueprint("error", "Message history is temporarily unavailable"));
+            log("Aborted history stream to " + stream.user.getName() + "@" + stream.user.getIp() + " after " + stream.seq + " chunks");
+            return;
+        }
+        stream.count += page.getMessages().size();
+
+        //Eine Seite wird bei sehr langen Nachrichten auf mehrere Chunks (maximal HISTORY_CHUNK_CHARS) aufgeteilt
+        List<Map<String, String>> chunk = new ArrayList<>();
+        int chunkChars = 0;
+        for (Map<String, String> m : page.getMessages()) {
+            chunk.add(m);
+            chunkChars += m.get("content") == null ? 0 : m.get("content").length();
+            if (chunkChars >= HISTORY_CHUNK_CHARS) {
+                sendMessageToConn(conn, historyChunk(chunk, stream.seq++, false));
+                chunk = new ArrayList<>();
+                chunkChars = 0;
+            }
+        }
+        if (!page.hasMore()) {
+            sendMessageToConn(conn, historyChunk(chunk, stream.seq++, true));     //Letzter Chunk (evtl. leer) mit last = true
+            User user = stream.user;
+            long firstChunkMs = (stream.firstChunkNanos < 0 ? System.nanoTime() - stream.start : stream.firstChunkNanos) / 1_000_000;
+            Util.log(AsyncLogger.Level.DEBUG, () -> "Streamed " + stream.count + " messages in " + stream.seq + " chunks to " + user.getName() + "@" + user.getIp()
+                    + " (first chunk after " + firstChunkMs + " ms, total " + (System.nanoTime() - stream.start) / 1_000_000 + " ms)");
+            return;
+        }
+        if (!chunk.isEmpty()) {
+            sendMessageToConn(conn, historyChunk(chunk, stream.seq++, false));
+        }
+        if (stream.firstChunkNanos < 0) {
+            stream.firstChunkNanos = System.nanoTime() - stream.start;
+        }
+        stream.cursor = page.getNextCursor();
+
+        OutboundQueue queue = OutboundQueue.get(conn);
+        if (queue == null) {    //Verbindung schon geschlossen
+            return;
+        }
+        queue.whenDrained(() -> {   //Läuft auf dem Drainer, geladen wird wieder auf einem Worker (in der Reihenfolge der Verbindung)
+            boolean accepted = conn.isOpen() && dispatcher.execute(conn, () -> {
+                try {
+                    sendHistoryChunk(stream);
+                } catch (IOException e) {
+                    log(e.getMessage() + " @server.Server.sendHistoryChunk IOException");
+                }
+            });
+            if (!accepted) {
+                log("Aborted history stream to " + stream.user.getName() + "@" + stream.user.getIp() + " after " + stream.seq + " chunks");
+            }
+        });
+    }
+
+    /**
+     * Generiert die HashMap eines History-Chunks
+     *
+     * @param messages Nachrichten des Chunks
+     * @param seq      Nummer des Chunks (beginnend bei 0)
+     * @param last     Ist das der letzte Chunk
+     * @return HashMap mit entsprechenden Inhalt
+     * @throws IOException Error
+     */
+    private HashMap<String, String> historyChunk(List<Map<String, String>> messages, int seq, boolean last) throws IOException {
+        HashMap<String, String> map = mapBlueprint("message_history_chunk", objectToString(messages));
+        map.put("seq", String.valueOf(seq));
+        map.put("last", String.valueOf(last));
+        return map;
+    }
+
+    /**
+     * Entscheidet, ob der Inhalt einer Nachricht geloggt wird (maximal LOG_CONTENT_PER_SECOND pro Sekunde)
+     *
+     * @return true, wenn der Inhalt geloggt werden soll
+     */
+    private boolean sampleContent() {
+        long second = System.currentTimeMillis() / 1000;
+        if (second != logContentSecond) {   //Neue Sekunde -> Zähler zurücksetzen (ein ungenauer Reset bei Parallelität ist egal)
+            logContentSecond = second;
+            loggedContentThisSecond.set(0);
+        }
+        return loggedContentThisSecond.incrementAndGet() <= LOG_CONTENT_PER_SECOND;
+    }
+
+    /**
+     * Sendet eine Nachricht an eine Liste von Users, mit dem Inhalt der HashMap map.
+     * Die Nachricht wird pro Format nur einmal kodiert und der fertige Frame an die Sende-Warteschlangen aller Verbindungen verteilt
      *
      * @param users Liste der User
      * @param map   HashMap mit Inhalt der Nachricht
      * @throws IOException Error
      */
     private void sendMessageToUsers(List<User> users, HashMap<String, String> map) throws IOException {
+        long start = System.nanoTime();
+
+        List<WebSocket> legacyConns = new ArrayList<>(users.size());
+        List<WebSocket> binaryConns = new ArrayList<>();
         for (User u : users) {
-            sendMessageToConn(u.getConnection(), map);
+            WebSocket conn = u.getConnection();
+            if (binaryConnections.contains(conn)) {
+                binaryConns.add(conn);
+            } else {
+                legacyConns.add(conn);
+            }
+        }
+        PreparedFrame legacyFrame = legacyConns.isEmpty() ? null : PreparedFrame.text(objectToString(map));     //Einmal kodieren..
+        long legacyEncoded = System.nanoTime();
+        PreparedFrame binaryFrame = binaryConns.isEmpty() ? null : PreparedFrame.binary(MessageCodec.encode(map));
+        long encoded = System.nanoTime();
+        if (legacyFrame != null) {
+            ENCODE_LEGACY.record(legacyEncoded - start);
+        }
+        if (binaryFrame != null) {
+            ENCODE_BINARY.record(encoded - legacyEncoded);
+        }
+
+        String key = coalesceKey(map);
+        for (WebSocket conn : legacyConns) {
+            enqueue(conn, legacyFrame, key);        //..und an alle verteilen (über die Sende-Warteschlange der Verbindung)
+        }
+        for (WebSocket conn : binaryConns) {
+            enqueue(conn, binaryFrame, key);
+        }
+        long sent = System.nanoTime();
+
+        broadcastCount.increment();
+        broadcastRecipients.add(users.size());
+        broadcastEncodeNanos.add(encoded - start);
+        broadcastSendNanos.add(sent - encoded);
+        lastBroadcastEncodeNanos = encoded - start;
+        lastBroadcastSendNanos = sent - encoded;
+        FANOUT.record(sent - start);
+    }
+
+    /**
+     * Gibt die Broadcast Statistiken in der Konsole aus
+     */
+    private void printBroadcastStats() {
+        long count = broadcastCount.sum();
+        System.out.println("Broadcasts: " + count + " (" + broadcastRecipients.sum() + " recipients)");
+        if (count > 0) {
+            System.out.println("|--avg encode: " + broadcastEncodeNanos.sum() / count / 1000 + " us, last: " + lastBroadcastEncodeNanos / 1000 + " us");
+            System.out.println("+--avg send:   " + broadcastSendNanos.sum() / count / 1000 + " us, last: " + lastBroadcastSendNanos / 1000 + " us");
         }
     }
 
@@ -123,12 +549,48 @@ public class Server extends WebSocketServer {
      * @throws IOException Error
      */
     private void sendMessageToConn(WebSocket conn, HashMap<String, String> map) throws IOException {
-        try {
-            conn.send(objectToString(map));
-        } catch (WebsocketNotConnectedException e) {
-            //A websocket that just disconnects can't receive any messages -> Exception, ignore
+        long start = System.nanoTime();
+        if (binaryConnections.contains(conn)) {
+            byte[] frame = MessageCodec.encode(map);
+            ENCODE_BINARY.recordSince(start);
+            enqueue(conn, frame, coalesceKey(map));     //Binärer Frame
+        } else {
+            String frame = objectToString(map);
+            ENCODE_LEGACY.recordSince(start);
+            enqueue(conn, frame, coalesceKey(map));     //Legacy Format (Java-Serialisierung + Base64)
         }
+    }
 
+    /**
+     * Übergibt einen kodierten Frame an die Sende-Warteschlange der Verbindung
+     *
+     * @param conn    Ziel Verbindung
+     * @param payload String (Legacy Format), byte[] (MessageCodec) oder PreparedFrame (Broadcast)
+     * @param key     Key zum Zusammenfassen (s. coalesceKey) oder null
+     */
+    private void enqueue(WebSocket conn, Object payload, String key) {
+        FRAMES_OUT.increment();
+        OutboundQueue queue = OutboundQueue.get(conn);
+        if (queue != null) {
+            queue.send(payload, key);
+            return;
+        }
+        OutboundQueue.write(conn, payload);     //Verbindung ohne Warteschlange (schon geschlossen) -> direkt senden
+    }
+
+    /**
+     * Gibt den Key zurück, unter dem Frames bei voller Warteschlange zusammengefasst werden dürfen (OutboundQueue.Policy.COALESCE).
+     * Beim Status eines Users (join/disconnect) zählt nur der neueste, Chat-Nachrichten werden nie zusammengefasst
+     *
+     * @param map Nachricht
+     * @return Key oder null
+     */
+    private String coalesceKey(HashMap<String, String> map) {
+        String type = map.get("type");
+        if ("user_join".equals(type) || "user_disconnect".equals(type)) {
+            return "presence:" + map.get("id");
+        }
+        return null;
     }
 
     /**
@@ -189,25 +651,40 @@ public class Server extends WebSocketServer {
      */
     @Override
     public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        dispatcher.executeLast(conn, () -> handleClose(conn));     //Erst nach allen noch wartenden Nachrichten der Verbindung
+    }
+
+    /**
+     * Meldet den User ab, nachdem alle seine Nachrichten verarbeitet wurden (läuft auf einem Worker-Thread des MessageDispatcher)
+     *
+     * @param conn Die Connection des Users
+     */
+    private void handleClose(WebSocket conn) {
+        User user = User.getUserByConnection(conn);
         try {
-            log(User.getUserByConnection(conn).getName() + "@" + User.getUserByConnection(conn).getIp() + " has left the room!");
+            log(user.getName() + "@" + user.getIp() + " has left the room!");
         } catch (NullPointerException e) {
             log(conn + " has left the room!");
         }
 
-        //Schicke eine Disconnect-Nachricht an alle User
-        HashMap<String, String> map = mapBlueprint("user_disconnect", User.getUserByConnection(conn).getId());
-        map.put("name", User.getUserByConnection(conn).getName());
-        map.put("id", User.getUserByConnection(conn).getId());
-        map.put("ip", User.getUserByConnection(conn).getIp());
-        map.put("time", System.currentTimeMillis() + "");
-        try {
-            sendMessageToUsers(User.getUsers(), map);
-        } catch (IOException e) {
-            e.printStackTrace();
+        //Verlasse alle Räume und schicke eine Disconnect-Nachricht an alle User (auf allen Knoten), die mit ihm in einem Raum waren
+        List<String> rooms = new ArrayList<>(user.getRooms());
+        for (String room : rooms) {
+            Room.leave(room, user);
+        }
+        if (!rooms.isEmpty()) {
+            HashMap<String, String> map = mapBlueprint("user_disconnect", user.getId());
+            map.put("name", user.getName());
+            map.put("id", user.getId());
+            map.put("ip", user.getIp());
+            map.put("time", System.currentTimeMillis() + "");
+            map.put("rooms", String.join("\n", rooms));     //Raum-Namen enthalten keine Steuerzeichen (Room.isValidName)
+            bus.publish(map);
         }
 
-        database.connectionClose(conn);     //Teile dem DatabaseHandler mit, das eine User mit conn disconnected ist (löscht den User)
+        binaryConnections.remove(conn);
+        OutboundQueue.close(conn);
+        User.removeUser(conn);     //Der User mit conn ist disconnected (löscht den User)
     }
 
     /**
@@ -218,9 +695,24 @@ public class Server extends WebSocketServer {
      */
     @Override
     public void onMessage(WebSocket conn, String message) {
+        FRAMES_IN_LEGACY.increment();
+        dispatch(conn, () -> handleMessage(conn, message));     //Dekodieren und Verarbeiten auf einem Worker-Thread
+    }
+
+    /**
+     * Dekodiert und verarbeitet eine String Nachricht (läuft auf einem Worker-Thread des MessageDispatcher)
+     *
+     * @param conn    Die Conncetion des Users
+     * @param message Die rohe String Nachricht
+     */
+    void handleMessage(WebSocket conn, String message) {
         try {
+            long start = System.nanoTime();
             HashMap<String, String> messageData = stringToMap(message); //Konvertiert den String in eine HashMap
+            long decoded = System.nanoTime();
+            DECODE_LEGACY.record(decoded - start);
             processMessage(messageData, conn);                          //Verarbeite die Nachricht
+            PROCESS.recordSince(decoded);
         } catch (IOException e) {               //ERRORS (warum auch immer)
             log(e.getMessage() + " @server.Server.onMessage IOException");
         } catch (ClassNotFoundException e) {
@@ -232,6 +724,60 @@ public class Server extends WebSocketServer {
         }
     }
 
+    /**
+     * Wird aufgerufen wenn eine neue binäre Nachricht von einem User ankommt (MessageCodec Format).
+     * Der User bekommt ab dann ebenfalls alle Nachrichten im binären Format
+     *
+     * @param conn    Die Conncetion des Users
+     * @param message Der binäre Frame
+     */
+    @Override
+    public void onMessage(WebSocket conn, ByteBuffer message) {
+        FRAMES_IN_BINARY.increment();
+        ByteBuffer copy = ByteBuffer.allocate(message.remaining()).put(message).flip();    //Der Puffer gehört nach onMessage wieder Java-WebSocket
+        dispatch(conn, () -> handleMessage(conn, copy));
+    }
+
+    /**
+     * Dekodiert und verarbeitet eine binäre Nachricht (läuft auf einem Worker-Thread des MessageDispatcher)
+     *
+     * @param conn    Die Conncetion des Users
+     * @param message Der binäre Frame
+     */
+    private void handleMessage(WebSocket conn, ByteBuffer message) {
+        try {
+            long start = System.nanoTime();
+            HashMap<String, String> messageData = MessageCodec.decode(message);
+            long decoded = System.nanoTime();
+            DECODE_BINARY.record(decoded - start);
+            binaryConnections.add(conn);
+            processMessage(messageData, conn);
+            PROCESS.recordSince(decoded);
+        } catch (IllegalArgumentException e) {
+            log(e.getMessage() + " @server.Server.onMessage(binary) IllegalArgumentException");
+        } catch (Throwable throwable) {
+            throwable.printStackTrace();
+        }
+    }
+
+    /**
+     * Übergibt eine Nachricht an den MessageDispatcher. Warten für die Verbindung schon zu viele Nachrichten, wird sie verworfen
+     *
+     * @param conn Die Conncetion des Users
+     * @param task Verarbeitung der Nachricht
+     */
+    private void dispatch(WebSocket conn, Runnable task) {
+        if (dispatcher.execute(conn, task)) {
+            return;
+        }
+        log("Too many pending messages from " + conn.getRemoteSocketAddress() + ", message dropped");
+        try {
+            sendMessageToConn(conn, mapBlueprint("error", "Server busy, message dropped"));
+        } catch (IOException e) {
+            log(e.getMessage() + " @server.Server.dispatch IOException");
+        }
+    }
+
     /**
      * Wird aufgerufen wenn eine neuer User sich mit dem Server verbindet
      *
@@ -240,6 +786,12 @@ public class Server extends WebSocketServer {
      */
     @Override
     public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        OutboundQueue.open(conn);
+        dispatcher.open(conn);
+        String resource = handshake.getResourceDescriptor();
+        if (resource != null && resource.contains(BINARY_CODEC_QUERY)) {   //z.B. ws://host:5555/?codec=binary
+            binaryConnections.add(conn);
+        }
         try {
             sendMessageToConn(conn, mapBlueprint("broadcast", "Welcome to the Server!"));   //BROTcast an den User (welcome message)
         } catch (IOException e) {
@@ -263,6 +815,23 @@ public class Server extends WebSocketServer {
         }
     }
 
+    /**
+     * Stoppt den Server und schreibt alle noch wartenden Nachrichten in die Datenbank
+     *
+     * @param timeout Timeout in ms
+     * @throws InterruptedException Error
+     */
+    @Override
+    public void stop(int timeout) throws InterruptedException {
+        super.stop(timeout);
+        dispatcher.shutdown(timeout);   //Noch wartende Nachrichten (und Disconnects) verarbeiten
+        outboundDrainer.shutdown();
+        Metrics.stopExporter();
+        bus.close();
+        database.close();
+        AsyncLogger.shutdown();     //Restliche Log-Nachrichten schreiben
+    }
+
     /**
      * Wird bei start des Servers aufgerufen
      */
@@ -272,6 +841,8 @@ public class Server extends WebSocketServer {
         log("Server started ");
         setConnectionLostTimeout(0);
         setConnectionLostTimeout(100);
+        outboundDrainer.scheduleWithFixedDelay(OutboundQueue::drainAll, OUTBOUND_DRAIN_INTERVAL, OUTBOUND_DRAIN_INTERVAL, TimeUnit.MILLISECONDS);
+        Metrics.startExporter();
     }
 
     /**
@@ -282,6 +853,7 @@ public class Server extends WebSocketServer {
      * @throws IOException          Error
      */
     public static void main(String[] args) throws InterruptedException, IOException {
+        parseArgs(args);
         boolean running = true;
         Server s = new Server(PORT);    //Starte den Server an PORT
         s.start();                      //...
@@ -304,22 +876,88 @@ public class Server extends WebSocketServer {
                         System.out.println(user);
                     }
                     break;
+                case "rooms":
+                    for (Room room : Room.getRooms()) {
+                        System.out.println(room);
+                    }
+                    break;
+                case "stats":
+                    s.printBroadcastStats();
+                    s.dispatcher.printStats();
+                    OutboundQueue.printStats();
+                    s.bus.printStats();
+                    s.database.printStats();
+                    System.out.println("Dropped log messages: " + AsyncLogger.getDropped());
+                    Metrics.printStats();
+                    break;
                 case "version":
                     System.out.println("Running v" + Server.__version);
                     break;
 
                 case "say":
-                    if(cmd_args != null && cmd_args.length > 0 && s.database != null){
+                    if(cmd_args != null && cmd_args.length > 0){
                         String time = System.currentTimeMillis() + "";
-                        String message = String.join(" ", cmd_args);
-                        s.database.newSystemMessage(message, time);
-                        s.sendMessageToUsers(User.getUsers(), s.textMessageMapBlueprint(message, "System", time));
+                        ChatMessage message = new ChatMessage(Util.generateTimeOrderedId(), String.join(" ", cmd_args), "System", "SERVER_", time);
+                        s.log("New System Message \"" + message.getContent() + "\" @ " + time);
+                        s.database.newMessage(message);
+                        s.publishMessage(message);     //An alle User im DEFAULT Raum (auf allen Knoten)
                     }
             }
         }
 
     }
 
+    /**
+     * Übernimmt Einstellungen aus den Programm-Argumenten (--key=value), z.B. für mehrere Knoten auf einem Rechner:
+     * --port=5555 --bus=tcp --node=a --cluster-port=5556 --peers=localhost:5558,localhost:5560
+     * (auf mehreren Rechnern zusätzlich die Adresse im internen Netz, z.B. --cluster-bind=10.0.0.5)
+     *
+     * @param args Programm-Argumente
+     */
+    private static void parseArgs(String[] args) {
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            String value = kv.length > 1 ? kv[1] : "";
+            switch (kv[0]) {
+                case "--port":
+                    PORT = Integer.parseInt(value);
+                    break;
+                case "--store":
+                    MESSAGE_STORE = value;
+                    break;
+                case "--bus":
+                    CLUSTER_BUS = value;
+                    break;
+                case "--node":
+                    NODE_NAME = value;
+                    break;
+                case "--cluster-bind":
+                    CLUSTER_BIND = value;
+                    break;
+                case "--cluster-port":
+                    CLUSTER_PORT = Integer.parseInt(value);
+                    break;
+                case "--peers":
+                    CLUSTER_PEERS = value;
+                    break;
+                case "--replicate":
+                    CLUSTER_REPLICATE = Boolean.parseBoolean(value);
+                    break;
+                case "--metrics-port":
+                    Metrics.PORT = Integer.parseInt(value);
+                    break;
+                case "--workers":
+                    MessageDispatcher.WORKERS = Integer.parseInt(value);
+                    break;
+                case "--outbound-policy":
+                    OutboundQueue.POLICY = OutboundQueue.Policy.valueOf(value.toUpperCase(Locale.ROOT));
+                    break;
+                default:
+                    System.out.println("Unknown argument " + arg);
+            }
+        }
+    }
+
     /**
      * Konvertiert eine HashMap (oder Object) zu einem String
      *
@@ -327,7 +965,7 @@ public class Server extends WebSocketServer {
      * @return Map as String
      * @throws IOException Error
      */
-    private String objectToString(Object o) throws IOException {
+    static String objectToString(Object o) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         ObjectOutputStream oos = new ObjectOutputStream(baos);
         oos.writeObject(o);
@@ -343,7 +981,7 @@ public class Server extends WebSocketServer {
      * @throws IOException            Error
      * @throws ClassNotFoundException Error
      */
-    private HashMap<String, String> stringToMap(String s) throws IOException,
+    static HashMap<String, String> stringToMap(String s) throws IOException,
             ClassNotFoundException {
         s = s.trim();
         byte[] data = Base64.getDecoder().decode(s);
@@ -359,4 +997,28 @@ public class Server extends WebSocketServer {
         Util.log(s);
     }
 
+
+    /**
+     * Zustand eines laufenden History-Streams (wird immer nur von einem Worker gleichzeitig verwendet)
+     */
+    private static final class HistoryStream {
+        final WebSocket conn;
+        final User user;
+        final String room;
+        final long from;
+        final long to;
+        final long start = System.nanoTime();
+        String cursor;              //Cursor des nächsten Chunks (null = erster Chunk)
+        int seq;                    //Fortlaufende Nummer der Chunks
+        long count;                 //Bisher gesendete Nachrichten
+        long firstChunkNanos = -1;
+
+        HistoryStream(WebSocket conn, User user, String room, long from, long to) {
+            this.conn = conn;
+            this.user = user;
+            this.room = room;
+            this.from = from;
+            this.to = to;
+        }
+    }
 }
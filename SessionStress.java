@@ -0,0 +1,267 @@
+package server;
+
+import org.java_websocket.WebSocket;
+
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stresstest für die Sitzungsverwaltung (User und Room) ohne Netzwerk: THREADS Worker verbinden, trennen,
+ * wechseln Räume und iterieren gleichzeitig die Broadcast-Momentaufnahmen, so wie es onMessage, onClose und
+ * der Konsolen-Thread im Server tun. Jede Verbindung gehört einem Worker (wie beim MessageDispatcher wird pro
+ * Verbindung seriell gearbeitet), Räume und User-Verwaltung werden von allen geteilt.
+ * <p>
+ * Am Ende wird geprüft, dass User-Verwaltung und Räume zueinander passen (keine verlorenen oder verwaisten User).
+ * <p>
+ * Aufruf z.B.: java server.SessionStress --threads=16 --duration=30 --rooms=8
+ */
+public class SessionStress {
+    public static int THREADS = 8;                  //Anzahl paralleler Worker
+    public static int DURATION = 10;                //Dauer (s)
+    public static int CONNECTIONS = 64;             //Verbindungen pro Worker
+    public static int ROOMS = 8;                    //Anzahl Räume (neben DEFAULT)
+    public static double WITH_ID = 0.2;             //Anteil der Verbindungen mit connect_with_id
+
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder joins = new LongAdder();
+    private final LongAdder leaves = new LongAdder();
+    private final LongAdder broadcasts = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    private volatile boolean running = true;
+
+    /**
+     * entry point
+     *
+     * @param args --key=value Einstellungen (s. parseArgs)
+     * @throws Exception Error
+     */
+    public static void main(String[] args) throws Exception {
+        parseArgs(args);
+        System.exit(new SessionStress().run() ? 0 : 1);
+    }
+
+    /**
+     * Führt einen Lauf durch und prüft danach die Konsistenz
+     *
+     * @return false, wenn Fehler aufgetreten sind oder der Endzustand inkonsistent ist
+     * @throws Exception Error
+     */
+    private boolean run() throws Exception {
+        User.createDummyUser();
+        System.out.println("Running " + THREADS + " workers with " + CONNECTIONS + " connections each for " + DURATION + " s (" + ROOMS + " rooms)");
+        CountDownLatch done = new CountDownLatch(THREADS);
+        List<List<WebSocket>> open = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            List<WebSocket> own = new ArrayList<>();
+            open.add(own);
+            Thread t = new Thread(() -> {
+                try {
+                    work(own);
+                } finally {
+                    done.countDown();
+                }
+            }, "session-stress-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        Thread reader = new Thread(this::readLoop, "session-stress-reader");    //Wie der Konsolen-Thread ("say", "list")
+        reader.setDaemon(true);
+        reader.start();
+
+        for (int s = 1; s <= DURATION; s++) {
+            Thread.sleep(1000);
+            System.out.println("[" + s + "/" + DURATION + " s] connects " + connects.sum() + ", disconnects " + disconnects.sum()
+                    + ", joins " + joins.sum() + ", leaves " + leaves.sum() + ", broadcasts " + broadcasts.sum() + ", errors " + errors.sum());
+        }
+        running = false;
+        done.await();
+        reader.join();
+
+        int expected = 0;
+        for (List<WebSocket> own : open) {
+            expected += own.size();
+        }
+        List<String> problems = verify(expected);
+        for (String p : problems) {
+            System.out.println("INCONSISTENT: " + p);
+        }
+        System.out.println(errors.sum() == 0 && problems.isEmpty() ? "OK" : "FAILED (" + errors.sum() + " errors, " + problems.size() + " inconsistencies)");
+        return errors.sum() == 0 && problems.isEmpty();
+    }
+
+    //Zufällige Abfolge von Connect, Join, Leave und Disconnect auf den eigenen Verbindungen
+    private void work(List<WebSocket> own) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (running) {
+            try {
+                int op = random.nextInt(10);
+                if (own.size() < CONNECTIONS && (own.isEmpty() || op < 2)) {
+                    WebSocket conn = fakeConnection(nextConnection.incrementAndGet());
+                    User user = random.nextDouble() < WITH_ID
+                            ? User.createNewUser(conn, "stress", "id" + random.nextInt(CONNECTIONS * THREADS))
+                            : User.createNewUser(conn, "stress");
+                    Room.join(Room.DEFAULT, user);
+                    own.add(conn);
+                    connects.increment();
+                } else if (op < 3) {
+                    disconnect(own.remove(random.nextInt(own.size())));
+                    disconnects.increment();
+                } else if (op < 6) {
+                    User user = User.getUserByConnection(own.get(random.nextInt(own.size())));
+                    if (Room.join("room" + random.nextInt(ROOMS), user)) {
+                        joins.increment();
+                    }
+                } else if (op < 8) {
+                    User user = User.getUserByConnection(own.get(random.nextInt(own.size())));
+                    if (Room.leave("room" + random.nextInt(ROOMS), user)) {
+                        leaves.increment();
+                    }
+                } else {
+                    Room room = Room.get("room" + random.nextInt(ROOMS));   //Broadcast an einen Raum
+                    if (room != null) {
+                        for (User member : room.getMembers()) {
+                            member.getRooms().size();
+                        }
+                        broadcasts.increment();
+                    }
+                }
+            } catch (RuntimeException e) {
+                errors.increment();
+                System.out.println(Thread.currentThread().getName() + ": " + e);
+            }
+        }
+    }
+
+    //Iteriert ständig alle User und den DEFAULT Raum
+    private void readLoop() {
+        while (running) {
+            try {
+                for (User user : User.getUsers()) {
+                    if (!user.exists) {
+                        throw new IllegalStateException("Dummy user in snapshot");
+                    }
+                }
+                Room room = Room.get(Room.DEFAULT);
+                if (room != null) {
+                    room.getMembers().size();
+                }
+                broadcasts.increment();
+            } catch (RuntimeException e) {
+                errors.increment();
+                System.out.println("reader: " + e);
+            }
+        }
+    }
+
+    //Wie Server.handleClose: alle Räume verlassen, dann den User entfernen
+    private void disconnect(WebSocket conn) {
+        User user = User.getUserByConnection(conn);
+        for (String room : new ArrayList<>(user.getRooms())) {
+            Room.leave(room, user);
+        }
+        User.removeUser(conn);
+    }
+
+    /**
+     * Prüft, ob User-Verwaltung und Räume nach dem Lauf zueinander passen
+     *
+     * @param expected Anzahl noch offener Verbindungen
+     * @return Gefundene Inkonsistenzen (leer = OK)
+     */
+    private static List<String> verify(int expected) {
+        List<String> problems = new ArrayList<>();
+        List<User> users = User.getUsers();
+        if (users.size() != expected) {
+            problems.add(users.size() + " users in snapshot, " + expected + " connections open");
+        }
+        Set<User> known = Collections.newSetFromMap(new IdentityHashMap<>());
+        known.addAll(users);
+        for (User user : users) {
+            if (User.getUserByConnection(user.getConnection()) != user) {
+                problems.add(user.getId() + " not found by connection");
+            }
+            if (!user.getRooms().contains(Room.DEFAULT)) {
+                problems.add(user.getId() + " not in " + Room.DEFAULT);
+            }
+            for (String name : user.getRooms()) {
+                Room room = Room.get(name);
+                if (room == null || !room.isMember(user)) {
+                    problems.add(user.getId() + " lists " + name + " but is not a member");
+                }
+            }
+        }
+        for (Room room : Room.getRooms()) {
+            for (User member : room.getMembers()) {
+                if (!known.contains(member)) {
+                    problems.add(room.getName() + " contains disconnected user " + member.getId());
+                } else if (!member.getRooms().contains(room.getName())) {
+                    problems.add(room.getName() + " contains " + member.getId() + " which does not list it");
+                }
+            }
+            if (room.getMembers().isEmpty() && !Room.DEFAULT.equals(room.getName())) {
+                problems.add("empty room " + room.getName() + " was not removed");
+            }
+        }
+        return problems;
+    }
+
+    //Verbindung ohne Netzwerk (Identität wie bei echten Verbindungen, alles andere wird ignoriert)
+    static WebSocket fakeConnection(int n) {
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 1024 + n % 60000);
+        return (WebSocket) Proxy.newProxyInstance(WebSocket.class.getClassLoader(), new Class<?>[]{WebSocket.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "stress-connection-" + n;
+                case "getRemoteSocketAddress":
+                    return address;
+                case "isOpen":
+                    return true;
+                default:
+                    Class<?> type = method.getReturnType();
+                    return type == boolean.class ? Boolean.FALSE : type.isPrimitive() && type != void.class ? 0 : null;
+            }
+        });
+    }
+
+    /**
+     * Übernimmt Einstellungen aus den Programm-Argumenten (--key=value)
+     *
+     * @param args Programm-Argumente
+     */
+    private static void parseArgs(String[] args) {
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            String value = kv.length > 1 ? kv[1] : "";
+            switch (kv[0]) {
+                case "--threads":
+                    THREADS = Integer.parseInt(value);
+                    break;
+                case "--duration":
+                    DURATION = Integer.parseInt(value);
+                    break;
+                case "--connections":
+                    CONNECTIONS = Integer.parseInt(value);
+                    break;
+                case "--rooms":
+                    ROOMS = Integer.parseInt(value);
+                    break;
+                case "--with-id":
+                    WITH_ID = Double.parseDouble(value);
+                    break;
+                default:
+                    System.out.println("Unknown argument " + arg);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache der PreparedStatements einer Verbindung: jedes SQL wird pro Verbindung nur einmal kompiliert.
+ * Nicht thread-safe, eine Verbindung (und damit ihr Cache) wird immer nur von einem Thread gleichzeitig verwendet
+ */
+public class StatementCache {
+    //Statistiken über alle Verbindungen
+    private static final LongAdder prepares = new LongAdder();
+    private static final LongAdder hits = new LongAdder();
+
+    private final Connection conn;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private long generation;    //Schema-Generation, für die die Statements kompiliert wurden
+
+    public StatementCache(Connection conn) {
+        this.conn = conn;
+    }
+
+    /**
+     * Gibt das PreparedStatement für sql zurück (wird beim ersten Aufruf kompiliert).
+     * Das Statement darf vom Aufrufer nicht geschlossen werden, ein evtl. ResultSet aber schon
+     *
+     * @param sql SQL
+     * @return PreparedStatement ohne gesetzte Parameter
+     * @throws SQLException Error
+     */
+    public PreparedStatement get(String sql) throws SQLException {
+        PreparedStatement pstmt = statements.get(sql);
+        if (pstmt != null && !pstmt.isClosed()) {
+            hits.increment();
+            pstmt.clearParameters();
+            return pstmt;
+        }
+        pstmt = conn.prepareStatement(sql);
+        prepares.increment();
+        statements.put(sql, pstmt);
+        return pstmt;
+    }
+
+    /**
+     * Schließt alle Statements (z.B. nach einer Schema-Migration), sie werden bei Bedarf neu kompiliert
+     */
+    public void invalidate() {
+        for (PreparedStatement pstmt : statements.values()) {
+            try {
+                pstmt.close();
+            } catch (SQLException e) {
+                Util.log(e.getMessage() + " @server.StatementCache.invalidate SQLException");
+            }
+        }
+        statements.clear();
+    }
+
+    /**
+     * Invalidiert den Cache, falls er für eine ältere Schema-Generation kompiliert wurde
+     *
+     * @param currentGeneration aktuelle Schema-Generation
+     */
+    public void checkGeneration(long currentGeneration) {
+        if (generation != currentGeneration) {
+            invalidate();
+            generation = currentGeneration;
+        }
+    }
+
+    //Gibt die Verbindung zurück
+    public Connection getConnection() {
+        return conn;
+    }
+
+    //Schließt alle Statements und die Verbindung
+    public void close() {
+        invalidate();
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            Util.log(e.getMessage() + " @server.StatementCache.close SQLException");
+        }
+    }
+
+    //Gibt die Statement Statistiken in der Konsole aus
+    public static void printStats() {
+        System.out.println("Prepared statements: " + prepares.sum() + " prepared, " + hits.sum() + " cache hits");
+    }
+}
@@ -0,0 +1,279 @@
+package server;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+/**
+ * Konformitäts- und Performance-Lauf für alle MessageStore-Implementierungen (DatabaseHandler und LogFileMessageStore).
+ * Jeder Speicher bekommt dieselben Nachrichten (vertauschte Zeiten, gleiche Zeiten, zwei Räume, neue und fertige
+ * Nachrichten) und muss danach dieselben Ergebnisse liefern: Zeitraum inkl. Grenzen, Seiten, Streamen, Abbruch,
+ * Räume getrennt. Gelesen wird erst nach close() und erneutem Öffnen, damit auch die Persistenz geprüft wird.
+ * <p>
+ * Die Speicher schreiben in db/ des Arbeitsordners, der Lauf sollte daher in einem leeren Ordner gestartet werden
+ * (jeder Lauf verwendet eigene Räume, vorhandene Nachrichten stören aber nicht).
+ * <p>
+ * Aufruf z.B.: java server.StoreConformance --store=all --messages=2000 --perf-messages=100000
+ */
+public class StoreConformance {
+    public static String STORE = "all";             //sqlite, log oder all
+    public static int MESSAGES = 2000;              //Nachrichten für die Konformitäts-Prüfung
+    public static int PERF_MESSAGES = 100_000;      //Nachrichten für die Performance-Messung (0 = keine)
+    public static int PAGE_SIZE = 37;               //Seitengröße beim Blättern (bewusst kein Teiler von MESSAGES)
+    public static long SPAN = 10 * 60 * 1000;       //Zeitraum (ms), über den die Nachrichten verteilt werden
+
+    private final String name;
+    private final List<String> failures = new ArrayList<>();
+
+    private StoreConformance(String name) {
+        this.name = name;
+    }
+
+    //Öffnet einen Speicher (jedes Mal neu, damit nach close() wieder von der Platte gelesen wird)
+    private interface Opener {
+        MessageStore open() throws Exception;
+    }
+
+    /**
+     * entry point
+     *
+     * @param args --key=value Einstellungen (s. parseArgs)
+     * @throws Exception Error
+     */
+    public static void main(String[] args) throws Exception {
+        parseArgs(args);
+        DatabaseHandler.ARCHIVE_AFTER = 0;      //Der Archivierer würde die Nachrichten während des Laufs verschieben
+        Files.createDirectories(Paths.get(System.getProperty("user.dir"), "db"));     //DatabaseHandler legt den Ordner (wie beim Server) nicht selbst an
+        User.createDummyUser();
+        boolean ok = true;
+        if ("all".equals(STORE) || "sqlite".equals(STORE)) {
+            ok &= new StoreConformance("sqlite").run(DatabaseHandler::new);
+        }
+        if ("all".equals(STORE) || "log".equals(STORE)) {
+            ok &= new StoreConformance("log").run(LogFileMessageStore::new);
+        }
+        System.out.println(ok ? "OK" : "FAILED");
+        AsyncLogger.shutdown();
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Führt Konformitäts-Prüfung und Performance-Messung für einen Speicher durch
+     *
+     * @param opener Öffnet den Speicher
+     * @return false, wenn eine Prüfung fehlgeschlagen ist
+     */
+    private boolean run(Opener opener) {
+        System.out.println("== " + name);
+        try {
+            conformance(opener);
+            if (failures.isEmpty() && PERF_MESSAGES > 0) {
+                performance(opener);
+            }
+        } catch (ClassNotFoundException e) {
+            System.out.println("SKIPPED " + name + ": " + e.getMessage() + " not on the classpath");
+            return true;
+        } catch (Exception e) {
+            failures.add("unexpected " + e);
+        }
+        for (String f : failures) {
+            System.out.println("FAIL " + name + ": " + f);
+        }
+        return failures.isEmpty();
+    }
+
+    /**
+     * Schreibt die Test-Nachrichten, öffnet den Speicher neu und vergleicht alle Abfragen mit dem erwarteten Ergebnis
+     *
+     * @param opener Öffnet den Speicher
+     * @throws Exception Error
+     */
+    private void conformance(Opener opener) throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String suffix = Util.generateUniqueString(8, Collections.emptySet());
+        String roomA = "conformance-a-" + suffix;
+        String roomB = "conformance-b-" + suffix;
+        long base = System.currentTimeMillis() - 2 * SPAN;
+
+        List<ChatMessage> written = new ArrayList<>();
+        MessageStore store = opener.open();
+        try {
+            long last = base;
+            for (int i = 0; i < MESSAGES; i++) {
+                long time = random.nextInt(10) == 0 ? last : base + random.nextLong(SPAN);   //Vertauscht und teilweise gleiche Zeiten
+                last = time;
+                String room = random.nextInt(5) == 0 ? roomB : roomA;
+                String content = i % 100 == 0 ? "" : "msg " + i + (i % 7 == 0 ? " äöü €\nzweite Zeile" : "");
+                ChatMessage m;
+                if (random.nextBoolean()) {     //Lokale Nachricht
+                    m = new ChatMessage(Util.generateTimeOrderedId(), content, "author" + i % 13, "uid" + i % 13, time + "", room);
+                    store.newMessage(m);
+                } else {                        //Nachricht eines anderen Knotens
+                    m = new ChatMessage("peer-" + Util.generateTimeOrderedId(), content, "peer", "peer-uid", time + "", room);
+                    store.storeMessage(m);
+                }
+                written.add(m);
+            }
+        } finally {
+            store.close();
+        }
+
+        List<ChatMessage> a = expected(written, roomA, Long.MIN_VALUE, Long.MAX_VALUE);
+        List<ChatMessage> b = expected(written, roomB, Long.MIN_VALUE, Long.MAX_VALUE);
+        long t1 = a.get(a.size() / 4).getTimeMillis();
+        long t2 = a.get(a.size() * 3 / 4).getTimeMillis();
+
+        store = opener.open();
+        try {
+            check("all messages", a, store.getAllMessages(roomA, base, base + SPAN));
+            check("other room", b, store.getAllMessages(roomB, base, base + SPAN));
+            check("inclusive bounds", expected(written, roomA, t1, t2), store.getAllMessages(roomA, t1, t2));
+            check("swapped bounds", expected(written, roomA, t1, t2), store.getAllMessages(roomA, t2, t1));
+            check("empty range", Collections.emptyList(), store.getAllMessages(roomA, base - 2 * SPAN, base - SPAN));
+            check("unknown room", Collections.emptyList(), store.getAllMessages("conformance-none-" + suffix, base, base + SPAN));
+
+            List<Map<String, String>> paged = new ArrayList<>();
+            String cursor = null;
+            int pages = 0;
+            do {
+                MessagePage page = store.getMessagePage(roomA, base, base + SPAN, cursor, PAGE_SIZE);
+                if (page == null) {
+                    failures.add("page " + pages + " is null");
+                    break;
+                }
+                if (page.hasMore() != (page.getNextCursor() != null) || (page.hasMore() && page.getMessages().size() != PAGE_SIZE)) {
+                    failures.add("page " + pages + ": " + page.getMessages().size() + " messages, hasMore " + page.hasMore() + ", cursor " + page.getNextCursor());
+                    break;
+                }
+                paged.addAll(page.getMessages());
+                cursor = page.getNextCursor();
+                pages++;
+            } while (cursor != null && pages <= a.size());
+            check("paged", a, paged);
+
+            List<Map<String, String>> streamed = new ArrayList<>();
+            long count = store.streamMessages(roomA, base, base + SPAN, streamed::add);
+            check("streamed", a, streamed);
+            if (count != a.size()) {
+                failures.add("stream returned " + count + ", expected " + a.size());
+            }
+            int[] visited = {0};
+            Predicate<Map<String, String>> stopAfterTen = m -> ++visited[0] < 10;
+            store.streamMessages(roomA, base, base + SPAN, stopAfterTen);
+            if (visited[0] != Math.min(10, a.size())) {
+                failures.add("stream visited " + visited[0] + " messages after the visitor returned false at 10");
+            }
+        } finally {
+            store.close();
+        }
+        System.out.println(name + ": " + written.size() + " messages, " + (failures.isEmpty() ? "conformant" : failures.size() + " failures"));
+    }
+
+    /**
+     * Misst Schreib- und Lese-Durchsatz (Schreiben inkl. close(), also bis alles auf der Platte ist)
+     *
+     * @param opener Öffnet den Speicher
+     * @throws Exception Error
+     */
+    private void performance(Opener opener) throws Exception {
+        String room = "perf-" + Util.generateUniqueString(8, Collections.emptySet());
+        String content = "x".repeat(64);
+        long base = System.currentTimeMillis() - 4 * SPAN;
+
+        long start = System.nanoTime();
+        MessageStore store = opener.open();
+        try {
+            for (int i = 0; i < PERF_MESSAGES; i++) {
+                store.newMessage(new ChatMessage(Util.generateTimeOrderedId(), content, "perf", "perf-uid", (base + i * SPAN / PERF_MESSAGES) + "", room));
+            }
+        } finally {
+            store.close();
+        }
+        long writeNanos = System.nanoTime() - start;
+
+        store = opener.open();
+        long read;
+        start = System.nanoTime();
+        try {
+            read = store.streamMessages(room, base, base + SPAN, m -> true);
+        } finally {
+            store.close();
+        }
+        long readNanos = System.nanoTime() - start;
+        if (read != PERF_MESSAGES) {
+            failures.add("performance run read " + read + " of " + PERF_MESSAGES + " messages");
+        }
+        System.out.printf(Locale.ROOT, "%s: append %d messages in %d ms (%.0f msg/s), stream in %d ms (%.0f msg/s)%n", name, PERF_MESSAGES,
+                writeNanos / 1_000_000, PERF_MESSAGES * 1e9 / writeNanos, readNanos / 1_000_000, read * 1e9 / readNanos);
+    }
+
+    //Erwartetes Ergebnis: alle Nachrichten des Raums mit from <= time <= to, sortiert nach (time, id)
+    private static List<ChatMessage> expected(List<ChatMessage> written, String room, long from, long to) {
+        List<ChatMessage> result = new ArrayList<>();
+        for (ChatMessage m : written) {
+            if (m.getRoom().equals(room) && m.getTimeMillis() >= from && m.getTimeMillis() <= to) {
+                result.add(m);
+            }
+        }
+        result.sort(Comparator.comparingLong(ChatMessage::getTimeMillis).thenComparing(ChatMessage::getId));
+        return result;
+    }
+
+    /**
+     * Vergleicht ein Abfrage-Ergebnis Feld für Feld mit den erwarteten Nachrichten
+     *
+     * @param what     Name der Prüfung
+     * @param expected Erwartete Nachrichten
+     * @param actual   Ergebnis des Speichers
+     */
+    private void check(String what, List<ChatMessage> expected, List<Map<String, String>> actual) {
+        if (actual == null) {
+            failures.add(what + ": store returned null");
+            return;
+        }
+        if (actual.size() != expected.size()) {
+            failures.add(what + ": " + actual.size() + " messages, expected " + expected.size());
+            return;
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            Map<String, String> e = expected.get(i).toMap();
+            Map<String, String> m = actual.get(i);
+            for (String key : e.keySet()) {
+                if (!Objects.equals(e.get(key), m.get(key))) {
+                    failures.add(what + ": message " + i + " has " + key + " '" + m.get(key) + "', expected '" + e.get(key) + "'");
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Übernimmt Einstellungen aus den Programm-Argumenten (--key=value)
+     *
+     * @param args Programm-Argumente
+     */
+    private static void parseArgs(String[] args) {
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            String value = kv.length > 1 ? kv[1] : "";
+            switch (kv[0]) {
+                case "--store":
+                    STORE = value;
+                    break;
+                case "--messages":
+                    MESSAGES = Integer.parseInt(value);
+                    break;
+                case "--perf-messages":
+                    PERF_MESSAGES = Integer.parseInt(value);
+                    break;
+                case "--page-size":
+                    PAGE_SIZE = Integer.parseInt(value);
+                    break;
+                default:
+                    System.out.println("Unknown argument " + arg);
+            }
+        }
+    }
+}
@@ -3,39 +3,60 @@ package server;
 import org.java_websocket.WebSocket;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * User Objekt
  */
 public class User {
 
-    private static List<String> user_ids = new ArrayList<>();   //Liste aller UserIDs
-    private static List<User> users = new ArrayList<>();        //Liste aller User
-    private static User dummyuser;                              //Fallback user
+    private static final Map<WebSocket, User> usersByConnection = new ConcurrentHashMap<>();  //Alle User, nach Connection
+    private static final Map<String, User> usersById = new ConcurrentHashMap<>();            //Alle User, nach ID
+    private static final AtomicLong version = new AtomicLong();                              //Wird nach jedem Connect/Disconnect erhöht
+    private static volatile Snapshot snapshot = new Snapshot(0, Collections.emptyList());    //Unveränderliche Momentaufnahme für Broadcasts
+    private static volatile User dummyuser;                                                  //Fallback user
 
     private final String id;                                    //User ID
     private String ip;                                          //User IP
     private final String name;                                  //User Name
     private final WebSocket connection;                         //User Connection
     public boolean exists;                                      //User exist-status
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();    //Räume, in denen der User Mitglied ist
 
-    //Gibt alle User zurück
+    /**
+     * Gibt alle User zurück. Die Liste ist eine unveränderliche Momentaufnahme (copy-on-write),
+     * die nur nach einem Connect/Disconnect neu aufgebaut wird und gefahrlos iteriert werden kann.
+     * Ohne Lock: eine Momentaufnahme gilt nur für die Version, die vor dem Aufbau gelesen wurde
+     *
+     * @return Momentaufnahme aller User
+     */
     public static List<User> getUsers() {
-        return users;
+        long current = version.get();
+        Snapshot s = snapshot;
+        if (s.version != current) {
+            s = new Snapshot(current, Collections.unmodifiableList(new ArrayList<>(usersByConnection.values())));
+            snapshot = s;   //Überschreibt evtl. eine neuere Momentaufnahme, die wird dann beim nächsten Aufruf neu aufgebaut
+        }
+        return s.users;
     }
 
     /**
-     * Entfernt User mit connection
+     * Entfernt User mit connection (inkl. dessen ID)
      *
      * @param connection User connection
      */
     public static void removeUser(WebSocket connection) {
-        for (int i = 0; i < users.size(); i++) {
-            if (users.get(i).getConnection().equals(connection)) {
-                users.remove(i);
-                break;
+        User user = usersByConnection.remove(connection);
+        if (user != null) {
+            if (user.getId() != null) {
+                usersById.remove(user.getId(), user);   //Nur entfernen, wenn die ID nicht inzwischen von einem anderen User verwendet wird
             }
+            version.incrementAndGet();
         }
     }
 
@@ -46,18 +67,25 @@ public class User {
      * @return User
      */
     public static User getUserByConnection(WebSocket connection) {
-        for (User u : users) {
-            if (u.getConnection().equals(connection)) {
-                return u;
-            }
-        }
-        return User.dummyuser;  //Sollte kein User gefunden werden, wird der dummyuser zurückgegeben (error-vorbeuge)
+        User user = connection == null ? null : usersByConnection.get(connection);
+        return user != null ? user : User.dummyuser;  //Sollte kein User gefunden werden, wird der dummyuser zurückgegeben (error-vorbeuge)
+    }
+
+    /**
+     * Ermittlet User mit geg. ID
+     *
+     * @param id User ID
+     * @return User
+     */
+    public static User getUserById(String id) {
+        User user = id == null ? null : usersById.get(id);
+        return user != null ? user : User.dummyuser;
     }
 
 
-    //Gibt alle User IDs zurück
-    public static List<String> getUser_ids() {
-        return user_ids;
+    //Gibt alle User IDs zurück (schreibgeschützte Live-Ansicht, contains in O(1))
+    public static Set<String> getUser_ids() {
+        return Collections.unmodifiableSet(usersById.keySet());
     }
 
     //Gibt User ID zurück
@@ -98,8 +126,6 @@ public class User {
             this.ip = "0.0.0.0";
             log(e.getMessage() + " @server.User.__init__ NullPointerException");
         }
-        user_ids.add(id);   //Fügt die user-ID der user_ids Liste hinzu
-        users.add(this);    //Fügt den user der users Liste hinzu
         this.exists = true; //Ein "normaler" user existiert, der dummy user nicht
     }
 
@@ -118,6 +144,17 @@ public class User {
         this.exists = false;    //Der dummy user existiert nicht
     }
 
+    /**
+     * Überläd createNewUser(WebSocket connection, String name, String id) mit einer Unique ID
+     *
+     * @param connection User connection
+     * @param name       User Name
+     * @return Erstellter und ermittelter User
+     */
+    public static User createNewUser(WebSocket connection, String name) {
+        return createNewUser(connection, name, Util.generateUniqueString(10, getUser_ids()));
+    }
+
     /**
      * Check zunächst, ob der User mit der ID bereits existiert und gibt diesen zurück oder erstellt einen komplett neuen
      *
@@ -128,22 +165,65 @@ public class User {
      */
     public static User createNewUser(WebSocket connection, String name, String id) {
         //Check if a user with that connection already exists
-        for (User u : users) {
-            if (u.getConnection().equals(connection)) {
-                return u;
-            }
+        User existing = usersByConnection.get(connection);
+        if (existing != null) {
+            return existing;
+        }
+        User user = new User(connection, name, id);
+        existing = usersByConnection.putIfAbsent(connection, user);    //Atomar, falls die Connection parallel zweimal "connect" schickt
+        if (existing != null) {
+            return existing;
+        }
+        if (id != null) {
+            usersById.put(id, user);
         }
-        return new User(connection, name, id);
+        version.incrementAndGet();
+        return user;
+    }
+
+    //Gibt die Namen aller Räume zurück, in denen der User Mitglied ist
+    public Set<String> getRooms() {
+        return Collections.unmodifiableSet(rooms);
+    }
+
+    //Wird von Room beim Join/Leave aufgerufen
+    void addRoom(String room) {
+        rooms.add(room);
+    }
+
+    void removeRoom(String room) {
+        rooms.remove(room);
+    }
+
+    //Sende-Warteschlange der Verbindung (null beim Dummyuser oder nach dem Disconnect)
+    public OutboundQueue getOutbound() {
+        return OutboundQueue.get(connection);
+    }
+
+    //Anzahl Frames, die in der Sende-Warteschlange auf den Client warten
+    public int getQueueDepth() {
+        OutboundQueue outbound = getOutbound();
+        return outbound == null ? 0 : outbound.getDepth();
+    }
+
+    //Anzahl Frames, die für diesen User verworfen wurden (Client zu langsam)
+    public long getDroppedFrames() {
+        OutboundQueue outbound = getOutbound();
+        return outbound == null ? 0 : outbound.getDropped();
     }
 
     //Schöne darstellung des User-Objekt
     @Override
     public String toString() {
+        OutboundQueue outbound = getOutbound();
         return "User: " + id
                 + "\n|--ID: " + id
                 + "\n|--IP: " + ip
                 + "\n|--NAME: " + name
-                + "\n+--CONNECTION: " + connection
+                + "\n|--CONNECTION: " + connection
+                + "\n|--ROOMS: " + rooms
+                + "\n+--OUTBOUND: " + (outbound == null ? "-" : outbound.getDepth() + " queued (peak " + outbound.getPeakDepth() + "), "
+                + outbound.getDropped() + " dropped, " + outbound.getCoalesced() + " coalesced" + (outbound.isLagging() ? ", lagging" : ""))
                 + "\n";
     }
 
@@ -153,10 +233,21 @@ public class User {
     }
 
     //Erstellt Dummyuser
-    public static void createDummyUser() {
+    public static synchronized void createDummyUser() {
         if (dummyuser == null) {
             dummyuser = new User("undefined", "undefined", "undefined");
         }
     }
 
+    //Momentaufnahme aller User mit der Version, aus der sie aufgebaut wurde
+    private static final class Snapshot {
+        final long version;
+        final List<User> users;
+
+        Snapshot(long version, List<User> users) {
+            this.version = version;
+            this.users = users;
+        }
+    }
+
 }
@@ -1,75 +1,104 @@
 package server;
 
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.List;
-import java.util.Random;
+import java.util.Collection;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
 
 public class Util {
-    private static String filePath = System.getProperty("user.dir") + "/server_log.txt";    //Logfile
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final char[] ALPHANUMERIC = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".toCharArray();
 
 
     /**
-     * Logged Nachrichten: Gibt diese mit Timestamp in der Konsole auf und schreibt sie in eine TXT-Datei
+     * Logged Nachrichten: Gibt diese mit Timestamp in der Konsole auf und schreibt sie in eine TXT-Datei.
+     * Das Schreiben passiert asynchron im AsyncLogger, der Aufruf blockiert nicht
      *
      * @param s String to log
      */
     public static void log(String s) {
-        try {
-            File logFile = new File(filePath);  //Check ob die Datei existiert
-            logFile.createNewFile();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        //Datum Formatierung
-        LocalDateTime time = LocalDateTime.now();
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd-MM-yyyy HH:mm:ss");
-        String formattedDate = time.format(formatter);
-
-
-        String logmsg = "[" + formattedDate + "] " + s; //Pre- formatter
+        AsyncLogger.log(AsyncLogger.Level.INFO, s);
+    }
 
-        System.out.println(logmsg); //Konsolen Ausgabe
+    /**
+     * Logged Nachrichten mit geg. Level (s. log(String))
+     *
+     * @param level Level
+     * @param s     String to log
+     */
+    public static void log(AsyncLogger.Level level, String s) {
+        AsyncLogger.log(level, s);
+    }
 
-        //Versuche den Log in eine Datei zuschreiben
-        try {
-            FileWriter logFileWriter = new FileWriter(filePath, true);
-            logFileWriter.write(logmsg + "\n");
-            logFileWriter.close();
+    /**
+     * Logged eine Nachricht, die erst gebaut wird, wenn das Level aktiv ist.
+     * Bei deaktiviertem Level kostet der Aufruf nur den Level-Check
+     *
+     * @param level   Level
+     * @param message Liefert den String to log
+     */
+    public static void log(AsyncLogger.Level level, Supplier<String> message) {
+        if (AsyncLogger.isEnabled(level)) {
+            AsyncLogger.log(level, message.get());
+        }
+    }
 
-        } catch (IOException e) {
-            System.out.println("An error occurred writing to the log file!");
-            e.printStackTrace();
+    /**
+     * Kürzt einen String auf maxLength Zeichen (z.B. Nachrichteninhalte für den Log)
+     *
+     * @param s         String
+     * @param maxLength Maximale Länge
+     * @return gekürzter String
+     */
+    public static String truncate(String s, int maxLength) {
+        if (s == null || s.length() <= maxLength) {
+            return s;
         }
+        return s.substring(0, maxLength) + "...(" + s.length() + " chars)";
     }
 
     /**
-     * Generiert einen Unique String (Einen String, der nicht in der Liste ref enthalten is)
+     * Generiert einen Unique String (Einen String, der nicht in der Collection ref enthalten is) aus 0-9, A-Z und a-z.
+     * Die Zeichen werden direkt aus ALPHANUMERIC per ThreadLocalRandom gewählt, außer dem Ergebnis wird nichts alloziert.
+     * ref sollte ein Set sein (contains in O(1)), z.B. User.getUser_ids()
      *
      * @param targetStringLength Länge
-     * @param ref                Reference List (String darf nicht dort drin vorkommen)
+     * @param ref                Reference Collection (String darf nicht dort drin vorkommen)
      * @return unique String
      */
-    public static String generateUniqueString(int targetStringLength, List<String> ref) {
-        int leftLimit = 48; // numeral '0'
-        int rightLimit = 122; // letter 'z'
-
-        //Magic
+    public static String generateUniqueString(int targetStringLength, Collection<String> ref) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        char[] chars = new char[targetStringLength];
         String generatedString;
         do {
-            Random random = new Random();
-            generatedString = random.ints(leftLimit, rightLimit + 1)
-                    .filter(i -> (i <= 57 || i >= 65) && (i <= 90 || i >= 97))
-                    .limit(targetStringLength)
-                    .collect(StringBuilder::new, StringBuilder::appendCodePoint, StringBuilder::append)
-                    .toString();
+            for (int i = 0; i < targetStringLength; i++) {
+                chars[i] = ALPHANUMERIC[random.nextInt(ALPHANUMERIC.length)];
+            }
+            generatedString = new String(chars);
         } while (ref.contains(generatedString));
         return generatedString;
     }
 
+    /**
+     * Generiert eine zeitlich sortierbare 128-Bit ID als 32-stelligen Hex-String
+     * (48 Bit Zeitstempel in ms + 80 Bit Zufall). Bestehende IDs müssen dafür nicht bekannt sein,
+     * eine Kollision ist praktisch ausgeschlossen und wird ggf. vom Primary Key der Datenbank erkannt
+     *
+     * @return unique ID
+     */
+    public static String generateTimeOrderedId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long high = (System.currentTimeMillis() << 16) | (random.nextInt() & 0xFFFF);  //48 Bit Zeit + 16 Bit Zufall
+        long low = random.nextLong();                                                   //64 Bit Zufall
+
+        char[] id = new char[32];
+        for (int i = 15; i >= 0; i--) {
+            id[i] = HEX[(int) (high & 0xF)];
+            high >>>= 4;
+            id[i + 16] = HEX[(int) (low & 0xF)];
+            low >>>= 4;
+        }
+        return new String(id);
+    }
+
 
 }
@@ -0,0 +1,48 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Temporärer Arbeitsordner für Benchmarks, die Nachrichten-Speicher oder den Server öffnen (beide legen ihre Dateien
+ * im Arbeitsordner an). Der Archivierer ist aus, damit er keine Nachrichten während der Messung verschiebt
+ */
+final class BenchmarkFiles {
+
+    private BenchmarkFiles() {
+    }
+
+    /**
+     * Legt einen leeren Arbeitsordner mit db/ an und leitet Arbeitsordner und Log dorthin um
+     *
+     * @param prefix Präfix des Ordnernamens
+     * @return Ordner
+     * @throws IOException Error
+     */
+    static Path createWorkDirectory(String prefix) throws IOException {
+        Path directory = Files.createTempDirectory(prefix);
+        Files.createDirectories(directory.resolve("db"));       //DatabaseHandler legt den Ordner nicht selbst an
+        System.setProperty("user.dir", directory.toString());
+        AsyncLogger.FILE_PATH = directory.resolve("server_log.txt").toString();
+        AsyncLogger.CONSOLE = false;
+        DatabaseHandler.ARCHIVE_AFTER = 0;
+        return directory;
+    }
+
+    /**
+     * Löscht den Ordner samt Inhalt
+     *
+     * @param directory Ordner
+     * @throws IOException Error
+     */
+    static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package server;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Startet die Benchmarks mit den JMH Optionen aus den Programm-Argumenten. Der gc-Profiler ist immer aktiv, damit neben
+ * der Zeit pro Aufruf auch die Allokation pro Aufruf (gc.alloc.rate.norm, Bytes/op) ausgegeben wird
+ * <p>
+ * Aufruf z.B.: java -jar jmh/target/benchmarks.jar CodecBenchmark -f 1 -wi 3 -i 5
+ */
+public class Benchmarks {
+
+    /**
+     * entry point
+     *
+     * @param args JMH Optionen (s. java -jar benchmarks.jar -h)
+     * @throws Exception Error
+     */
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
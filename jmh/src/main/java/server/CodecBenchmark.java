@@ -0,0 +1,64 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kodieren und Dekodieren einer Chat-Nachricht: MessageCodec (binär) gegen das Legacy Format (Java-Serialisierung + Base64)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"16", "1024"})
+    public int contentLength;           //Länge des Nachrichten-Inhalts (Zeichen)
+
+    private Map<String, String> message;
+    private byte[] binary;
+    private String legacy;
+
+    @Setup
+    public void setup() throws IOException {
+        HashMap<String, String> map = new HashMap<>();
+        map.put("type", "message");
+        map.put("content", "ä".repeat(contentLength / 4) + "x".repeat(contentLength - contentLength / 4));
+        map.put("name", "benchmark");
+        map.put("id", Util.generateUniqueString(10, Collections.emptySet()));
+        map.put("uid", Util.generateTimeOrderedId());
+        map.put("time", System.currentTimeMillis() + "");
+        map.put("room", Room.DEFAULT);
+        message = map;
+        binary = MessageCodec.encode(map);
+        legacy = Server.objectToString(map);
+    }
+
+    @Benchmark
+    public byte[] binaryEncode() {
+        return MessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public Map<String, String> binaryDecode() {
+        return MessageCodec.decode(ByteBuffer.wrap(binary));
+    }
+
+    @Benchmark
+    public String legacyEncode() throws IOException {
+        return Server.objectToString(message);
+    }
+
+    @Benchmark
+    public Map<String, String> legacyDecode() throws IOException, ClassNotFoundException {
+        return Server.stringToMap(legacy);
+    }
+}
@@ -0,0 +1,73 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * History-Anfragen (getMessagePage, wie request_message_history) für die letzten Minuten, mit warmem MessageCache
+ * (beim Öffnen mit den neuesten Nachrichten gefüllt) und ohne Cache (jede Anfrage geht an SQLite)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+    private static final int PREFILL = 50_000;              //Nachrichten vor der Messung
+    private static final long INTERVAL = 60;                //Abstand (ms) der Nachrichten, PREFILL Nachrichten = 50 min
+    private static final long WINDOW = 5 * 60 * 1000;       //Angefragter Zeitraum (die letzten 5 min)
+    private static final int LIMIT = 100;                   //Nachrichten pro Seite (wie LoadGenerator.HISTORY_LIMIT)
+    private static final String ROOM = "bench";
+
+    @Param({"warm", "cold"})
+    public String cache;
+
+    private Path directory;
+    private MessageStore messages;
+    private long from;
+    private long to;
+
+    @Setup
+    public void setup() throws Exception {
+        directory = BenchmarkFiles.createWorkDirectory("history-benchmark");
+        DatabaseHandler.CACHE_CAPACITY = "warm".equals(cache) ? 10_000 : 0;
+        messages = new DatabaseHandler();
+        to = System.currentTimeMillis();
+        long start = to - PREFILL * INTERVAL;
+        for (int i = 0; i < PREFILL; i++) {
+            long time = start + i * INTERVAL;
+            messages.newMessage(new ChatMessage(Util.generateTimeOrderedId(), "benchmark message " + time, "bench", "bench-uid", time + "", ROOM));
+        }
+        messages.close();       //Wie nach einem Neustart: der Cache wird beim Öffnen gefüllt
+        messages = new DatabaseHandler();
+        from = to - WINDOW;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        messages.close();
+        BenchmarkFiles.delete(directory);
+    }
+
+    //Erste Seite (wie die erste Antwort auf eine History-Anfrage)
+    @Benchmark
+    public MessagePage firstPage() {
+        return messages.getMessagePage(ROOM, from, to, null, LIMIT);
+    }
+
+    //Alle Seiten des Zeitraums (wie ein vollständiger History-Stream)
+    @Benchmark
+    public int allPages() {
+        int count = 0;
+        String cursor = null;
+        do {
+            MessagePage page = messages.getMessagePage(ROOM, from, to, cursor, LIMIT);
+            count += page.getMessages().size();
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        return count;
+    }
+}
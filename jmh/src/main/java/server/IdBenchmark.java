@@ -0,0 +1,49 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ID-Erzeugung: User-IDs (generateUniqueString gegen die vorhandenen IDs) und Nachrichten-IDs (generateTimeOrderedId)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdBenchmark {
+
+    @Param({"0", "100000"})
+    public int existingIds;             //Anzahl bereits vergebener IDs (wie User.getUser_ids())
+
+    private Set<String> ids;
+
+    @Setup
+    public void setup() {
+        ids = new HashSet<>();
+        while (ids.size() < existingIds) {
+            ids.add(Util.generateUniqueString(10, ids));
+        }
+    }
+
+    @Benchmark
+    public String uniqueString() {
+        return Util.generateUniqueString(10, ids);
+    }
+
+    @Benchmark
+    public String timeOrderedId() {
+        return Util.generateTimeOrderedId();
+    }
+
+    //Mehrere Threads erzeugen gleichzeitig Nachrichten-IDs (wie die Worker des MessageDispatcher)
+    @Benchmark
+    @Threads(4)
+    public String timeOrderedIdContended() {
+        return Util.generateTimeOrderedId();
+    }
+}
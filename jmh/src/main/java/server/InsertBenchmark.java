@@ -0,0 +1,82 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kosten pro Nachricht bei wachsender Tabelle: ID-Erzeugung, synchrones INSERT (ID + Zeile + Indizes) und eine
+ * Zeitraum-Abfrage, jeweils bei 10k, 1M und 10M gespeicherten Nachrichten. Keines davon darf mit der Tabellengröße
+ * linear wachsen. Die Tabelle wird direkt in SQLite befüllt (rekursive CTE), 10M Zeilen brauchen etwa 1 GB Platz
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InsertBenchmark {
+    private static final int WINDOW = 100;          //Nachrichten im gelesenen Zeitraum
+    private static final String ROOM = "bench";
+    private static final String PREFILL_SQL = "WITH RECURSIVE n(i) AS (SELECT 0 UNION ALL SELECT i + 1 FROM n WHERE i + 1 < ?) "
+            + "INSERT INTO public(id, content, author, author_id, time, room) "
+            + "SELECT printf('prefill-%012d', i), 'benchmark message ' || i, 'bench', 'bench-uid', ? + i, '" + ROOM + "' FROM n";
+
+    @Param({"10000", "1000000", "10000000"})
+    public int rows;                                //Gespeicherte Nachrichten vor der Messung
+
+    private Path directory;
+    private MessageStore messages;
+    private long start;
+    private long nextTime;
+
+    @Setup
+    public void setup() throws Exception {
+        directory = BenchmarkFiles.createWorkDirectory("insert-benchmark");
+        DatabaseHandler.ASYNC_WRITES = false;       //Gemessen wird das INSERT selbst, nicht die Übergabe an den MessageWriter
+        DatabaseHandler.CACHE_CAPACITY = 0;
+        DatabaseHandler.SEARCH_ENABLED = false;     //Sonst würde der Index alle vorbefüllten Zeilen nachholen
+        new DatabaseHandler().close();              //Legt Tabelle und Indizes an
+
+        start = System.currentTimeMillis() - rows - 1000L;
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + directory.resolve("db").resolve("database.db"));
+             PreparedStatement prefill = conn.prepareStatement(PREFILL_SQL)) {
+            prefill.setInt(1, rows);
+            prefill.setLong(2, start);
+            prefill.executeUpdate();
+        }
+        messages = new DatabaseHandler();
+        nextTime = start + rows;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        messages.close();
+        BenchmarkFiles.delete(directory);
+    }
+
+    @Benchmark
+    public String messageId() {
+        return Util.generateTimeOrderedId();
+    }
+
+    @Benchmark
+    public void insert() {
+        long time = nextTime++;
+        messages.newMessage(new ChatMessage(Util.generateTimeOrderedId(), "benchmark message " + time, "bench", "bench-uid", time + "", ROOM));
+    }
+
+    //Zufälliger Zeitraum mit WINDOW Nachrichten (Index statt Full Table Scan)
+    @Benchmark
+    public List<Map<String, String>> history() {
+        long from = start + ThreadLocalRandom.current().nextInt(rows - WINDOW);
+        return messages.getAllMessages(ROOM, from, from + WINDOW - 1);
+    }
+}
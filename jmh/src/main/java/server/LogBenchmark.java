@@ -0,0 +1,47 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kosten eines Log-Aufrufs für den aufrufenden Thread (der AsyncLogger schreibt im Hintergrund, bei vollem Puffer wird verworfen)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogBenchmark {
+
+    private String user;
+
+    @Setup
+    public void setup() throws IOException {
+        AsyncLogger.FILE_PATH = Files.createTempFile("log-benchmark", ".txt").toString();
+        AsyncLogger.CONSOLE = false;
+        AsyncLogger.LEVEL = AsyncLogger.Level.INFO;
+        user = "bench@127.0.0.1";
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        AsyncLogger.shutdown();
+        Files.deleteIfExists(Paths.get(AsyncLogger.FILE_PATH));
+    }
+
+    @Benchmark
+    public void info() {
+        Util.log(user + " has joined the room!");
+    }
+
+    //DEBUG ist aus: der Supplier darf den String nicht bauen
+    @Benchmark
+    public void debugDisabled() {
+        Util.log(AsyncLogger.Level.DEBUG, () -> "Received message from " + user);
+    }
+}
@@ -0,0 +1,79 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gleichzeitiges Lesen und Schreiben gegen SQLite: READERS Threads lesen Zeiträume (getAllMessages), ein Thread
+ * schreibt (synchron, ASYNC_WRITES aus). Mit readPoolSize = 1 teilen sich alle Leser eine Verbindung, wie früher alle
+ * Abfragen die einzige Verbindung geteilt haben. Der Cache ist aus, jede Abfrage geht an die Datenbank
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadWriteBenchmark {
+    private static final int PREFILL = 100_000;     //Nachrichten vor der Messung
+    private static final int WINDOW = 100;          //Nachrichten im gelesenen Zeitraum
+    private static final int READERS = 3;           //Lesende Threads (s. @GroupThreads)
+    private static final String ROOM = "bench";
+
+    @Param({"1", "4"})
+    public int readPoolSize;                        //DatabaseHandler.READ_POOL_SIZE
+
+    private Path directory;
+    private MessageStore messages;
+    private long start;
+    private final AtomicLong nextTime = new AtomicLong();
+
+    @Setup
+    public void setup() throws Exception {
+        directory = BenchmarkFiles.createWorkDirectory("read-write-benchmark");
+        DatabaseHandler.READ_POOL_SIZE = readPoolSize;
+        DatabaseHandler.CACHE_CAPACITY = 0;
+        DatabaseHandler.ASYNC_WRITES = true;        //Vorbefüllen gesammelt, gemessen wird synchron
+        messages = new DatabaseHandler();
+        start = System.currentTimeMillis() - PREFILL;
+        for (int i = 0; i < PREFILL; i++) {
+            messages.newMessage(message(start + i));
+        }
+        messages.close();
+        DatabaseHandler.ASYNC_WRITES = false;
+        messages = new DatabaseHandler();
+        nextTime.set(start + PREFILL);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        messages.close();
+        BenchmarkFiles.delete(directory);
+    }
+
+    private static ChatMessage message(long time) {
+        return new ChatMessage(Util.generateTimeOrderedId(), "benchmark message " + time, "bench", "bench-uid", time + "", ROOM);
+    }
+
+    //Zufälliger Zeitraum mit WINDOW Nachrichten
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(READERS)
+    public List<Map<String, String>> read() {
+        long from = start + ThreadLocalRandom.current().nextInt(PREFILL - WINDOW);
+        return messages.getAllMessages(ROOM, from, from + WINDOW - 1);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void write() {
+        messages.newMessage(message(nextTime.getAndIncrement()));
+    }
+}
@@ -0,0 +1,66 @@
+package server;
+
+import org.java_websocket.WebSocket;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verarbeitung einer Chat-Nachricht im Legacy Format, wie sie ein Worker für onMessage ausführt (handleMessage:
+ * dekodieren, processMessage, speichern, an alle Mitglieder des Raums senden), einmal mit und einmal ohne DEBUG-Log.
+ * Die Verbindungen sind ohne Netzwerk (s. SessionStress.fakeConnection). Gespeichert wird im LogFileMessageStore, bei
+ * SQLite würde die Backpressure des MessageWriter den Unterschied der Log-Level überdecken (s. WriteBenchmark)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerBenchmark {
+    private static final int RECIPIENTS = 10;       //Weitere Mitglieder des Raums
+
+    @Param({"INFO", "DEBUG"})
+    public String level;                            //AsyncLogger.LEVEL (INFO = DEBUG-Log aus)
+
+    private Path directory;
+    private Server server;
+    private WebSocket author;
+    private String frame;
+
+    @Setup
+    public void setup() throws Exception {
+        directory = BenchmarkFiles.createWorkDirectory("server-benchmark");
+        AsyncLogger.LEVEL = AsyncLogger.Level.valueOf(level);
+        Server.MESSAGE_STORE = "log";
+        server = new Server(0);     //Wird nicht gestartet, es gibt nur die simulierten Verbindungen
+        author = connect(0, "author");
+        for (int i = 1; i <= RECIPIENTS; i++) {
+            connect(i, "recipient" + i);
+        }
+        HashMap<String, String> map = new HashMap<>();
+        map.put("type", "message");
+        map.put("content", "benchmark message with some text in it");
+        frame = Server.objectToString(map);
+    }
+
+    private static WebSocket connect(int n, String name) {
+        WebSocket conn = SessionStress.fakeConnection(n);
+        OutboundQueue.open(conn);
+        Room.join(Room.DEFAULT, User.createNewUser(conn, name));
+        return conn;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        server.stop(1000);
+        BenchmarkFiles.delete(directory);
+    }
+
+    @Benchmark
+    public void onMessage() {
+        server.handleMessage(author, frame);
+    }
+}
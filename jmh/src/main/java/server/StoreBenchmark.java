@@ -0,0 +1,82 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schreiben und Lesen der Nachrichten-Speicher (DatabaseHandler und LogFileMessageStore) in einem temporären Ordner.
+ * Der Speicher wird mit PREFILL Nachrichten gefüllt, gelesen wird ein Zeitraum mit WINDOW Nachrichten.
+ * Bei "sqlite" misst newMessage die Übergabe an den MessageWriter (wie im Server), nicht das Schreiben auf die Platte,
+ * bei "sqlite-sync" (ASYNC_WRITES aus) das INSERT selbst. Durchsatz inkl. Schreiben auf die Platte s. WriteBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreBenchmark {
+    private static final int PREFILL = 100_000;     //Nachrichten vor der Messung
+    private static final int WINDOW = 1000;         //Nachrichten im gelesenen Zeitraum
+    private static final String ROOM = "bench";
+
+    @Param({"sqlite", "sqlite-sync", "log"})
+    public String store;
+
+    private Path directory;
+    private MessageStore messages;
+    private long from;
+    private long to;
+    private long nextTime;
+
+    @Setup
+    public void setup() throws Exception {
+        directory = BenchmarkFiles.createWorkDirectory("store-benchmark");
+        DatabaseHandler.ASYNC_WRITES = !"sqlite-sync".equals(store);
+        messages = open();
+
+        long start = System.currentTimeMillis() - PREFILL;
+        for (int i = 0; i < PREFILL; i++) {
+            messages.newMessage(message(start + i));
+        }
+        messages.close();       //Alles auf die Platte, gelesen wird wie nach einem Neustart
+        messages = open();
+        from = start + PREFILL / 2;
+        to = from + WINDOW - 1;
+        nextTime = start + PREFILL;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        messages.close();
+        BenchmarkFiles.delete(directory);
+    }
+
+    private MessageStore open() throws Exception {
+        return store.startsWith("sqlite") ? new DatabaseHandler() : new LogFileMessageStore();
+    }
+
+    private static ChatMessage message(long time) {
+        return new ChatMessage(Util.generateTimeOrderedId(), "benchmark message " + time, "bench", "bench-uid", time + "", ROOM);
+    }
+
+    @Benchmark
+    public void newMessage() {
+        messages.newMessage(message(nextTime++));
+    }
+
+    @Benchmark
+    public List<Map<String, String>> getAllMessages() {
+        return messages.getAllMessages(ROOM, from, to);
+    }
+
+    @Benchmark
+    public MessagePage getMessagePage() {
+        return messages.getMessagePage(ROOM, from, to, null, 100);
+    }
+}
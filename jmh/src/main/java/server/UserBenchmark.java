@@ -0,0 +1,78 @@
+package server;
+
+import org.java_websocket.WebSocket;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Zugriffe auf die User-Verwaltung bei 10 bis 100k verbundenen Usern
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int users;                   //Anzahl verbundener User
+
+    private WebSocket[] connections;
+    private String[] ids;
+
+    //Jeder Thread geht die User der Reihe nach durch
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int i;
+
+        int next(int n) {
+            i = i + 1 == n ? 0 : i + 1;
+            return i;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        User.createDummyUser();
+        connections = new WebSocket[users];
+        ids = new String[users];
+        for (int i = 0; i < users; i++) {
+            connections[i] = SessionStress.fakeConnection(i);
+            ids[i] = User.createNewUser(connections[i], "bench" + i).getId();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (WebSocket conn : connections) {
+            User.removeUser(conn);
+        }
+    }
+
+    @Benchmark
+    public User byConnection(Cursor cursor) {
+        return User.getUserByConnection(connections[cursor.next(users)]);
+    }
+
+    @Benchmark
+    public User byId(Cursor cursor) {
+        return User.getUserById(ids[cursor.next(users)]);
+    }
+
+    //Momentaufnahme für einen Broadcast (unverändert seit dem letzten Aufruf)
+    @Benchmark
+    public List<User> snapshot() {
+        return User.getUsers();
+    }
+
+    //Connect und Disconnect eines weiteren Users (baut die nächste Momentaufnahme nicht auf)
+    @Benchmark
+    public User connectDisconnect(Cursor cursor) {
+        WebSocket conn = connections[cursor.next(users)];
+        User.removeUser(conn);
+        return User.createNewUser(conn, "bench");
+    }
+}
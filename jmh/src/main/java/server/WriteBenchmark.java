@@ -0,0 +1,58 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dauerhafter Schreib-Durchsatz von SQLite mit und ohne MessageWriter: "batched" sammelt die Nachrichten in
+ * Transaktionen (ASYNC_WRITES), "unbatched" schreibt jede Nachricht in einer eigenen Transaktion. Gemessen wird bis
+ * alles auf der Platte ist (inkl. close(), das den MessageWriter leert), nicht nur die Übergabe an die Queue
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WriteBenchmark {
+    private static final int MESSAGES = 10_000;     //Nachrichten pro Aufruf (Ergebnis in Nachrichten/s)
+    private static final String ROOM = "bench";
+
+    @Param({"batched", "unbatched"})
+    public String mode;
+
+    private Path directory;
+    private MessageStore messages;
+    private long nextTime;
+
+    @Setup(Level.Trial)
+    public void createDirectory() throws Exception {
+        directory = BenchmarkFiles.createWorkDirectory("write-benchmark");
+        DatabaseHandler.ASYNC_WRITES = "batched".equals(mode);
+        DatabaseHandler.CACHE_CAPACITY = 0;
+        nextTime = System.currentTimeMillis();
+    }
+
+    //Jeder Aufruf schreibt in einen frisch geöffneten Speicher (Öffnen wird nicht gemessen)
+    @Setup(Level.Invocation)
+    public void open() throws Exception {
+        messages = new DatabaseHandler();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkFiles.delete(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void write() {
+        for (int i = 0; i < MESSAGES; i++) {
+            long time = nextTime++;
+            messages.newMessage(new ChatMessage(Util.generateTimeOrderedId(), "benchmark message " + time, "bench", "bench-uid", time + "", ROOM));
+        }
+        messages.close();   //Wartet, bis der MessageWriter alles geschrieben hat
+    }
+}